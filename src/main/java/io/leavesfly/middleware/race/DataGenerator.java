@@ -19,10 +19,17 @@ public class DataGenerator {
 
     public static void main(String[] args) throws IOException {
 
-        geneData();
+        geneData(args.length > 0 && "signed".equals(args[0]));
     }
 
     public static void geneData() {
+        geneData(false);
+    }
+
+    /**
+     * @param signed 为true时生成全范围的有符号long（含负数），否则与比赛数据一致只生成非负数
+     */
+    public static void geneData(boolean signed) {
 
         File sourceDataDir = new File(KNLimit.SOURCE_DATA_DIR);
         sourceDataDir.mkdirs();
@@ -39,7 +46,7 @@ public class DataGenerator {
             try {
                 fileWriter = new FileWriter(file);
                 while (file.length() < FILE_SIZE) {
-                    Long randomValue = Math.abs(random.nextLong());
+                    long randomValue = signed ? random.nextLong() : Math.abs(random.nextLong());
                     fileWriter.append(String.valueOf(randomValue) + "\n");
                 }
                 fileWriter.close();
@@ -33,9 +33,74 @@ public interface KNLimit {
     }
 
     /**
+     * 原地倒序，升序查询的结果转成降序结果
+     */
+    static long[] reverse(long[] values) {
+        for (int i = 0, j = values.length - 1; i < j; i++, j--) {
+            long tmp = values[i];
+            values[i] = values[j];
+            values[j] = tmp;
+        }
+        return values;
+    }
+
+    /**
+     * 构建索引，索引已存在时直接返回
+     */
+    void init();
+
+    /**
+     * 查询结果写入结果文件
+     *
      * @param k
      * @param n
      */
     void processTopKN(long k, int n);
 
+    /**
+     * 返回排序后下标[k, k + n)的数据，不写结果文件；索引在进程内只加载一次，可被多个线程并发调用
+     *
+     * @param k
+     * @param n
+     * @return
+     */
+    long[] queryTopKN(long k, int n);
+
+    /**
+     * 批量查询：所有查询先对照全局索引定位，再按桶分组，每个桶只读取和排序一次
+     *
+     * @param ks
+     * @param ns
+     * @return 第i个数组是(ks[i], ns[i])的结果
+     */
+    long[][] queryTopKN(long[] ks, int[] ns);
+
+    /**
+     * 降序分页(order by id desc limit k, n)：返回从大到小排序后下标[k, k + n)的数据，
+     * 即升序下标[total - k - n, total - k)倒序，用全局索引的数据总量换算，与升序查询读取的桶相同
+     *
+     * @param k
+     * @param n
+     * @return
+     */
+    long[] queryTopKNDesc(long k, int n);
+
+    /**
+     * 小于v的数据个数，即v在排序后第一次出现的下标（v不存在时为它应插入的位置）
+     * v所在桶之前的数据量直接取自全局索引，只读取v所在的一个桶
+     *
+     * @param v
+     * @return
+     */
+    long rankOf(long v);
+
+    /**
+     * 值在[a, b]内的数据个数，a > b时为0；最多读取a和b所在的两个桶
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    long countBetween(long a, long b);
+
 }
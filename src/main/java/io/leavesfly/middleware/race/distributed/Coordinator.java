@@ -0,0 +1,476 @@
+package io.leavesfly.middleware.race.distributed;
+
+import io.leavesfly.middleware.race.KNLimit;
+import io.leavesfly.middleware.race.util.ResultWriter;
+import io.leavesfly.middleware.race.v2.BucketRule;
+import org.apache.log4j.FileAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 分布式TopKN的协调者：数据分布在多个分片进程上，每个分片对自己的源文件建索引（见ShardServer）
+ * 1. init时取回各分片的桶直方图（可排序键的高16位，见BucketRule.sortableKey）并相加成全局前缀和，
+ *    之后每次查询不再传输整张直方图
+ * 2. 查询时用全局前缀和定位k和k + n - 1所在的桶；桶内数据量超过RANGE_LIMIT时，只向在该桶有数据的分片
+ *    请求按键的下一个16位统计的直方图，逐层缩小到数据量不超过RANGE_LIMIT的值区间（最多到单个值）
+ * 3. 两个边界确定的值区间[lo, hi]内的数据不超过 n + 2 * RANGE_LIMIT 个，只向有数据的分片取回，归并后截取窗口
+ * 查询的网络传输量为 O(分片数 * 桶数 + n)，与数据总量无关
+ * <p>
+ * 用法：java -Dtopkn.dist.shards=7001,7002 io.leavesfly.middleware.race.distributed.Coordinator k n
+ */
+public class Coordinator implements KNLimit {
+
+    public static final Logger logger = Logger.getLogger(Coordinator.class);
+
+    private static final String LOG_FILE = LOG_DIR + "coordinator_log";
+
+    // 分片地址，逗号分隔的"host:port"或"port"（本机回环地址）
+    public static final String SHARDS = System.getProperty("topkn.dist.shards", "");
+
+    // 边界值区间的数据量上限，超过时继续按下一个16位细分
+    public static final long RANGE_LIMIT = Long.getLong("topkn.dist.rangeLimit", 64 * 1024L);
+
+    private static final int BUCKET_NUM = ShardProtocol.HISTOGRAM_SIZE;
+
+    static {
+        Logger rootLogger = Logger.getRootLogger();
+        rootLogger.setLevel(Level.INFO);
+        try {
+            rootLogger.addAppender(new FileAppender(
+                    new PatternLayout("%d{DATE} %-4r [%t] %-5p %c %x - %m%n"), LOG_FILE));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        new File(RESULT_DIR).mkdirs();
+    }
+
+    /**
+     * 一个名次所在的值区间：可排序键的高bits位等于prefix的所有值，rankBefore为比区间内所有值都小的数据个数
+     */
+    private static class Boundary {
+        final long prefix;
+        final int bits;
+        final long rankBefore;
+
+        Boundary(long prefix, int bits, long rankBefore) {
+            this.prefix = prefix;
+            this.bits = bits;
+            this.rankBefore = rankBefore;
+        }
+
+        long lowValue() {
+            return BucketRule.sortableKey(prefix);
+        }
+
+        long highValue() {
+            return BucketRule.sortableKey(bits == 64 ? prefix : prefix | (-1L >>> bits));
+        }
+    }
+
+    private final List<InetSocketAddress> addresses;
+    private final List<ShardClient> shards = new ArrayList<>();
+    private ExecutorService executor;
+
+    // shardCounts[s][b]为分片s在桶b的数据量，shardStarts[s][b]为分片s在桶b之前的数据量，prefix为全局前缀和
+    private long[][] shardCounts;
+    private long[][] shardStarts;
+    private long[] prefix;
+
+    public Coordinator() {
+        this(parseAddresses(SHARDS));
+    }
+
+    public Coordinator(List<InetSocketAddress> addresses) {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("未指定分片地址，使用 -Dtopkn.dist.shards");
+        }
+        this.addresses = addresses;
+    }
+
+    /**
+     * 连接各分片并汇总桶直方图，分片的索引在各自进程中构建
+     */
+    @Override
+    public synchronized void init() {
+        if (prefix != null) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        try {
+            for (InetSocketAddress address : addresses) {
+                shards.add(new ShardClient(address));
+            }
+            // 守护线程，调用方没有close时不阻止进程退出
+            executor = Executors.newFixedThreadPool(shards.size(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "coordinator");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            List<Future<long[]>> futures = new ArrayList<>();
+            for (final ShardClient shard : shards) {
+                futures.add(executor.submit(new Callable<long[]>() {
+                    public long[] call() throws Exception {
+                        return shard.fetchCounts();
+                    }
+                }));
+            }
+            long[][] counts = new long[shards.size()][];
+            long[][] starts = new long[shards.size()][BUCKET_NUM];
+            long[] sums = new long[BUCKET_NUM + 1];
+            for (int s = 0; s < shards.size(); s++) {
+                counts[s] = futures.get(s).get();
+                for (int b = 0; b < BUCKET_NUM; b++) {
+                    sums[b + 1] += counts[s][b];
+                    if (b > 0) {
+                        starts[s][b] = starts[s][b - 1] + counts[s][b - 1];
+                    }
+                }
+            }
+            for (int b = 0; b < BUCKET_NUM; b++) {
+                sums[b + 1] += sums[b];
+            }
+            shardCounts = counts;
+            shardStarts = starts;
+            prefix = sums;
+            logger.info("汇总" + shards.size() + "个分片的直方图，数据总量: " + sums[BUCKET_NUM] + "，耗时: "
+                    + (System.currentTimeMillis() - startTime) + "ms");
+        } catch (Exception e) {
+            close();
+            logger.error("连接分片失败: " + e.getMessage());
+            e.printStackTrace();
+            throw new IllegalStateException("连接分片失败: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void processTopKN(long k, int n) {
+        try {
+            ResultWriter.writeResult(RESULT_DIR + RESULT_NAME, queryTopKN(k, n));
+        } catch (Exception e) {
+            logger.error("查询失败: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public long[] queryTopKN(long k, int n) {
+        init();
+        long total = prefix[BUCKET_NUM];
+        if (k >= total) {
+            return new long[0];
+        }
+        n = (int) Math.min(n, total - k);
+
+        try {
+            Boundary low = locate(k);
+            Boundary high = locate(k + n - 1);
+            final long lo = low.lowValue();
+            final long hi = high.highValue();
+
+            List<Future<ShardClient.Runs>> futures = new ArrayList<>();
+            for (int s = 0; s < shards.size(); s++) {
+                if (!hasData(s, BucketRule.getBucketId(lo), BucketRule.getBucketId(hi))) {
+                    futures.add(null);
+                    continue;
+                }
+                final ShardClient shard = shards.get(s);
+                futures.add(executor.submit(new Callable<ShardClient.Runs>() {
+                    public ShardClient.Runs call() throws Exception {
+                        return shard.fetchRange(lo, hi);
+                    }
+                }));
+            }
+            ShardClient.Runs[] runs = new ShardClient.Runs[shards.size()];
+            int runNum = 0;
+            for (int s = 0; s < shards.size(); s++) {
+                if (futures.get(s) != null) {
+                    runs[s] = futures.get(s).get();
+                    runNum += runs[s].values.length;
+                }
+            }
+            logger.info("top(" + k + ", " + n + ") 值区间[" + lo + ", " + hi + "]，取回" + runNum + "个游程");
+            return mergeWindow(runs, k - low.rankBefore, n);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("查询失败: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 协调者每个查询的传输量已与数据量无关，批量查询逐个执行
+     */
+    @Override
+    public long[][] queryTopKN(long[] ks, int[] ns) {
+        if (ks.length != ns.length) {
+            throw new IllegalArgumentException("ks与ns长度不一致");
+        }
+        long[][] results = new long[ks.length][];
+        for (int q = 0; q < ks.length; q++) {
+            results[q] = queryTopKN(ks[q], ns[q]);
+        }
+        return results;
+    }
+
+    @Override
+    public long[] queryTopKNDesc(long k, int n) {
+        init();
+        long total = prefix[BUCKET_NUM];
+        if (k >= total) {
+            return new long[0];
+        }
+        long end = total - k;
+        int num = (int) Math.min(n, end);
+        return KNLimit.reverse(queryTopKN(end - num, num));
+    }
+
+    /**
+     * v所在桶之前的数据量取自汇总的前缀和，桶内部分由在该桶有数据的分片各自计算后相加
+     */
+    @Override
+    public long rankOf(long v) {
+        init();
+        try {
+            return rankOf(v, BucketRule.getBucketId(v));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("计算名次失败: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public long countBetween(long a, long b) {
+        if (a > b) {
+            return 0;
+        }
+        init();
+        try {
+            long notGreater = b == Long.MAX_VALUE ? prefix[BUCKET_NUM] : rankOf(b + 1, BucketRule.getBucketId(b + 1));
+            return notGreater - rankOf(a, BucketRule.getBucketId(a));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("区间计数失败: " + e.getMessage(), e);
+        }
+    }
+
+    private long rankOf(final long v, int bucketId) throws Exception {
+        List<Future<Long>> futures = new ArrayList<>();
+        for (int s = 0; s < shards.size(); s++) {
+            if (shardCounts[s][bucketId] == 0) {
+                continue;
+            }
+            final ShardClient shard = shards.get(s);
+            futures.add(executor.submit(new Callable<Long>() {
+                public Long call() throws Exception {
+                    return shard.fetchRank(v);
+                }
+            }));
+        }
+        // 各分片的名次包含其在v所在桶之前的全部数据，减去这部分再加上全局前缀和
+        long rank = prefix[bucketId];
+        for (int s = 0; s < shards.size(); s++) {
+            if (shardCounts[s][bucketId] > 0) {
+                rank -= shardStarts[s][bucketId];
+            }
+        }
+        for (Future<Long> future : futures) {
+            rank += future.get();
+        }
+        return rank;
+    }
+
+    /**
+     * 定位名次rank所在的值区间：先按全局前缀和定位桶，数据量超过RANGE_LIMIT时逐层请求下一个16位的直方图
+     */
+    private Boundary locate(long rank) throws Exception {
+        int bucketId = locateBucket(rank);
+        long rankBefore = prefix[bucketId];
+        long count = prefix[bucketId + 1] - rankBefore;
+        long[] counts = new long[shards.size()];
+        for (int s = 0; s < shards.size(); s++) {
+            counts[s] = shardCounts[s][bucketId];
+        }
+        long keyPrefix = (long) bucketId << 48;
+        int bits = ShardProtocol.HISTOGRAM_BITS;
+
+        while (count > RANGE_LIMIT && bits < 64) {
+            long[][] histograms = fetchHistograms(keyPrefix, bits, counts);
+            long seen = 0;
+            int sub = 0;
+            for (; sub < BUCKET_NUM; sub++) {
+                long subCount = 0;
+                for (long[] histogram : histograms) {
+                    if (histogram != null) {
+                        subCount += histogram[sub];
+                    }
+                }
+                if (rankBefore + seen + subCount > rank) {
+                    count = subCount;
+                    break;
+                }
+                seen += subCount;
+            }
+            if (sub == BUCKET_NUM) {
+                throw new IllegalStateException("分片数据与init时汇总的直方图不一致，需重新连接");
+            }
+            for (int s = 0; s < shards.size(); s++) {
+                counts[s] = histograms[s] == null ? 0 : histograms[s][sub];
+            }
+            rankBefore += seen;
+            bits += ShardProtocol.HISTOGRAM_BITS;
+            keyPrefix |= (long) sub << (64 - bits);
+        }
+        return new Boundary(keyPrefix, bits, rankBefore);
+    }
+
+    /**
+     * 并行向在该区间有数据的分片请求直方图，没有数据的分片对应null
+     */
+    private long[][] fetchHistograms(final long keyPrefix, final int bits, long[] counts) throws Exception {
+        List<Future<long[]>> futures = new ArrayList<>();
+        for (int s = 0; s < shards.size(); s++) {
+            if (counts[s] == 0) {
+                futures.add(null);
+                continue;
+            }
+            final ShardClient shard = shards.get(s);
+            futures.add(executor.submit(new Callable<long[]>() {
+                public long[] call() throws Exception {
+                    return shard.fetchHistogram(keyPrefix, bits);
+                }
+            }));
+        }
+        long[][] histograms = new long[shards.size()][];
+        for (int s = 0; s < shards.size(); s++) {
+            if (futures.get(s) == null) {
+                continue;
+            }
+            histograms[s] = futures.get(s).get();
+            long sum = 0;
+            for (long subCount : histograms[s]) {
+                sum += subCount;
+            }
+            if (sum != counts[s]) {
+                throw new IllegalStateException("分片" + shards.get(s).getAddress()
+                        + "的数据与init时汇总的直方图不一致，需重新连接");
+            }
+        }
+        return histograms;
+    }
+
+    /**
+     * 归并各分片的升序游程，跳过前skip个值后取n个
+     */
+    private static long[] mergeWindow(ShardClient.Runs[] runs, long skip, int n) {
+        long[] result = new long[n];
+        int[] cursors = new int[runs.length];
+        int pos = 0;
+        while (pos < n) {
+            int min = -1;
+            for (int s = 0; s < runs.length; s++) {
+                if (runs[s] != null && cursors[s] < runs[s].values.length && (min == -1
+                        || runs[s].values[cursors[s]] < runs[min].values[cursors[min]])) {
+                    min = s;
+                }
+            }
+            if (min == -1) {
+                throw new IllegalStateException("分片返回的数据少于直方图中的数量");
+            }
+            long value = runs[min].values[cursors[min]];
+            long count = runs[min].counts[cursors[min]];
+            cursors[min]++;
+            if (skip >= count) {
+                skip -= count;
+                continue;
+            }
+            int take = (int) Math.min(count - skip, n - pos);
+            for (int i = 0; i < take; i++) {
+                result[pos++] = value;
+            }
+            skip = 0;
+        }
+        return result;
+    }
+
+    private boolean hasData(int shard, int fromBucket, int toBucket) {
+        for (int b = fromBucket; b <= toBucket; b++) {
+            if (shardCounts[shard][b] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 找最后一个起始名次不大于rank的桶
+     */
+    private int locateBucket(long rank) {
+        int base = 0;
+        int len = BUCKET_NUM;
+        while (len > 1) {
+            int half = len >>> 1;
+            base = prefix[base + half] <= rank ? base + half : base;
+            len -= half;
+        }
+        return base;
+    }
+
+    public synchronized void close() {
+        for (ShardClient shard : shards) {
+            shard.close();
+        }
+        shards.clear();
+        if (executor != null) {
+            executor.shutdown();
+        }
+        prefix = null;
+    }
+
+    static List<InetSocketAddress> parseAddresses(String spec) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            part = part.trim();
+            if (part.isEmpty()) {
+                continue;
+            }
+            int colon = part.lastIndexOf(':');
+            if (colon < 0) {
+                addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(part)));
+            } else {
+                addresses.add(new InetSocketAddress(part.substring(0, colon),
+                        Integer.parseInt(part.substring(colon + 1))));
+            }
+        }
+        return addresses;
+    }
+
+    public static void main(String[] args) {
+        Coordinator coordinator = new Coordinator();
+        long time = System.currentTimeMillis();
+        coordinator.init();
+
+        if (args.length >= 2) {
+            coordinator.processTopKN(Long.valueOf(args[0]), Integer.valueOf(args[1]));
+            logger.info("查询耗时: " + (System.currentTimeMillis() - time) + "ms");
+        }
+        coordinator.close();
+    }
+}
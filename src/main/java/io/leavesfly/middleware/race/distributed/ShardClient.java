@@ -0,0 +1,118 @@
+package io.leavesfly.middleware.race.distributed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * 协调者到一个分片的连接，请求在连接上串行执行
+ */
+public class ShardClient {
+
+    /**
+     * 升序的游程：values[i]出现counts[i]次
+     */
+    public static class Runs {
+        public final long[] values;
+        public final int[] counts;
+
+        Runs(long[] values, int[] counts) {
+            this.values = values;
+            this.counts = counts;
+        }
+    }
+
+    private final InetSocketAddress address;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    public ShardClient(InetSocketAddress address) throws IOException {
+        this.address = address;
+        this.socket = new Socket();
+        socket.connect(address);
+        socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * 各桶的数据量
+     */
+    public synchronized long[] fetchCounts() throws IOException {
+        out.writeByte(ShardProtocol.OP_COUNTS);
+        out.flush();
+        readStatus();
+        return ShardProtocol.readSparse(in, ShardProtocol.HISTOGRAM_SIZE);
+    }
+
+    /**
+     * 高bits位等于prefix的值按其后16位统计的数据量
+     */
+    public synchronized long[] fetchHistogram(long prefix, int bits) throws IOException {
+        out.writeByte(ShardProtocol.OP_HISTOGRAM);
+        out.writeLong(prefix);
+        out.writeInt(bits);
+        out.flush();
+        readStatus();
+        return ShardProtocol.readSparse(in, ShardProtocol.HISTOGRAM_SIZE);
+    }
+
+    /**
+     * 值在[lo, hi]内的数据
+     */
+    public synchronized Runs fetchRange(long lo, long hi) throws IOException {
+        out.writeByte(ShardProtocol.OP_RANGE);
+        out.writeLong(lo);
+        out.writeLong(hi);
+        out.flush();
+        readStatus();
+        int runNum = in.readInt();
+        long[] values = new long[runNum];
+        int[] counts = new int[runNum];
+        for (int i = 0; i < runNum; i++) {
+            values[i] = in.readLong();
+            counts[i] = in.readInt();
+        }
+        return new Runs(values, counts);
+    }
+
+    /**
+     * 分片内小于v的数据个数
+     */
+    public synchronized long fetchRank(long v) throws IOException {
+        out.writeByte(ShardProtocol.OP_RANK);
+        out.writeLong(v);
+        out.flush();
+        readStatus();
+        return in.readLong();
+    }
+
+    public synchronized void close() {
+        try {
+            out.writeByte(ShardProtocol.OP_QUIT);
+            out.flush();
+        } catch (IOException e) {
+            // 连接已断开，直接关闭
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void readStatus() throws IOException {
+        if (in.readByte() != ShardProtocol.STATUS_OK) {
+            throw new IOException("分片" + address + "出错: " + in.readUTF());
+        }
+    }
+}
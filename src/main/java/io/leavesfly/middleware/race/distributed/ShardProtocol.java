@@ -0,0 +1,63 @@
+package io.leavesfly.middleware.race.distributed;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * 协调者与分片之间的二进制协议（DataInput/DataOutput，大端）
+ * 请求以一个操作字节开头，响应以一个状态字节开头，出错时状态之后是错误原因(UTF)；
+ * <pre>
+ * COUNTS                          -&gt; 稀疏直方图：各桶（可排序键的高16位）的数据量
+ * HISTOGRAM prefix(long) bits(int) -&gt; 稀疏直方图：可排序键的高bits位等于prefix的值按键的其后16位统计的数据量
+ * RANGE lo(long) hi(long)          -&gt; 游程：值在[lo, hi]内的数据，升序，相同的值合并为(value(long), count(int))
+ * RANK v(long)                     -&gt; 小于v的数据个数(long)
+ * QUIT                            -&gt; 结束会话，无响应
+ * </pre>
+ * 稀疏直方图为非零项个数(int)，之后每项为下标(int)和数据量(long)；
+ * 可排序键为翻转符号位后的值（BucketRule.sortableKey），键的无符号顺序即值的有符号顺序，lo、hi、v为原值
+ */
+public class ShardProtocol {
+
+    public static final byte OP_QUIT = 0;
+    public static final byte OP_COUNTS = 1;
+    public static final byte OP_HISTOGRAM = 2;
+    public static final byte OP_RANGE = 3;
+    public static final byte OP_RANK = 4;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+
+    // 每层直方图的宽度：值的16位
+    public static final int HISTOGRAM_BITS = 16;
+    public static final int HISTOGRAM_SIZE = 1 << HISTOGRAM_BITS;
+
+    public static void writeSparse(DataOutputStream out, long[] counts) throws IOException {
+        int nonZero = 0;
+        for (long count : counts) {
+            if (count != 0) {
+                nonZero++;
+            }
+        }
+        out.writeInt(nonZero);
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                out.writeInt(i);
+                out.writeLong(counts[i]);
+            }
+        }
+    }
+
+    public static long[] readSparse(DataInputStream in, int size) throws IOException {
+        long[] counts = new long[size];
+        int nonZero = in.readInt();
+        for (int i = 0; i < nonZero; i++) {
+            int index = in.readInt();
+            if (index < 0 || index >= size) {
+                throw new IOException("直方图下标越界: " + index);
+            }
+            counts[index] = in.readLong();
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,216 @@
+package io.leavesfly.middleware.race.distributed;
+
+import io.leavesfly.middleware.race.util.RadixSort;
+import io.leavesfly.middleware.race.v2.BucketRule;
+import io.leavesfly.middleware.race.v2.TopKN;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 分片进程：对本分片的源文件构建v2索引，按ShardProtocol回答协调者的直方图和取值区间请求
+ * 源文件和中间目录由 -Dtopkn.v2.sourceFiles、-Dtopkn.v2.middleDir 指定，同一台机器上的各分片互不干扰；
+ * 各分片必须按高16位分桶，桶号和直方图才能在协调者处直接相加
+ * <p>
+ * 用法：java -Dtopkn.v2.sourceFiles=... -Dtopkn.v2.middleDir=... io.leavesfly.middleware.race.distributed.ShardServer &lt;port&gt;
+ */
+public class ShardServer {
+
+    private final TopKN topKN;
+
+    public ShardServer(TopKN topKN) {
+        this.topKN = topKN;
+    }
+
+    /**
+     * 处理一个会话上的全部请求，直到连接关闭或收到QUIT；单个请求出错只回错误响应，会话继续
+     */
+    public void serve(DataInputStream in, DataOutputStream out) throws IOException {
+        while (true) {
+            byte op;
+            try {
+                op = in.readByte();
+            } catch (EOFException e) {
+                return;
+            }
+            if (op == ShardProtocol.OP_QUIT) {
+                return;
+            }
+            try {
+                switch (op) {
+                    case ShardProtocol.OP_COUNTS: {
+                        long[] counts = topKN.getBucketCounts();
+                        out.writeByte(ShardProtocol.STATUS_OK);
+                        ShardProtocol.writeSparse(out, counts);
+                        break;
+                    }
+                    case ShardProtocol.OP_HISTOGRAM: {
+                        long[] histogram = histogram(in.readLong(), in.readInt());
+                        out.writeByte(ShardProtocol.STATUS_OK);
+                        ShardProtocol.writeSparse(out, histogram);
+                        break;
+                    }
+                    case ShardProtocol.OP_RANGE: {
+                        long[] values = range(in.readLong(), in.readLong());
+                        out.writeByte(ShardProtocol.STATUS_OK);
+                        writeRuns(out, values);
+                        break;
+                    }
+                    case ShardProtocol.OP_RANK: {
+                        long rank = topKN.rankOf(in.readLong());
+                        out.writeByte(ShardProtocol.STATUS_OK);
+                        out.writeLong(rank);
+                        break;
+                    }
+                    default:
+                        // 请求的其余部分无法解析，回错误后结束会话
+                        out.writeByte(ShardProtocol.STATUS_ERROR);
+                        out.writeUTF("未知操作: " + op);
+                        out.flush();
+                        return;
+                }
+            } catch (RuntimeException e) {
+                out.writeByte(ShardProtocol.STATUS_ERROR);
+                out.writeUTF(String.valueOf(e.getMessage()));
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * 可排序键的高bits位等于prefix的值，按键的其后16位统计数据量；只需读取prefix所在的一个桶
+     *
+     * @param prefix 键的前缀，只有高bits位有效，其余位为0
+     * @param bits   16、32或48
+     */
+    long[] histogram(long prefix, int bits) {
+        if (bits < ShardProtocol.HISTOGRAM_BITS || bits > 64 - ShardProtocol.HISTOGRAM_BITS
+                || bits % ShardProtocol.HISTOGRAM_BITS != 0) {
+            throw new IllegalArgumentException("直方图前缀位数不合法: " + bits);
+        }
+        long[] histogram = new long[ShardProtocol.HISTOGRAM_SIZE];
+        int bucketId = (int) (prefix >>> 48);
+        if (topKN.getBucketCounts()[bucketId] == 0) {
+            return histogram;
+        }
+        int prefixShift = 64 - bits;
+        int subShift = prefixShift - ShardProtocol.HISTOGRAM_BITS;
+        long expected = prefix >>> prefixShift;
+        for (long value : topKN.readBucketValues(bucketId)) {
+            long key = BucketRule.sortableKey(value);
+            if (key >>> prefixShift == expected) {
+                histogram[(int) ((key >>> subShift) & (ShardProtocol.HISTOGRAM_SIZE - 1))]++;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * 值在[lo, hi]内的全部数据，升序；读取的桶为lo和hi所在的桶及其之间的非空桶
+     */
+    long[] range(long lo, long hi) {
+        if (lo > hi) {
+            throw new IllegalArgumentException("取值区间不合法: [" + lo + ", " + hi + "]");
+        }
+        long[] counts = topKN.getBucketCounts();
+        long[] result = new long[0];
+        int size = 0;
+        for (int bucketId = BucketRule.getBucketId(lo); bucketId <= BucketRule.getBucketId(hi); bucketId++) {
+            if (counts[bucketId] == 0) {
+                continue;
+            }
+            for (long value : topKN.readBucketValues(bucketId)) {
+                if (value < lo || value > hi) {
+                    continue;
+                }
+                if (size == result.length) {
+                    result = Arrays.copyOf(result, Math.max(1024, size * 2));
+                }
+                result[size++] = value;
+            }
+        }
+        result = Arrays.copyOf(result, size);
+        RadixSort.sort(result);
+        return result;
+    }
+
+    /**
+     * 升序数据按游程写出，重复值很多时传输量只与不同值的个数有关
+     */
+    private static void writeRuns(DataOutputStream out, long[] values) throws IOException {
+        int runNum = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (i == 0 || values[i] != values[i - 1]) {
+                runNum++;
+            }
+        }
+        out.writeInt(runNum);
+        int i = 0;
+        while (i < values.length) {
+            int j = i + 1;
+            while (j < values.length && values[j] == values[i]) {
+                j++;
+            }
+            out.writeLong(values[i]);
+            out.writeInt(j - i);
+            i = j;
+        }
+    }
+
+    /**
+     * 监听本机回环地址上的端口，每个连接由一个线程处理
+     */
+    public void listen(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        ExecutorService executor = Executors.newCachedThreadPool();
+        TopKN.logger.info("分片服务已启动，端口: " + port);
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                executor.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            socket.setTcpNoDelay(true);
+                            serve(new DataInputStream(new BufferedInputStream(socket.getInputStream())),
+                                    new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())));
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            serverSocket.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("用法: ShardServer <port>");
+            return;
+        }
+        TopKN topKN = new TopKN();
+        topKN.init();
+        // 预先加载索引并检查分桶方式，不合要求时启动即失败
+        topKN.getBucketCounts();
+
+        new ShardServer(topKN).listen(Integer.parseInt(args[0]));
+    }
+}
@@ -0,0 +1,19 @@
+package io.leavesfly.middleware.race.pipeline;
+
+import java.io.IOException;
+
+/**
+ * 数据源：把解析出的long值按批填入调用方提供的数组
+ */
+public interface BatchSource {
+
+    /**
+     * 读取下一批数据
+     *
+     * @param batch 由调用方提供并复用的数组
+     * @return 本次填充的个数，0表示数据源已读完
+     */
+    int read(long[] batch) throws IOException;
+
+    void close() throws IOException;
+}
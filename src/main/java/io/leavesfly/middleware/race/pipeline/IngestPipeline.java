@@ -0,0 +1,449 @@
+package io.leavesfly.middleware.race.pipeline;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 分阶段的索引构建流水线：解析 -> 分区 -> 写盘
+ * 1. 解析线程从数据源读出批量long值，经单生产者单消费者环形队列交给分区线程
+ * 2. 分区线程把值追加到页中，页满后交给写线程（按页的target路由，同一target总由同一个写线程处理）
+ * 3. 写线程把页写盘后把页还给原分区线程复用
+ * 每一对生产者/消费者独占一对队列（正向传数据，反向还空闲对象），批和页全部预先分配，
+ * 磁盘阻塞只会让写线程停顿，解析和分区在队列未满前可以继续工作
+ */
+public class IngestPipeline {
+
+    private static final Logger logger = Logger.getLogger(IngestPipeline.class);
+
+    // 每对生产者/消费者之间的队列容量
+    private static final int RING_CAPACITY = 16;
+    // 队列深度日志的输出间隔
+    private static final long MONITOR_INTERVAL_MS = 1000;
+
+    /**
+     * 分区器，每个分区线程独占一个实例
+     */
+    public interface Partitioner {
+
+        /**
+         * 把一批值追加到页中，页满时通过output交给写线程
+         */
+        void partition(long[] values, int size, PageOutput output) throws IOException;
+
+        /**
+         * 输入全部结束后调用，交出剩余未满的页
+         */
+        void finish(PageOutput output) throws IOException;
+    }
+
+    /**
+     * 页写入器，同一个target的页总是由同一个写线程调用
+     */
+    public interface PageWriter {
+        void write(Page page) throws IOException;
+    }
+
+    /**
+     * 在分区线程和写线程之间流转的页
+     */
+    public static final class Page {
+        private final ByteBuffer buffer;
+        private int target;
+        private int bucket;
+
+        Page(int size) {
+            this.buffer = ByteBuffer.allocate(size);
+        }
+
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * 页的写入目标（如文件号），决定由哪个写线程处理
+         */
+        public int getTarget() {
+            return target;
+        }
+
+        public void setTarget(int target) {
+            this.target = target;
+        }
+
+        /**
+         * 目标内的桶号，由分区器和写入器自行约定
+         */
+        public int getBucket() {
+            return bucket;
+        }
+
+        public void setBucket(int bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    private static final class LongBatch {
+        private final long[] values;
+        private int size;
+
+        LongBatch(int capacity) {
+            values = new long[capacity];
+        }
+    }
+
+    private final List<Callable<BatchSource>> sources;
+    private final Partitioner[] partitioners;
+    private final PageWriter pageWriter;
+    private final int parseThreadNum;
+    private final int partitionThreadNum;
+    private final int writeThreadNum;
+    private final int batchSize;
+    private final int pageSize;
+    private final int pagesPerPartitioner;
+
+    // [解析线程][分区线程]
+    private final SpscRingBuffer<LongBatch>[][] batchRings;
+    private final SpscRingBuffer<LongBatch>[][] batchReturnRings;
+    // [分区线程][写线程]
+    private final SpscRingBuffer<Page>[][] pageRings;
+    private final SpscRingBuffer<Page>[][] pageReturnRings;
+
+    private final AtomicInteger nextSource = new AtomicInteger(0);
+    private final AtomicInteger finishedParsers = new AtomicInteger(0);
+    private final AtomicInteger finishedPartitioners = new AtomicInteger(0);
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * @param sources             数据源，由解析线程按顺序领取并关闭
+     * @param parseThreadNum      解析线程数
+     * @param partitioners        分区器，数组长度即分区线程数
+     * @param writeThreadNum      写线程数
+     * @param pageWriter          页写入器
+     * @param batchSize           每批long值个数
+     * @param pageSize            页大小（字节）
+     * @param pagesPerPartitioner 每个分区线程可持有的页数，至少要覆盖分区器同时持有的未满页
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public IngestPipeline(List<Callable<BatchSource>> sources, int parseThreadNum, Partitioner[] partitioners,
+                          int writeThreadNum, PageWriter pageWriter, int batchSize, int pageSize,
+                          int pagesPerPartitioner) {
+        this.sources = sources;
+        this.partitioners = partitioners;
+        this.pageWriter = pageWriter;
+        this.parseThreadNum = parseThreadNum;
+        this.partitionThreadNum = partitioners.length;
+        this.writeThreadNum = writeThreadNum;
+        this.batchSize = batchSize;
+        this.pageSize = pageSize;
+        this.pagesPerPartitioner = pagesPerPartitioner + RING_CAPACITY * writeThreadNum;
+
+        int batchesPerParser = RING_CAPACITY * partitionThreadNum;
+        batchRings = new SpscRingBuffer[parseThreadNum][partitionThreadNum];
+        batchReturnRings = new SpscRingBuffer[parseThreadNum][partitionThreadNum];
+        for (int p = 0; p < parseThreadNum; p++) {
+            for (int q = 0; q < partitionThreadNum; q++) {
+                batchRings[p][q] = new SpscRingBuffer<>(RING_CAPACITY);
+                // 反向队列要能容纳该解析线程的全部批，保证归还时不会失败
+                batchReturnRings[p][q] = new SpscRingBuffer<>(batchesPerParser);
+            }
+        }
+        pageRings = new SpscRingBuffer[partitionThreadNum][writeThreadNum];
+        pageReturnRings = new SpscRingBuffer[partitionThreadNum][writeThreadNum];
+        for (int q = 0; q < partitionThreadNum; q++) {
+            for (int w = 0; w < writeThreadNum; w++) {
+                pageRings[q][w] = new SpscRingBuffer<>(RING_CAPACITY);
+                pageReturnRings[q][w] = new SpscRingBuffer<>(this.pagesPerPartitioner);
+            }
+        }
+    }
+
+    /**
+     * 启动所有阶段并等待完成，期间定时输出各阶段队列深度
+     */
+    public void run() throws IOException {
+        int threadNum = parseThreadNum + partitionThreadNum + writeThreadNum;
+        final CountDownLatch latch = new CountDownLatch(threadNum);
+
+        for (int p = 0; p < parseThreadNum; p++) {
+            final int parserId = p;
+            startThread("ingest-parse-" + p, latch, new Callable<Void>() {
+                public Void call() throws Exception {
+                    try {
+                        runParser(parserId);
+                    } finally {
+                        finishedParsers.incrementAndGet();
+                    }
+                    return null;
+                }
+            });
+        }
+        for (int q = 0; q < partitionThreadNum; q++) {
+            final int partitionId = q;
+            startThread("ingest-partition-" + q, latch, new Callable<Void>() {
+                public Void call() throws Exception {
+                    try {
+                        runPartitioner(partitionId);
+                    } finally {
+                        finishedPartitioners.incrementAndGet();
+                    }
+                    return null;
+                }
+            });
+        }
+        for (int w = 0; w < writeThreadNum; w++) {
+            final int writerId = w;
+            startThread("ingest-write-" + w, latch, new Callable<Void>() {
+                public Void call() throws Exception {
+                    runWriter(writerId);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            while (!latch.await(MONITOR_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                logger.info("流水线队列深度 parse->partition: " + getBatchQueueDepth()
+                        + ", partition->write: " + getPageQueueDepth());
+            }
+        } catch (InterruptedException e) {
+            failure.compareAndSet(null, e);
+            Thread.currentThread().interrupt();
+        }
+
+        Throwable t = failure.get();
+        if (t != null) {
+            throw new IOException("流水线构建失败", t);
+        }
+    }
+
+    /**
+     * 解析阶段到分区阶段之间排队的批数
+     */
+    public int getBatchQueueDepth() {
+        int depth = 0;
+        for (SpscRingBuffer<LongBatch>[] rings : batchRings) {
+            for (SpscRingBuffer<LongBatch> ring : rings) {
+                depth += ring.size();
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * 分区阶段到写盘阶段之间排队的页数
+     */
+    public int getPageQueueDepth() {
+        int depth = 0;
+        for (SpscRingBuffer<Page>[] rings : pageRings) {
+            for (SpscRingBuffer<Page> ring : rings) {
+                depth += ring.size();
+            }
+        }
+        return depth;
+    }
+
+    private void startThread(String name, final CountDownLatch latch, final Callable<Void> task) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    task.call();
+                } catch (Throwable t) {
+                    logger.error(Thread.currentThread().getName() + "执行失败: " + t.getMessage());
+                    failure.compareAndSet(null, t);
+                } finally {
+                    latch.countDown();
+                }
+            }
+        }, name);
+        thread.start();
+    }
+
+    private void runParser(int parserId) throws Exception {
+        ArrayDeque<LongBatch> freeBatches = new ArrayDeque<>();
+        for (int i = 0; i < RING_CAPACITY * partitionThreadNum; i++) {
+            freeBatches.add(new LongBatch(batchSize));
+        }
+        int nextPartition = parserId % partitionThreadNum;
+
+        int index;
+        while ((index = nextSource.getAndIncrement()) < sources.size()) {
+            BatchSource source = sources.get(index).call();
+            try {
+                while (true) {
+                    LongBatch batch = borrowBatch(parserId, freeBatches);
+                    batch.size = source.read(batch.values);
+                    if (batch.size == 0) {
+                        freeBatches.add(batch);
+                        break;
+                    }
+                    // 轮询各分区线程的队列，全部满时等待
+                    int idle = 0;
+                    while (!batchRings[parserId][nextPartition].offer(batch)) {
+                        nextPartition = (nextPartition + 1) % partitionThreadNum;
+                        idle = idle(idle);
+                    }
+                    nextPartition = (nextPartition + 1) % partitionThreadNum;
+                }
+            } finally {
+                source.close();
+            }
+        }
+    }
+
+    private LongBatch borrowBatch(int parserId, ArrayDeque<LongBatch> freeBatches) throws IOException {
+        int idle = 0;
+        while (freeBatches.isEmpty()) {
+            for (int q = 0; q < partitionThreadNum; q++) {
+                LongBatch batch;
+                while ((batch = batchReturnRings[parserId][q].poll()) != null) {
+                    freeBatches.add(batch);
+                }
+            }
+            if (freeBatches.isEmpty()) {
+                idle = idle(idle);
+            }
+        }
+        return freeBatches.poll();
+    }
+
+    private void runPartitioner(int partitionId) throws IOException {
+        Partitioner partitioner = partitioners[partitionId];
+        PageOutput output = new PageOutput(partitionId);
+
+        int idle = 0;
+        while (true) {
+            boolean received = false;
+            for (int p = 0; p < parseThreadNum; p++) {
+                LongBatch batch = batchRings[p][partitionId].poll();
+                if (batch != null) {
+                    partitioner.partition(batch.values, batch.size, output);
+                    batchReturnRings[p][partitionId].offer(batch);
+                    received = true;
+                }
+            }
+            if (received) {
+                idle = 0;
+                continue;
+            }
+            // 解析线程全部结束后再确认一次队列为空，避免漏掉结束前最后入队的批
+            if (finishedParsers.get() == parseThreadNum && isBatchRingsEmpty(partitionId)) {
+                break;
+            }
+            idle = idle(idle);
+        }
+        partitioner.finish(output);
+    }
+
+    private boolean isBatchRingsEmpty(int partitionId) {
+        for (int p = 0; p < parseThreadNum; p++) {
+            if (batchRings[p][partitionId].size() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void runWriter(int writerId) throws IOException {
+        int idle = 0;
+        while (true) {
+            boolean received = false;
+            for (int q = 0; q < partitionThreadNum; q++) {
+                Page page = pageRings[q][writerId].poll();
+                if (page != null) {
+                    pageWriter.write(page);
+                    page.buffer.clear();
+                    pageReturnRings[q][writerId].offer(page);
+                    received = true;
+                }
+            }
+            if (received) {
+                idle = 0;
+                continue;
+            }
+            if (finishedPartitioners.get() == partitionThreadNum && isPageRingsEmpty(writerId)) {
+                break;
+            }
+            idle = idle(idle);
+        }
+    }
+
+    private boolean isPageRingsEmpty(int writerId) {
+        for (int q = 0; q < partitionThreadNum; q++) {
+            if (pageRings[q][writerId].size() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 等待策略：先让出CPU，空闲较久后短暂休眠；其他阶段失败时中止
+     */
+    private int idle(int idle) throws IOException {
+        if (failure.get() != null) {
+            throw new IOException("流水线其他阶段已失败");
+        }
+        if (idle < 100) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(50000L);
+        }
+        return idle + 1;
+    }
+
+    /**
+     * 分区线程的页出口：借出空闲页、把写满的页交给写线程
+     */
+    public final class PageOutput {
+
+        private final int partitionId;
+        private final ArrayDeque<Page> freePages = new ArrayDeque<>();
+
+        PageOutput(int partitionId) {
+            this.partitionId = partitionId;
+            for (int i = 0; i < pagesPerPartitioner; i++) {
+                freePages.add(new Page(pageSize));
+            }
+        }
+
+        /**
+         * 借出一个空页，没有空页时等待写线程归还
+         */
+        public Page borrowPage() throws IOException {
+            int idle = 0;
+            while (freePages.isEmpty()) {
+                for (int w = 0; w < writeThreadNum; w++) {
+                    Page page;
+                    while ((page = pageReturnRings[partitionId][w].poll()) != null) {
+                        freePages.add(page);
+                    }
+                }
+                if (freePages.isEmpty()) {
+                    idle = idle(idle);
+                }
+            }
+            return freePages.poll();
+        }
+
+        /**
+         * 把页交给负责其target的写线程，队列满时等待
+         */
+        public void emit(Page page) throws IOException {
+            SpscRingBuffer<Page> ring = pageRings[partitionId][page.getTarget() % writeThreadNum];
+            int idle = 0;
+            while (!ring.offer(page)) {
+                idle = idle(idle);
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package io.leavesfly.middleware.race.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单生产者单消费者的有界环形队列，槽位预先分配，入队出队均无锁
+ */
+public class SpscRingBuffer<E> {
+
+    private final Object[] slots;
+    private final int mask;
+
+    // 消费者位置，只由消费者线程推进
+    private final AtomicLong head = new AtomicLong(0);
+    // 生产者位置，只由生产者线程推进
+    private final AtomicLong tail = new AtomicLong(0);
+
+    public SpscRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * 只能由生产者线程调用
+     *
+     * @return 队列已满时返回false
+     */
+    public boolean offer(E element) {
+        long t = tail.get();
+        if (t - head.get() > mask) {
+            return false;
+        }
+        slots[(int) (t & mask)] = element;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * 只能由消费者线程调用
+     *
+     * @return 队列为空时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        int index = (int) (h & mask);
+        E element = (E) slots[index];
+        slots[index] = null;
+        head.lazySet(h + 1);
+        return element;
+    }
+
+    /**
+     * 当前队列深度，任意线程可调用（近似值）
+     */
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+}
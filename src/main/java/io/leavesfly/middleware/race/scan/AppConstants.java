@@ -0,0 +1,47 @@
+package io.leavesfly.middleware.race.scan;
+
+import io.leavesfly.middleware.race.KNLimit;
+
+import java.io.File;
+
+/**
+ * 单次扫描版本的常量与可调参数
+ * 可调参数均可通过 -Dtopkn.scan.xxx 系统属性覆盖；源文件的读取方式沿用 -Dtopkn.v2.reader
+ */
+public class AppConstants {
+
+    public static final int SOURCE_FILE_NUM = 10;
+
+    // 每层直方图按可排序键的16位划分，65536个区间
+    public static final int HISTOGRAM_BITS = 16;
+    public static final int HISTOGRAM_SIZE = 1 << HISTOGRAM_BITS;
+
+    // 扫描线程数
+    public static final int SCAN_THREAD_NUM = Integer.getInteger("topkn.scan.threads",
+            Runtime.getRuntime().availableProcessors());
+
+    // 候选集的数据量上限（个数），超过时再扫一遍按下一个16位细分；默认1600万个，约128MB
+    public static final long MAX_CANDIDATES = Long.getLong("topkn.scan.maxCandidates", 16 * 1024 * 1024L);
+
+    // 本进程扫描的源文件，逗号分隔；未指定时为全部10个源文件
+    public static final String SOURCE_FILES = System.getProperty("topkn.scan.sourceFiles", "");
+
+    // 每批解析的long个数
+    public static final int READ_BATCH_SIZE = 4096;
+
+    public static File[] getSourceFiles() {
+        if (SOURCE_FILES.isEmpty()) {
+            File[] sourceFiles = new File[SOURCE_FILE_NUM];
+            for (int i = 0; i < SOURCE_FILE_NUM; i++) {
+                sourceFiles[i] = new File(KNLimit.getSourceDataFileName(i));
+            }
+            return sourceFiles;
+        }
+        String[] names = SOURCE_FILES.split(",");
+        File[] sourceFiles = new File[names.length];
+        for (int i = 0; i < names.length; i++) {
+            sourceFiles[i] = new File(names[i].trim());
+        }
+        return sourceFiles;
+    }
+}
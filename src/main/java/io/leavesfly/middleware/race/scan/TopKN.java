@@ -0,0 +1,500 @@
+package io.leavesfly.middleware.race.scan;
+
+import io.leavesfly.middleware.race.KNLimit;
+import io.leavesfly.middleware.race.util.Introselect;
+import io.leavesfly.middleware.race.util.ResultWriter;
+import io.leavesfly.middleware.race.v2.SourceSplit;
+import io.leavesfly.middleware.race.v2.SplitReader;
+import org.apache.log4j.FileAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * TopKN单次扫描版本：不建索引、不写任何中间文件，适合只查询一次的临时数据集
+ * 1. 第一遍扫描统计可排序键（翻转符号位后的值）高16位的直方图，按前缀和定位名次k和k + n - 1所在的区间；
+ *    直方图在进程内缓存，同一进程的后续查询不再重扫
+ * 2. 候选区间的数据量超过MAX_CANDIDATES时，再扫一遍只统计两个边界区间按键的下一个16位划分的直方图，逐层缩小
+ * 3. 最后一遍只把候选区间内的值收集到内存，做区间选择后取出窗口；已细分到单个值的边界不收集，按计数直接填充
+ * 均匀数据下一共两遍顺序扫描，数据倾斜时每多细分一层多扫一遍；扫描沿用v2的分片读取器，各线程独立统计后合并
+ */
+public class TopKN implements KNLimit {
+
+    public static final Logger logger = Logger.getLogger(TopKN.class);
+
+    private static final String LOG_FILE = LOG_DIR + "scan_log";
+
+    // 第一遍扫描得到的直方图前缀和，区间i的名次范围为[prefix[i], prefix[i + 1])
+    private static volatile long[] cachedPrefix = null;
+    private static final Object cacheLock = new Object();
+
+    static {
+        Logger rootLogger = Logger.getRootLogger();
+        rootLogger.setLevel(Level.INFO);
+        try {
+            rootLogger.addAppender(new FileAppender(
+                    new PatternLayout("%d{DATE} %-4r [%t] %-5p %c %x - %m%n"), LOG_FILE));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        new File(RESULT_DIR).mkdirs();
+    }
+
+    /**
+     * 扫描线程独占的访问器，每个解析出的值调用一次
+     */
+    private interface ValueVisitor {
+        void visit(long value);
+    }
+
+    /**
+     * 名次所在的键区间：键的高bits位等于prefix，rankBefore为比区间内所有值都小的数据个数，count为区间内的数据量
+     */
+    private static class Boundary {
+        final long prefix;
+        final int bits;
+        final long rankBefore;
+        final long count;
+
+        Boundary(long prefix, int bits, long rankBefore, long count) {
+            this.prefix = prefix;
+            this.bits = bits;
+            this.rankBefore = rankBefore;
+            this.count = count;
+        }
+
+        long firstKey() {
+            return prefix;
+        }
+
+        long lastKey() {
+            return isSingleValue() ? prefix : prefix | (-1L >>> bits);
+        }
+
+        boolean isSingleValue() {
+            return bits == 64;
+        }
+
+        boolean sameAs(Boundary other) {
+            return prefix == other.prefix && bits == other.bits;
+        }
+    }
+
+    @Override
+    public void init() {
+        logger.info("单次扫描模式不构建索引，查询时直接扫描源文件");
+    }
+
+    @Override
+    public void processTopKN(long k, int n) {
+        long queryStart = System.currentTimeMillis();
+        try {
+            ResultWriter.writeResult(RESULT_DIR + RESULT_NAME, queryTopKN(k, n));
+            logger.info("查询完成，耗时: " + (System.currentTimeMillis() - queryStart) + "ms");
+        } catch (Exception e) {
+            logger.error("查询失败: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public long[] queryTopKN(long k, int n) {
+        try {
+            long[] prefix = getOrScanHistogram();
+            long total = prefix[AppConstants.HISTOGRAM_SIZE];
+            if (k >= total) {
+                return new long[0];
+            }
+            n = (int) Math.min(n, total - k);
+
+            Boundary low = locate(prefix, k);
+            Boundary high = locate(prefix, k + n - 1);
+            int pass = 1;
+            while (candidateNum(low, high) > AppConstants.MAX_CANDIDATES
+                    && !(low.isSingleValue() && high.isSingleValue())) {
+                Boundary[] refined = refine(low, high, k, k + n - 1);
+                low = refined[0];
+                high = refined[1];
+                logger.info("第" + (++pass) + "遍扫描细分到" + low.bits + "/" + high.bits + "位，候选"
+                        + candidateNum(low, high) + "个");
+            }
+            return collectWindow(low, high, k, n);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("查询失败: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 每个查询至少一遍扫描，批量查询逐个执行
+     */
+    @Override
+    public long[][] queryTopKN(long[] ks, int[] ns) {
+        if (ks.length != ns.length) {
+            throw new IllegalArgumentException("ks与ns长度不一致");
+        }
+        long[][] results = new long[ks.length][];
+        for (int q = 0; q < ks.length; q++) {
+            results[q] = queryTopKN(ks[q], ns[q]);
+        }
+        return results;
+    }
+
+    @Override
+    public long[] queryTopKNDesc(long k, int n) {
+        long total;
+        try {
+            total = getOrScanHistogram()[AppConstants.HISTOGRAM_SIZE];
+        } catch (Exception e) {
+            throw new IllegalStateException("查询失败: " + e.getMessage(), e);
+        }
+        if (k >= total) {
+            return new long[0];
+        }
+        long end = total - k;
+        int num = (int) Math.min(n, end);
+        return KNLimit.reverse(queryTopKN(end - num, num));
+    }
+
+    /**
+     * 一遍扫描统计小于v的个数
+     */
+    @Override
+    public long rankOf(long v) {
+        return v == Long.MIN_VALUE ? 0 : countBetween(Long.MIN_VALUE, v - 1);
+    }
+
+    /**
+     * 一遍扫描统计[a, b]内的个数
+     */
+    @Override
+    public long countBetween(final long a, final long b) {
+        if (a > b) {
+            return 0;
+        }
+        final long[] threadCounts = new long[AppConstants.SCAN_THREAD_NUM];
+        ValueVisitor[] visitors = new ValueVisitor[threadCounts.length];
+        for (int t = 0; t < visitors.length; t++) {
+            final int worker = t;
+            visitors[t] = new ValueVisitor() {
+                public void visit(long value) {
+                    if (value >= a && value <= b) {
+                        threadCounts[worker]++;
+                    }
+                }
+            };
+        }
+        try {
+            scan(visitors);
+        } catch (Exception e) {
+            throw new IllegalStateException("区间计数失败: " + e.getMessage(), e);
+        }
+        long count = 0;
+        for (long threadCount : threadCounts) {
+            count += threadCount;
+        }
+        return count;
+    }
+
+    /**
+     * 获取或扫描得到高16位直方图的前缀和
+     */
+    private long[] getOrScanHistogram() throws Exception {
+        if (cachedPrefix != null) {
+            return cachedPrefix;
+        }
+        synchronized (cacheLock) {
+            if (cachedPrefix == null) {
+                long startTime = System.currentTimeMillis();
+                final long[][] threadCounts = new long[AppConstants.SCAN_THREAD_NUM][AppConstants.HISTOGRAM_SIZE];
+                ValueVisitor[] visitors = new ValueVisitor[threadCounts.length];
+                for (int t = 0; t < visitors.length; t++) {
+                    final long[] counts = threadCounts[t];
+                    visitors[t] = new ValueVisitor() {
+                        public void visit(long value) {
+                            counts[(int) (sortableKey(value) >>> (64 - AppConstants.HISTOGRAM_BITS))]++;
+                        }
+                    };
+                }
+                scan(visitors);
+
+                long[] prefix = new long[AppConstants.HISTOGRAM_SIZE + 1];
+                for (int i = 0; i < AppConstants.HISTOGRAM_SIZE; i++) {
+                    long count = 0;
+                    for (long[] counts : threadCounts) {
+                        count += counts[i];
+                    }
+                    prefix[i + 1] = prefix[i] + count;
+                }
+                cachedPrefix = prefix;
+                logger.info("第1遍扫描完成，数据总量: " + prefix[AppConstants.HISTOGRAM_SIZE] + "，耗时: "
+                        + (System.currentTimeMillis() - startTime) + "ms");
+            }
+            return cachedPrefix;
+        }
+    }
+
+    /**
+     * 按第一遍的前缀和定位名次rank所在的高16位区间
+     */
+    private static Boundary locate(long[] prefix, long rank) {
+        int base = 0;
+        int len = AppConstants.HISTOGRAM_SIZE;
+        while (len > 1) {
+            int half = len >>> 1;
+            base = prefix[base + half] <= rank ? base + half : base;
+            len -= half;
+        }
+        return new Boundary((long) base << (64 - AppConstants.HISTOGRAM_BITS), AppConstants.HISTOGRAM_BITS,
+                prefix[base], prefix[base + 1] - prefix[base]);
+    }
+
+    /**
+     * 需要收集到内存的数据量：两个边界之间的全部数据，已细分到单个值的边界除外
+     */
+    private static long candidateNum(Boundary low, Boundary high) {
+        long num = high.rankBefore + high.count - low.rankBefore;
+        if (low.isSingleValue()) {
+            num -= low.count;
+        }
+        if (high.isSingleValue() && !high.sameAs(low)) {
+            num -= high.count;
+        }
+        return num;
+    }
+
+    /**
+     * 一遍扫描同时细分两个边界：各自统计键的下一个16位的直方图，再定位名次所在的子区间
+     */
+    private Boundary[] refine(Boundary low, Boundary high, long lowRank, long highRank) throws Exception {
+        long startTime = System.currentTimeMillis();
+        final boolean same = low.sameAs(high);
+        final boolean refineLow = !low.isSingleValue();
+        final boolean refineHigh = !same && !high.isSingleValue();
+        final int lowShift = 64 - low.bits;
+        final int highShift = 64 - high.bits;
+        final long lowExpected = low.prefix >>> lowShift;
+        final long highExpected = high.prefix >>> highShift;
+        final int mask = AppConstants.HISTOGRAM_SIZE - 1;
+
+        final long[][][] threadHistograms = new long[AppConstants.SCAN_THREAD_NUM][2][];
+        ValueVisitor[] visitors = new ValueVisitor[threadHistograms.length];
+        for (int t = 0; t < visitors.length; t++) {
+            final long[] lowHistogram = refineLow ? new long[AppConstants.HISTOGRAM_SIZE] : null;
+            final long[] highHistogram = refineHigh ? new long[AppConstants.HISTOGRAM_SIZE] : null;
+            threadHistograms[t][0] = lowHistogram;
+            threadHistograms[t][1] = highHistogram;
+            visitors[t] = new ValueVisitor() {
+                public void visit(long value) {
+                    long key = sortableKey(value);
+                    if (refineLow && key >>> lowShift == lowExpected) {
+                        lowHistogram[(int) ((key >>> (lowShift - AppConstants.HISTOGRAM_BITS)) & mask)]++;
+                    } else if (refineHigh && key >>> highShift == highExpected) {
+                        highHistogram[(int) ((key >>> (highShift - AppConstants.HISTOGRAM_BITS)) & mask)]++;
+                    }
+                }
+            };
+        }
+        scan(visitors);
+
+        Boundary newLow = refineLow ? descend(low, mergeHistograms(threadHistograms, 0), lowRank) : low;
+        Boundary newHigh;
+        if (same) {
+            newHigh = refineLow ? descend(high, mergeHistograms(threadHistograms, 0), highRank) : high;
+        } else {
+            newHigh = refineHigh ? descend(high, mergeHistograms(threadHistograms, 1), highRank) : high;
+        }
+        logger.info("细分扫描耗时: " + (System.currentTimeMillis() - startTime) + "ms");
+        return new Boundary[]{newLow, newHigh};
+    }
+
+    private static long[] mergeHistograms(long[][][] threadHistograms, int index) {
+        long[] histogram = new long[AppConstants.HISTOGRAM_SIZE];
+        for (long[][] histograms : threadHistograms) {
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] += histograms[index][i];
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * 在边界区间的下一层直方图中定位名次rank所在的子区间
+     */
+    private static Boundary descend(Boundary boundary, long[] histogram, long rank) {
+        long seen = 0;
+        for (int sub = 0; sub < histogram.length; sub++) {
+            if (boundary.rankBefore + seen + histogram[sub] > rank) {
+                int bits = boundary.bits + AppConstants.HISTOGRAM_BITS;
+                return new Boundary(boundary.prefix | ((long) sub << (64 - bits)), bits,
+                        boundary.rankBefore + seen, histogram[sub]);
+            }
+            seen += histogram[sub];
+        }
+        throw new IllegalStateException("源文件在两遍扫描之间发生了变化");
+    }
+
+    /**
+     * 最后一遍扫描：收集两个边界之间的值，选出窗口；细分到单个值的边界按计数填充
+     */
+    private long[] collectWindow(Boundary low, Boundary high, long k, int n) throws Exception {
+        long startTime = System.currentTimeMillis();
+        boolean lowSingle = low.isSingleValue();
+        boolean highSingle = high.isSingleValue() && !high.sameAs(low);
+        int candidateNum = (int) candidateNum(low, high);
+
+        long[] middle = new long[0];
+        if (candidateNum > 0) {
+            // 候选区间的键范围，排除单值边界后转回原值比较
+            long fromValue = sortableKey(lowSingle ? low.firstKey() + 1 : low.firstKey());
+            long toValue = sortableKey(highSingle ? high.lastKey() - 1 : high.lastKey());
+            middle = scanRange(fromValue, toValue, candidateNum);
+        }
+
+        long[] result = new long[n];
+        int pos = 0;
+        long skip = k - low.rankBefore;
+        if (lowSingle) {
+            long take = Math.min(low.count - skip, n);
+            if (take > 0) {
+                Arrays.fill(result, 0, (int) take, sortableKey(low.prefix));
+                pos = (int) take;
+            }
+            skip = Math.max(0, skip - low.count);
+        }
+        if (pos < n && skip < middle.length) {
+            int from = (int) skip;
+            int to = (int) Math.min(middle.length, skip + n - pos);
+            Introselect.selectRange(middle, 0, middle.length, from, to);
+            System.arraycopy(middle, from, result, pos, to - from);
+            pos += to - from;
+        }
+        if (pos < n && highSingle) {
+            Arrays.fill(result, pos, n, sortableKey(high.prefix));
+            pos = n;
+        }
+        if (pos < n) {
+            throw new IllegalStateException("源文件在两遍扫描之间发生了变化");
+        }
+        logger.info("收集" + candidateNum + "个候选值并选出窗口，耗时: " + (System.currentTimeMillis() - startTime) + "ms");
+        return result;
+    }
+
+    /**
+     * 一遍扫描收集[fromValue, toValue]内的值，各线程先收集到自己的数组再拼接
+     */
+    private long[] scanRange(final long fromValue, final long toValue, int expected) throws Exception {
+        final long[][] threadValues = new long[AppConstants.SCAN_THREAD_NUM][];
+        final int[] threadSizes = new int[threadValues.length];
+        ValueVisitor[] visitors = new ValueVisitor[threadValues.length];
+        final int initialSize = Math.max(16, expected / threadValues.length);
+        for (int t = 0; t < visitors.length; t++) {
+            final int worker = t;
+            threadValues[t] = new long[initialSize];
+            visitors[t] = new ValueVisitor() {
+                public void visit(long value) {
+                    if (value < fromValue || value > toValue) {
+                        return;
+                    }
+                    long[] values = threadValues[worker];
+                    if (threadSizes[worker] == values.length) {
+                        values = Arrays.copyOf(values, values.length * 2);
+                        threadValues[worker] = values;
+                    }
+                    values[threadSizes[worker]++] = value;
+                }
+            };
+        }
+        scan(visitors);
+
+        long[] values = new long[expected];
+        int pos = 0;
+        for (int t = 0; t < threadValues.length; t++) {
+            if (pos + threadSizes[t] > expected) {
+                throw new IllegalStateException("源文件在两遍扫描之间发生了变化");
+            }
+            System.arraycopy(threadValues[t], 0, values, pos, threadSizes[t]);
+            pos += threadSizes[t];
+        }
+        if (pos != expected) {
+            throw new IllegalStateException("源文件在两遍扫描之间发生了变化");
+        }
+        return values;
+    }
+
+    /**
+     * 多线程顺序扫描所有源文件分片，每个线程把解析出的值交给自己独占的访问器
+     */
+    private void scan(ValueVisitor[] visitors) throws Exception {
+        File[] sourceFiles = AppConstants.getSourceFiles();
+        int threadNum = visitors.length;
+        int splitsPerFile = Math.max(1, (threadNum * 2 + sourceFiles.length - 1) / sourceFiles.length);
+        final List<SourceSplit> splits = SourceSplit.buildSourceSplits(sourceFiles, splitsPerFile);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadNum);
+        final AtomicInteger nextSplit = new AtomicInteger(0);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(threadNum);
+        for (final ValueVisitor visitor : visitors) {
+            executor.submit(new Runnable() {
+                public void run() {
+                    long[] batch = new long[AppConstants.READ_BATCH_SIZE];
+                    try {
+                        int index;
+                        while ((index = nextSplit.getAndIncrement()) < splits.size() && failure.get() == null) {
+                            SplitReader reader = splits.get(index).openReader();
+                            try {
+                                int size;
+                                while ((size = reader.read(batch)) > 0) {
+                                    for (int i = 0; i < size; i++) {
+                                        visitor.visit(batch[i]);
+                                    }
+                                }
+                            } finally {
+                                reader.close();
+                            }
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        latch.await();
+        executor.shutdown();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * 翻转符号位，键按无符号比较的顺序与值按有符号比较的顺序相同，变换是自逆的
+     */
+    private static long sortableKey(long value) {
+        return value ^ Long.MIN_VALUE;
+    }
+
+    public static void main(String[] args) {
+        TopKN topKN = new TopKN();
+        topKN.init();
+
+        long time = System.currentTimeMillis();
+        if (args.length >= 2) {
+            topKN.processTopKN(Long.valueOf(args[0]), Integer.valueOf(args[1]));
+        }
+        logger.info("总耗时: " + (System.currentTimeMillis() - time) + "ms");
+    }
+}
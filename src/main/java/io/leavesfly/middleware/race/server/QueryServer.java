@@ -0,0 +1,137 @@
+package io.leavesfly.middleware.race.server;
+
+import io.leavesfly.middleware.race.KNLimit;
+import io.leavesfly.middleware.race.util.ResultWriter;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 常驻查询服务：进程启动时构建或加载一次索引，之后按行协议回答任意多个(k, n)查询
+ * 请求为一行"k n"（降序分页为"k n desc"），响应为一行以空格分隔的结果，出错时响应"ERR 原因"，"QUIT"结束当前会话；
+ * 不指定端口时从标准输入读请求、向标准输出写响应，指定端口时只监听本机回环地址，每个连接一个线程
+ * <p>
+ * 用法：java io.leavesfly.middleware.race.server.QueryServer &lt;v1|v2&gt; [port]
+ */
+public class QueryServer {
+
+    private final KNLimit knLimit;
+
+    public QueryServer(KNLimit knLimit) {
+        this.knLimit = knLimit;
+    }
+
+    /**
+     * 处理一个会话上的全部请求，直到输入结束或收到QUIT
+     * 结果直接格式化成字节写出，不经过String
+     */
+    public void serve(BufferedReader reader, OutputStream out) throws IOException {
+        WritableByteChannel channel = Channels.newChannel(out);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if ("QUIT".equalsIgnoreCase(line)) {
+                break;
+            }
+            long[] result;
+            try {
+                result = handle(line);
+            } catch (IllegalArgumentException e) {
+                out.write(("ERR " + e.getMessage() + "\n").getBytes("UTF-8"));
+                out.flush();
+                continue;
+            }
+            ResultWriter.writeDecimal(channel, result, (byte) ' ');
+            out.flush();
+        }
+    }
+
+    /**
+     * 处理一条请求，请求不合法或查询失败时抛出IllegalArgumentException，消息即错误原因
+     */
+    long[] handle(String request) {
+        String[] parts = request.split("\\s+");
+        boolean descending = parts.length == 3 && "desc".equalsIgnoreCase(parts[2]);
+        if (parts.length != 2 && !descending) {
+            throw new IllegalArgumentException("请求格式应为: k n [desc]");
+        }
+        long k;
+        int n;
+        try {
+            k = Long.parseLong(parts[0]);
+            n = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("无法解析数字: " + request);
+        }
+        if (k < 0 || n <= 0) {
+            throw new IllegalArgumentException("要求k >= 0且n > 0");
+        }
+
+        try {
+            return descending ? knLimit.queryTopKNDesc(k, n) : knLimit.queryTopKN(k, n);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 监听本机回环地址上的端口，每个连接由一个线程处理
+     */
+    public void listen(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                executor.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            serve(new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8")),
+                                    new BufferedOutputStream(socket.getOutputStream()));
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            serverSocket.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("用法: QueryServer <v1|v2> [port]");
+            return;
+        }
+        KNLimit knLimit = "v1".equals(args[0])
+                ? new io.leavesfly.middleware.race.v1.TopKN() : new io.leavesfly.middleware.race.v2.TopKN();
+        knLimit.init();
+        // 预先加载索引，第一个请求不再承担加载开销
+        knLimit.queryTopKN(0, 1);
+
+        QueryServer server = new QueryServer(knLimit);
+        if (args.length > 1) {
+            server.listen(Integer.parseInt(args[1]));
+        } else {
+            server.serve(new BufferedReader(new InputStreamReader(System.in, "UTF-8")),
+                    new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        }
+    }
+}
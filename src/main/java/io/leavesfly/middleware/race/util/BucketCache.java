@@ -0,0 +1,192 @@
+package io.leavesfly.middleware.race.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按字节数限额的桶数据缓存，缓存解码并排好序的long数组，键为桶号
+ * 采用分段LRU抗扫描：新加载的桶进入试用段，再次命中才晋升到保护段（最多占限额的80%），
+ * 淘汰总是先从试用段的最久未用者开始，一次性扫过大量桶不会冲掉反复访问的热点桶；
+ * 多个线程同时读取同一个未缓存的桶时只加载一次
+ * 返回的数组由缓存共享，调用方不能修改
+ */
+public class BucketCache {
+
+    /**
+     * 缓存未命中时加载一个桶，返回排好序的数据
+     */
+    public interface Loader {
+        long[] load(int bucketId) throws IOException;
+    }
+
+    private static final int LONG_BYTE = 8;
+
+    private final long maxBytes;
+    private final long maxProtectedBytes;
+
+    // 两个段都按访问顺序排列，迭代器的第一个元素最久未用
+    private final LinkedHashMap<Integer, long[]> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Integer, long[]> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes;
+    private long protectedBytes;
+
+    // 正在加载的桶，同一个桶的并发请求共享一次加载
+    private final ConcurrentHashMap<Integer, FutureTask<long[]>> loading = new ConcurrentHashMap<>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public BucketCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.maxProtectedBytes = maxBytes / 5 * 4;
+    }
+
+    /**
+     * 获取桶数据，未缓存时通过loader加载并放入缓存
+     */
+    public long[] get(final int bucketId, final Loader loader) throws IOException {
+        long[] values = lookup(bucketId);
+        if (values != null) {
+            hitCount.incrementAndGet();
+            return values;
+        }
+        missCount.incrementAndGet();
+
+        FutureTask<long[]> task = new FutureTask<>(new Callable<long[]>() {
+            public long[] call() throws Exception {
+                loadCount.incrementAndGet();
+                long[] loaded = loader.load(bucketId);
+                put(bucketId, loaded);
+                return loaded;
+            }
+        });
+        FutureTask<long[]> running = loading.putIfAbsent(bucketId, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                // 已放入缓存后再移除，后来的请求要么命中缓存，要么共享这次加载
+                loading.remove(bucketId, task);
+            }
+        }
+
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("等待桶" + bucketId + "加载时被中断");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("加载桶" + bucketId + "失败", cause);
+        }
+    }
+
+    private synchronized long[] lookup(int bucketId) {
+        long[] values = protectedSegment.get(bucketId);
+        if (values != null) {
+            return values;
+        }
+        values = probation.remove(bucketId);
+        if (values == null) {
+            return null;
+        }
+
+        // 试用段再次命中，晋升到保护段，保护段超额时把最久未用的降回试用段
+        probationBytes -= bytesOf(values);
+        protectedSegment.put(bucketId, values);
+        protectedBytes += bytesOf(values);
+        while (protectedBytes > maxProtectedBytes && protectedSegment.size() > 1) {
+            Map.Entry<Integer, long[]> eldest = removeEldest(protectedSegment);
+            protectedBytes -= bytesOf(eldest.getValue());
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += bytesOf(eldest.getValue());
+        }
+        evictIfNeeded();
+        return values;
+    }
+
+    private synchronized void put(int bucketId, long[] values) {
+        long bytes = bytesOf(values);
+        if (bytes > maxBytes || protectedSegment.containsKey(bucketId) || probation.containsKey(bucketId)) {
+            return;
+        }
+        probation.put(bucketId, values);
+        probationBytes += bytes;
+        evictIfNeeded();
+    }
+
+    private void evictIfNeeded() {
+        while (probationBytes + protectedBytes > maxBytes) {
+            if (!probation.isEmpty()) {
+                probationBytes -= bytesOf(removeEldest(probation).getValue());
+            } else {
+                protectedBytes -= bytesOf(removeEldest(protectedSegment).getValue());
+            }
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    private static Map.Entry<Integer, long[]> removeEldest(LinkedHashMap<Integer, long[]> segment) {
+        Iterator<Map.Entry<Integer, long[]>> iterator = segment.entrySet().iterator();
+        Map.Entry<Integer, long[]> eldest = iterator.next();
+        iterator.remove();
+        return eldest;
+    }
+
+    private static long bytesOf(long[] values) {
+        return (long) values.length * LONG_BYTE;
+    }
+
+    /**
+     * 清空缓存，计数保留
+     */
+    public synchronized void clear() {
+        probation.clear();
+        protectedSegment.clear();
+        probationBytes = 0;
+        protectedBytes = 0;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public synchronized long getUsedBytes() {
+        return probationBytes + protectedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "BucketCache{hit=" + getHitCount() + ", miss=" + getMissCount() + ", load=" + getLoadCount()
+                + ", eviction=" + getEvictionCount() + ", usedBytes=" + getUsedBytes() + "/" + maxBytes + "}";
+    }
+}
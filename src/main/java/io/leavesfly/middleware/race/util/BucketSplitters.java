@@ -0,0 +1,67 @@
+package io.leavesfly.middleware.race.util;
+
+/**
+ * 按分位点划分的桶边界，第b个桶包含[splitters[b-1], splitters[b])内的值
+ * 先用值的高16位查提示表缩小范围，再在范围内二分，均匀数据下几乎是O(1)
+ */
+public class BucketSplitters {
+
+    private static final int HINT_BITS = 16;
+
+    private final long[] splitters;
+    // hints[p]：第一个高16位（按有符号顺序）不小于p的分位点下标
+    private final int[] hints;
+
+    public BucketSplitters(long[] splitters) {
+        this.splitters = splitters;
+        this.hints = new int[(1 << HINT_BITS) + 1];
+        int index = 0;
+        for (int prefix = 0; prefix <= (1 << HINT_BITS); prefix++) {
+            while (index < splitters.length && prefixOf(splitters[index]) < prefix) {
+                index++;
+            }
+            hints[prefix] = index;
+        }
+    }
+
+    /**
+     * 值所属的桶号，范围[0, getBucketNum())
+     */
+    public int bucketOf(long value) {
+        int prefix = prefixOf(value);
+        int low = hints[prefix];
+        int high = hints[prefix + 1];
+        // 统计不大于value的分位点个数
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (splitters[middle] <= value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 桶内最小可能值
+     */
+    public long lowerBound(int bucketId) {
+        return bucketId == 0 ? Long.MIN_VALUE : splitters[bucketId - 1];
+    }
+
+    public int getBucketNum() {
+        return splitters.length + 1;
+    }
+
+    public long[] getSplitters() {
+        return splitters;
+    }
+
+    /**
+     * 翻转符号位后取高16位，保持有符号long的大小顺序
+     */
+    private static int prefixOf(long value) {
+        return (int) ((value ^ Long.MIN_VALUE) >>> (64 - HINT_BITS));
+    }
+}
@@ -0,0 +1,205 @@
+package io.leavesfly.middleware.race.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 构建清单：记录构建过程中已完成并落盘的步骤，进程中途退出后重新构建时只补做缺失的部分
+ * 清单是只追加的文本文件，每行一条记录"key value crc"，crc为该行前半部分的CRC32，写入后立即force到磁盘；
+ * 第一条记录是构建指纹（源文件和构建参数），指纹不符时整个清单作废；末尾没写完的行在打开时截掉。
+ * 记录的值一般是对应文件的CRC32，复用之前重新计算比对，文件被改动或没写完时重做该步骤
+ */
+public class BuildManifest {
+
+    private static final String FINGERPRINT_KEY = "fingerprint";
+    private static final int CHECKSUM_BUFFER_SIZE = 1024 * 1024;
+
+    private final File file;
+    private final Map<String, String> entries = new HashMap<>();
+    private final FileChannel channel;
+
+    private BuildManifest(File file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * 打开清单，已有清单的指纹与本次构建相同时保留其中的记录，否则清空重新开始
+     */
+    public static BuildManifest open(File file, String fingerprint) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        BuildManifest manifest = new BuildManifest(file, randomAccessFile.getChannel());
+        byte[] bytes = new byte[(int) randomAccessFile.length()];
+        randomAccessFile.readFully(bytes);
+
+        // 逐行校验，遇到第一条损坏的记录即停止
+        int validLength = 0;
+        int lineStart = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != '\n') {
+                continue;
+            }
+            String line = new String(bytes, lineStart, i - lineStart, StandardCharsets.UTF_8);
+            int first = line.indexOf(' ');
+            int last = line.lastIndexOf(' ');
+            if (first <= 0 || last <= first || !line.substring(last + 1).equals(crcOf(line.substring(0, last)))) {
+                break;
+            }
+            manifest.entries.put(line.substring(0, first), line.substring(first + 1, last));
+            lineStart = i + 1;
+            validLength = lineStart;
+        }
+
+        if (!fingerprint.equals(manifest.entries.get(FINGERPRINT_KEY))) {
+            manifest.entries.clear();
+            randomAccessFile.setLength(0);
+            manifest.commit(FINGERPRINT_KEY, fingerprint);
+        } else {
+            randomAccessFile.setLength(validLength);
+        }
+        return manifest;
+    }
+
+    /**
+     * 由源文件（路径、长度、修改时间）和影响构建结果的参数组成的指纹，不含空白字符
+     */
+    public static String fingerprint(File[] sourceFiles, String settings) {
+        StringBuilder builder = new StringBuilder(settings.replaceAll("\\s", "_"));
+        for (File sourceFile : sourceFiles) {
+            builder.append(';').append(sourceFile.getPath().replaceAll("\\s", "_"))
+                    .append(':').append(sourceFile.length()).append(':').append(sourceFile.lastModified());
+        }
+        return builder.toString();
+    }
+
+    public synchronized String get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * 除构建指纹外的所有key
+     */
+    public synchronized List<String> keys() {
+        List<String> keys = new ArrayList<>(entries.keySet());
+        keys.remove(FINGERPRINT_KEY);
+        return keys;
+    }
+
+    /**
+     * 追加一条记录并落盘，key和value不能含空白字符
+     */
+    public synchronized void commit(String key, String value) throws IOException {
+        String record = key + " " + value;
+        ByteBuffer buffer = ByteBuffer.wrap((record + " " + crcOf(record) + "\n").getBytes(StandardCharsets.UTF_8));
+        long position = channel.size();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        channel.force(false);
+        entries.put(key, value);
+    }
+
+    /**
+     * 记录的值是否等于文件当前的CRC32，文件不存在时返回false
+     */
+    public boolean matchesChecksum(String key, File target) throws IOException {
+        String expected = get(key);
+        return expected != null && target.isFile() && expected.equals(Long.toHexString(checksum(target)));
+    }
+
+    /**
+     * 构建完成并发布索引后删除清单
+     */
+    public void delete() {
+        close();
+        file.delete();
+    }
+
+    /**
+     * 关闭清单，保留文件
+     */
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static long checksum(File target) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[CHECKSUM_BUFFER_SIZE];
+        FileInputStream inputStream = new FileInputStream(target);
+        try {
+            int readSize;
+            while ((readSize = inputStream.read(buffer)) > 0) {
+                crc.update(buffer, 0, readSize);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * 把文件内容强制写到磁盘
+     */
+    public static void force(File target) throws IOException {
+        FileChannel fileChannel = new RandomAccessFile(target, "rw").getChannel();
+        try {
+            fileChannel.force(true);
+        } finally {
+            fileChannel.close();
+        }
+    }
+
+    /**
+     * 写出long数组并落盘，返回文件内容的CRC32
+     */
+    public static long writeLongs(File target, long[] values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 8);
+        buffer.asLongBuffer().put(values);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array());
+        FileChannel fileChannel = new FileOutputStream(target).getChannel();
+        try {
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer);
+            }
+            fileChannel.force(true);
+        } finally {
+            fileChannel.close();
+        }
+        return crc.getValue();
+    }
+
+    public static long[] readLongs(File target) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(target, "r");
+        try {
+            byte[] bytes = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(bytes);
+            long[] values = new long[bytes.length / 8];
+            ByteBuffer.wrap(bytes).asLongBuffer().get(values);
+            return values;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static String crcOf(String record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+}
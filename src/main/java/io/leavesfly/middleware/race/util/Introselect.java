@@ -0,0 +1,75 @@
+package io.leavesfly.middleware.race.util;
+
+import java.util.Arrays;
+
+/**
+ * long数组的区间选择：只把排序后下标落在指定窗口内的值放到位并排好序，平均O(m)
+ * 快速选择使用三数取中和三路划分（大量重复值时不退化），递归过深时退回整体排序
+ */
+public class Introselect {
+
+    // 小于该长度的区间直接排序
+    private static final int SMALL_RANGE = 16;
+
+    /**
+     * 处理后values[rangeFrom, rangeTo)与对[from, to)整体排序后的结果相同，
+     * 其余位置只保证左边不大于窗口、右边不小于窗口
+     */
+    public static void selectRange(long[] values, int from, int to, int rangeFrom, int rangeTo) {
+        if (rangeFrom >= rangeTo) {
+            return;
+        }
+        select(values, from, to, rangeFrom);
+        if (rangeTo - rangeFrom > 1) {
+            select(values, rangeFrom + 1, to, rangeTo - 1);
+            Arrays.sort(values, rangeFrom + 1, rangeTo - 1);
+        }
+    }
+
+    /**
+     * 使values[k]为[from, to)排序后下标k处的值，左边不大于它，右边不小于它
+     */
+    public static void select(long[] values, int from, int to, int k) {
+        int depthLimit = 2 * (32 - Integer.numberOfLeadingZeros(to - from));
+        while (to - from > SMALL_RANGE) {
+            if (depthLimit-- == 0) {
+                Arrays.sort(values, from, to);
+                return;
+            }
+
+            long pivot = medianOfThree(values[from], values[(from + to) >>> 1], values[to - 1]);
+            // 三路划分：[from, lt)小于pivot，[lt, gt)等于pivot，[gt, to)大于pivot
+            int lt = from;
+            int i = from;
+            int gt = to;
+            while (i < gt) {
+                long value = values[i];
+                if (value < pivot) {
+                    values[i++] = values[lt];
+                    values[lt++] = value;
+                } else if (value > pivot) {
+                    values[i] = values[--gt];
+                    values[gt] = value;
+                } else {
+                    i++;
+                }
+            }
+
+            if (k < lt) {
+                to = lt;
+            } else if (k >= gt) {
+                from = gt;
+            } else {
+                return;
+            }
+        }
+        Arrays.sort(values, from, to);
+    }
+
+    private static long medianOfThree(long a, long b, long c) {
+        if (a < b) {
+            return b < c ? b : (a < c ? c : a);
+        }
+        return a < c ? a : (b < c ? c : b);
+    }
+}
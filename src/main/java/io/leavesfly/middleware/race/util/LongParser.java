@@ -0,0 +1,158 @@
+package io.leavesfly.middleware.race.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 十进制long解析内核，v1和v2共用
+ * 按SWAR方式每次读取8个字节：一次位运算定位换行符，一次乘法合并最多8位数字；
+ * 遇到负号、'\r'等非数字字符或缓冲区尾部不足时回退到逐字节解析
+ */
+public class LongParser {
+
+    private static final byte LINE_CODE = (byte) '\n';
+
+    private static final long ZERO_BYTES = 0x3030303030303030L;
+    private static final long LINE_BYTES = 0x0A0A0A0A0A0A0A0AL;
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long DIGIT_CHECK = 0x4646464646464646L;
+
+    // 一行最多20个字符加换行符，保证连续读3个long不越界
+    private static final int SWAR_LINE_BYTES = 24;
+
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L};
+
+    // 上次parseLines结束后第一个未解析字节的位置
+    private int position;
+
+    /**
+     * 从buffer的[from, limit)中解析以换行符结尾的完整行，依次填入values[offset...]
+     * 直到values填满或剩余字节不足一整行；空行被忽略。会把buffer的字节序设为小端
+     *
+     * @return 填充后values中的有效个数，结束位置通过getPosition()获取
+     */
+    public int parseLines(ByteBuffer buffer, int from, int limit, long[] values, int offset) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int pos = from;
+        int count = offset;
+        int swarLimit = limit - SWAR_LINE_BYTES;
+
+        while (count < values.length) {
+            int next = pos <= swarLimit ? parseLineSwar(buffer, pos, values, count) : -1;
+            if (next < 0) {
+                // 回退到逐字节解析
+                int lineEnd = indexOfLineCode(buffer, pos, limit);
+                if (lineEnd < 0) {
+                    break;
+                }
+                if (hasDigit(buffer, pos, lineEnd)) {
+                    values[count] = parseLong(buffer, pos, lineEnd);
+                    next = lineEnd + 1;
+                } else {
+                    pos = lineEnd + 1;
+                    continue;
+                }
+            }
+            if (next - pos > 1) {
+                count++;
+            }
+            pos = next;
+        }
+        position = pos;
+        return count;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * SWAR解析从pos开始的一行，结果写入values[index]
+     *
+     * @return 下一行的起始位置，-1表示该行需要逐字节解析
+     */
+    private static int parseLineSwar(ByteBuffer buffer, int pos, long[] values, int index) {
+        long value = 0;
+        int p = pos;
+        for (int chunk = 0; chunk < 3; chunk++) {
+            long word = buffer.getLong(p);
+            long x = word ^ LINE_BYTES;
+            long lineMask = (x - LOW_BITS) & ~x & HIGH_BITS;
+            if (lineMask != 0) {
+                int len = Long.numberOfTrailingZeros(lineMask) >>> 3;
+                if (len > 0) {
+                    // 小端下首字符在低字节，左移后低位补'0'，即高位补前导零
+                    int shift = (8 - len) << 3;
+                    long digits = (word << shift) | (ZERO_BYTES >>> (64 - shift));
+                    if (!isAllDigits(digits)) {
+                        return -1;
+                    }
+                    value = value * POWERS_OF_TEN[len] + parseEightDigits(digits);
+                }
+                values[index] = value;
+                return p + len + 1;
+            }
+            if (!isAllDigits(word)) {
+                return -1;
+            }
+            value = value * POWERS_OF_TEN[8] + parseEightDigits(word);
+            p += 8;
+        }
+        return -1;
+    }
+
+    /**
+     * 8个字节是否全部是'0'~'9'
+     */
+    static boolean isAllDigits(long word) {
+        return (((word + DIGIT_CHECK) | (word - ZERO_BYTES)) & HIGH_BITS) == 0;
+    }
+
+    /**
+     * 把小端读入的8个数字字符转换成数值，三次乘法完成
+     */
+    static long parseEightDigits(long word) {
+        long value = word - ZERO_BYTES;
+        value = value * 10 + (value >>> 8);
+        return (((value & 0x000000FF000000FFL) * 0x000F424000000064L)
+                + (((value >>> 16) & 0x000000FF000000FFL) * 0x0000271000000001L)) >>> 32;
+    }
+
+    /**
+     * 逐字节解析buffer[from, to)，支持前导负号，忽略其他非数字字符
+     */
+    public static long parseLong(ByteBuffer buffer, int from, int to) {
+        long value = 0;
+        boolean negative = false;
+        for (int i = from; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+            } else if (b == '-') {
+                negative = true;
+            }
+        }
+        return negative ? -value : value;
+    }
+
+    public static boolean hasDigit(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOfLineCode(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == LINE_CODE) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,146 @@
+package io.leavesfly.middleware.race.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * LongParser自检：随机生成含19位数、负数、Long.MIN_VALUE/MAX_VALUE、"\r\n"行尾和空行的输入，
+ * 分别整块解析、按随机大小分块续读（行跨越缓冲区边界）、用很小的结果数组分批解析，与Long.parseLong的结果比对；
+ * 堆内和直接缓冲区各测一遍，结果不符时抛出IllegalStateException
+ * 用法：java LongParserCheck [行数] [轮数]
+ */
+public class LongParserCheck {
+
+    public static void main(String[] args) {
+        int lineNum = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        Random random = new Random(42);
+
+        for (int round = 0; round < rounds; round++) {
+            long[] expected = new long[lineNum];
+            StringBuilder text = new StringBuilder(lineNum * 21);
+            for (int i = 0; i < lineNum; i++) {
+                expected[i] = randomValue(random);
+                text.append(expected[i]);
+                text.append(random.nextInt(4) == 0 ? "\r\n" : "\n");
+                if (random.nextInt(50) == 0) {
+                    text.append(random.nextBoolean() ? "\n" : "\r\n");
+                }
+            }
+            byte[] bytes = text.toString().getBytes(StandardCharsets.US_ASCII);
+
+            for (boolean direct : new boolean[]{false, true}) {
+                check("整块解析", expected, parseWhole(bytes, direct));
+                check("分块续读", expected, parseChunked(bytes, direct, random));
+                check("小数组分批", expected, parseInBatches(bytes, direct, 1 + random.nextInt(7)));
+            }
+        }
+        System.out.println("LongParser自检通过：" + rounds + "轮，每轮" + lineNum + "行");
+    }
+
+    private static long randomValue(Random random) {
+        switch (random.nextInt(8)) {
+            case 0:
+                return Long.MAX_VALUE - random.nextInt(1000);
+            case 1:
+                return Long.MIN_VALUE + random.nextInt(1000);
+            case 2:
+                // 19位正数
+                return 1000000000000000000L + (random.nextLong() >>> 1) % 8000000000000000000L;
+            case 3:
+                return -(1000000000000000000L + (random.nextLong() >>> 1) % 8000000000000000000L);
+            case 4:
+                return random.nextInt(10);
+            case 5:
+                return -random.nextInt(100000);
+            case 6:
+                // 恰好8位和16位，换行符落在long的边界
+                return random.nextBoolean() ? 10000000L + random.nextInt(90000000)
+                        : 1000000000000000L + (random.nextLong() >>> 1) % 9000000000000000L;
+            default:
+                return random.nextLong();
+        }
+    }
+
+    private static ByteBuffer wrap(byte[] bytes, int from, int length, int capacity, boolean direct) {
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        buffer.put(bytes, from, length);
+        return buffer;
+    }
+
+    private static long[] parseWhole(byte[] bytes, boolean direct) {
+        ByteBuffer buffer = wrap(bytes, 0, bytes.length, bytes.length, direct);
+        long[] values = new long[bytes.length / 2 + 1];
+        LongParser parser = new LongParser();
+        int count = parser.parseLines(buffer, 0, bytes.length, values, 0);
+        if (parser.getPosition() != bytes.length) {
+            throw new IllegalStateException("整块解析未读完：" + parser.getPosition() + "/" + bytes.length);
+        }
+        return Arrays.copyOf(values, count);
+    }
+
+    /**
+     * 模拟按块读取文件：每次读入随机大小的一块，未解析完的尾部挪到缓冲区开头，与下一块拼成完整行
+     */
+    private static long[] parseChunked(byte[] bytes, boolean direct, Random random) {
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(4096) : ByteBuffer.allocate(4096);
+        long[] values = new long[bytes.length / 2 + 1];
+        int count = 0;
+        int read = 0;
+        int remaining = 0;
+        LongParser parser = new LongParser();
+        while (read < bytes.length) {
+            int chunk = Math.min(bytes.length - read, 1 + random.nextInt(buffer.capacity() - remaining));
+            buffer.clear();
+            buffer.position(remaining);
+            buffer.put(bytes, read, chunk);
+            read += chunk;
+            int limit = remaining + chunk;
+            count = parser.parseLines(buffer, 0, limit, values, count);
+            int pos = parser.getPosition();
+            remaining = limit - pos;
+            for (int i = 0; i < remaining; i++) {
+                buffer.put(i, buffer.get(pos + i));
+            }
+        }
+        if (remaining != 0) {
+            throw new IllegalStateException("分块续读剩余" + remaining + "字节未解析");
+        }
+        return Arrays.copyOf(values, count);
+    }
+
+    /**
+     * 结果数组很小时在数组填满处停下，下一批从getPosition()继续
+     */
+    private static long[] parseInBatches(byte[] bytes, boolean direct, int batchSize) {
+        ByteBuffer buffer = wrap(bytes, 0, bytes.length, bytes.length, direct);
+        long[] values = new long[bytes.length / 2 + 1];
+        long[] batch = new long[batchSize];
+        int count = 0;
+        int pos = 0;
+        LongParser parser = new LongParser();
+        while (pos < bytes.length) {
+            int size = parser.parseLines(buffer, pos, bytes.length, batch, 0);
+            if (size == 0 && parser.getPosition() == pos) {
+                throw new IllegalStateException("小数组分批解析停在" + pos + "，没有前进");
+            }
+            System.arraycopy(batch, 0, values, count, size);
+            count += size;
+            pos = parser.getPosition();
+        }
+        return Arrays.copyOf(values, count);
+    }
+
+    private static void check(String mode, long[] expected, long[] actual) {
+        if (expected.length != actual.length) {
+            throw new IllegalStateException(mode + "个数不符：" + actual.length + "，应为" + expected.length);
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] != actual[i]) {
+                throw new IllegalStateException(mode + "第" + i + "行结果错误：" + actual[i] + "，应为" + expected[i]);
+            }
+        }
+    }
+}
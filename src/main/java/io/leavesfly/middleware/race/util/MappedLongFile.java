@@ -0,0 +1,47 @@
+package io.leavesfly.middleware.race.util;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 按1GB分块映射的可读写文件区域，按相对区域起点的绝对字节位置读写long，可超过2GB
+ * 分块大小是8的倍数，位置8字节对齐时单个long不会跨块；不同线程写入不同位置时无需加锁
+ */
+public class MappedLongFile {
+
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+    private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final MappedByteBuffer[] chunks;
+
+    /**
+     * 映射文件的[base, base + size)区域，映射建立后channel可以关闭
+     */
+    public MappedLongFile(FileChannel channel, long base, long size) throws IOException {
+        int chunkNum = (int) ((size + CHUNK_MASK) >>> CHUNK_SHIFT);
+        chunks = new MappedByteBuffer[chunkNum];
+        for (int i = 0; i < chunkNum; i++) {
+            long offset = (long) i << CHUNK_SHIFT;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, base + offset, Math.min(CHUNK_SIZE, size - offset));
+        }
+    }
+
+    public void putLong(long position, long value) {
+        chunks[(int) (position >>> CHUNK_SHIFT)].putLong((int) (position & CHUNK_MASK), value);
+    }
+
+    public long getLong(long position) {
+        return chunks[(int) (position >>> CHUNK_SHIFT)].getLong((int) (position & CHUNK_MASK));
+    }
+
+    /**
+     * 把修改刷到磁盘
+     */
+    public void force() {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package io.leavesfly.middleware.race.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * 分桶前的采样预处理：在每个源文件中等距读取若干数据块，解析出样本后求分位点
+ * 适用于ID聚集、单调递增、小值偏多等非均匀分布，使每个桶的数据量大致相同
+ */
+public class QuantileSampler {
+
+    // 每个文件等距采样的块数
+    public static final int CHUNKS_PER_FILE = Integer.getInteger("topkn.sample.chunksPerFile", 256);
+    // 每个采样块的大小
+    public static final int CHUNK_BYTES = 64 * 1024;
+
+    private static final byte LINE_CODE = (byte) '\n';
+
+    /**
+     * 在每个文件中等距读取chunksPerFile个chunkBytes大小的块，返回其中所有完整行的值
+     */
+    public static long[] sample(File[] files, int chunksPerFile, int chunkBytes) throws IOException {
+        long[] samples = new long[1024];
+        int sampleNum = 0;
+        long[] values = new long[chunkBytes / 2 + 1];
+        ByteBuffer chunk = ByteBuffer.allocate(chunkBytes);
+        LongParser parser = new LongParser();
+
+        for (File file : files) {
+            FileChannel channel = new FileInputStream(file).getChannel();
+            try {
+                long fileSize = channel.size();
+                long step = fileSize / chunksPerFile;
+                // 文件较小时整个读完
+                int chunkNum = step < chunkBytes ? (int) ((fileSize + chunkBytes - 1) / chunkBytes) : chunksPerFile;
+                if (step < chunkBytes) {
+                    step = chunkBytes;
+                }
+                for (int c = 0; c < chunkNum; c++) {
+                    long position = c * step;
+                    chunk.clear();
+                    while (chunk.hasRemaining() && channel.read(chunk, position + chunk.position()) > 0) {
+                        // 读满或到文件尾
+                    }
+                    int limit = chunk.position();
+                    // 跳过不完整的首行
+                    int from = 0;
+                    if (position > 0) {
+                        while (from < limit && chunk.get(from) != LINE_CODE) {
+                            from++;
+                        }
+                        from++;
+                    }
+                    if (from >= limit) {
+                        continue;
+                    }
+                    int count = parser.parseLines(chunk, from, limit, values, 0);
+                    if (sampleNum + count > samples.length) {
+                        samples = Arrays.copyOf(samples, Math.max(samples.length * 2, sampleNum + count));
+                    }
+                    System.arraycopy(values, 0, samples, sampleNum, count);
+                    sampleNum += count;
+                }
+            } finally {
+                channel.close();
+            }
+        }
+        return Arrays.copyOf(samples, sampleNum);
+    }
+
+    /**
+     * 由样本计算bucketNum-1个分位点，样本会被原地排序；没有样本时返回null
+     */
+    public static long[] computeSplitters(long[] samples, int bucketNum) {
+        if (samples.length == 0) {
+            return null;
+        }
+        Arrays.parallelSort(samples);
+        long[] splitters = new long[bucketNum - 1];
+        for (int i = 0; i < splitters.length; i++) {
+            splitters[i] = samples[(int) ((long) (i + 1) * samples.length / bucketNum)];
+        }
+        return splitters;
+    }
+
+    /**
+     * 采样并计算分位点
+     */
+    public static BucketSplitters buildSplitters(File[] files, int bucketNum) throws IOException {
+        long[] splitters = computeSplitters(sample(files, CHUNKS_PER_FILE, CHUNK_BYTES), bucketNum);
+        return splitters == null ? null : new BucketSplitters(splitters);
+    }
+}
@@ -0,0 +1,113 @@
+package io.leavesfly.middleware.race.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * QuantileSketch自检：数据分给多个草图分别写入（模拟每个构建线程一个草图），逐个合并后再写出、读回，
+ * 与排好序的原数据比对：valueAt(k)返回值的真实名次区间与k的距离、rankOf(v)与真实名次之差都不能超过getRankError()；
+ * 覆盖随机、升序、降序、大量重复和偏斜分布，以及不同的k，结果超出误差时抛出IllegalStateException
+ * 用法：java QuantileSketchCheck [数据量] [草图个数]
+ */
+public class QuantileSketchCheck {
+
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int sketchNum = Math.max(2, args.length > 1 ? Integer.parseInt(args[1]) : 8);
+        Random random = new Random(42);
+        File file = File.createTempFile("quantile_sketch_check", ".sketch");
+        file.deleteOnExit();
+
+        String[] distributions = {"random", "ascending", "descending", "duplicates", "skewed"};
+        int groupNum = 0;
+        for (int k : new int[]{50, QuantileSketch.DEFAULT_K, 1000}) {
+            for (String distribution : distributions) {
+                long[] values = generate(distribution, size, random);
+
+                // 各草图分到的数据量不同，编号小的多，0号为空
+                QuantileSketch[] sketches = new QuantileSketch[sketchNum];
+                for (int s = 0; s < sketchNum; s++) {
+                    sketches[s] = new QuantileSketch(k);
+                }
+                for (long value : values) {
+                    int s = Math.min(random.nextInt(sketchNum - 1), random.nextInt(sketchNum - 1));
+                    sketches[1 + s].update(value);
+                }
+                QuantileSketch merged = new QuantileSketch(k);
+                for (QuantileSketch sketch : sketches) {
+                    merged.merge(sketch);
+                }
+                merged.publish(file);
+                QuantileSketch loaded = QuantileSketch.load(file);
+
+                long[] sorted = values.clone();
+                Arrays.sort(sorted);
+                long worst = Math.max(check(merged, sorted, random), check(loaded, sorted, random));
+                System.out.println(String.format("k=%d %s: 误差上界%d，实际最大误差%d", k, distribution,
+                        merged.getRankError(), worst));
+                groupNum++;
+            }
+        }
+        file.delete();
+        System.out.println("QuantileSketch自检通过：" + groupNum + "组，每组" + size + "个值，合并" + sketchNum + "个草图");
+    }
+
+    private static long[] generate(String distribution, int size, Random random) {
+        long[] values = new long[size];
+        for (int i = 0; i < size; i++) {
+            if ("random".equals(distribution)) {
+                values[i] = random.nextLong();
+            } else if ("ascending".equals(distribution)) {
+                values[i] = Long.MIN_VALUE + (long) i * 3;
+            } else if ("descending".equals(distribution)) {
+                values[i] = Long.MAX_VALUE - (long) i * 7;
+            } else if ("duplicates".equals(distribution)) {
+                values[i] = random.nextInt(20) - 10;
+            } else {
+                // 小值偏多
+                values[i] = (long) (Math.pow(random.nextDouble(), 8) * Integer.MAX_VALUE * 1000L);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * 比对草图与排好序的原数据，返回实际的最大名次误差
+     */
+    private static long check(QuantileSketch sketch, long[] sorted, Random random) {
+        int size = sorted.length;
+        if (sketch.getN() != size) {
+            throw new IllegalStateException("草图数据量" + sketch.getN() + "，应为" + size);
+        }
+        long bound = sketch.getRankError();
+        long worst = 0;
+        for (int q = 0; q <= 1000; q++) {
+            long k = (long) ((double) q / 1000 * (size - 1));
+            long value = sketch.valueAt(k);
+            // value在原数据中占据的名次区间[lo, hi]
+            long lo = RankSearch.lowerBound(sorted, value);
+            long hi = (value == Long.MAX_VALUE ? size : RankSearch.lowerBound(sorted, value + 1)) - 1;
+            if (lo > hi) {
+                throw new IllegalStateException("valueAt(" + k + ")返回了不存在的值" + value);
+            }
+            long error = k < lo ? lo - k : (k > hi ? k - hi : 0);
+            worst = Math.max(worst, error);
+            if (error > bound) {
+                throw new IllegalStateException("valueAt(" + k + ")名次误差" + error + "超过上界" + bound);
+            }
+
+            long v = random.nextBoolean() ? sorted[random.nextInt(size)] : random.nextLong();
+            error = Math.abs(sketch.rankOf(v) - RankSearch.lowerBound(sorted, v));
+            worst = Math.max(worst, error);
+            if (error > bound) {
+                throw new IllegalStateException("rankOf(" + v + ")误差" + error + "超过上界" + bound);
+            }
+        }
+        if (sketch.valueAt(0) != sorted[0] || sketch.valueAt(size - 1) != sorted[size - 1]) {
+            throw new IllegalStateException("最小值或最大值错误");
+        }
+        return worst;
+    }
+}
@@ -0,0 +1,105 @@
+package io.leavesfly.middleware.race.util;
+
+import java.util.Arrays;
+
+/**
+ * long数组的LSD基数排序，每趟处理8位，按有符号long的大小顺序排序
+ * 一次扫描同时统计8个字节的分布，所有值都相同的字节（如同一个桶内共享的高位）直接跳过；
+ * 临时数组和计数数组按线程复用，排序过程不分配内存
+ */
+public class RadixSort {
+
+    // 小于该长度时直接使用Arrays.sort
+    private static final int SMALL_ARRAY_SIZE = 1024;
+
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+    private static final int PASS_NUM = 64 / RADIX_BITS;
+
+    private static final ThreadLocal<long[]> SCRATCH = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[0];
+        }
+    };
+
+    private static final ThreadLocal<int[]> COUNTS = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[PASS_NUM * RADIX];
+        }
+    };
+
+    public static void sort(long[] values) {
+        sort(values, 0, values.length);
+    }
+
+    /**
+     * 对[from, to)区间排序
+     */
+    public static void sort(long[] values, int from, int to) {
+        int n = to - from;
+        if (n < SMALL_ARRAY_SIZE) {
+            Arrays.sort(values, from, to);
+            return;
+        }
+
+        int[] counts = COUNTS.get();
+        Arrays.fill(counts, 0);
+        for (int i = from; i < to; i++) {
+            // 翻转符号位，使无符号的字节顺序与有符号long的大小顺序一致
+            long key = values[i] ^ Long.MIN_VALUE;
+            counts[(int) (key & 0xFF)]++;
+            counts[RADIX + (int) ((key >>> 8) & 0xFF)]++;
+            counts[2 * RADIX + (int) ((key >>> 16) & 0xFF)]++;
+            counts[3 * RADIX + (int) ((key >>> 24) & 0xFF)]++;
+            counts[4 * RADIX + (int) ((key >>> 32) & 0xFF)]++;
+            counts[5 * RADIX + (int) ((key >>> 40) & 0xFF)]++;
+            counts[6 * RADIX + (int) ((key >>> 48) & 0xFF)]++;
+            counts[7 * RADIX + (int) (key >>> 56)]++;
+        }
+
+        long[] scratch = SCRATCH.get();
+        if (scratch.length < n) {
+            scratch = new long[n];
+            SCRATCH.set(scratch);
+        }
+
+        long[] src = values;
+        int srcFrom = from;
+        long[] dst = scratch;
+        int dstFrom = 0;
+        long first = values[from] ^ Long.MIN_VALUE;
+        for (int pass = 0; pass < PASS_NUM; pass++) {
+            int base = pass * RADIX;
+            int shift = pass * RADIX_BITS;
+            // 所有值在该字节上相同，不需要这一趟
+            if (counts[base + (int) ((first >>> shift) & 0xFF)] == n) {
+                continue;
+            }
+
+            int offset = 0;
+            for (int digit = 0; digit < RADIX; digit++) {
+                int count = counts[base + digit];
+                counts[base + digit] = offset;
+                offset += count;
+            }
+            for (int i = 0; i < n; i++) {
+                long value = src[srcFrom + i];
+                int digit = (int) (((value ^ Long.MIN_VALUE) >>> shift) & 0xFF);
+                dst[dstFrom + counts[base + digit]++] = value;
+            }
+
+            long[] swapArray = src;
+            src = dst;
+            dst = swapArray;
+            int swapFrom = srcFrom;
+            srcFrom = dstFrom;
+            dstFrom = swapFrom;
+        }
+
+        if (src != values) {
+            System.arraycopy(src, srcFrom, values, from, n);
+        }
+    }
+}
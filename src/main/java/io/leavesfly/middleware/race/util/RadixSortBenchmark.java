@@ -0,0 +1,65 @@
+package io.leavesfly.middleware.race.util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * RadixSort与Arrays.sort、Arrays.parallelSort在桶大小输入上的对比
+ * 输入模拟v2的一个二级桶：所有值共享高16位，其余48位随机
+ * 用法：java RadixSortBenchmark [桶大小,...] [轮数]
+ */
+public class RadixSortBenchmark {
+
+    public static void main(String[] args) {
+        String[] sizes = (args.length > 0 ? args[0] : "10000,100000,1000000,4000000").split(",");
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        Random random = new Random(42);
+
+        for (String sizeText : sizes) {
+            int size = Integer.parseInt(sizeText.trim());
+            long prefix = (long) random.nextInt(1 << 15) << 48;
+            long[] input = new long[size];
+            for (int i = 0; i < size; i++) {
+                input[i] = prefix | (random.nextLong() >>> 16);
+            }
+
+            long[] expected = input.clone();
+            Arrays.sort(expected);
+            long[] actual = input.clone();
+            RadixSort.sort(actual);
+            if (!Arrays.equals(expected, actual)) {
+                throw new IllegalStateException("RadixSort结果错误，size=" + size);
+            }
+
+            long sortTime = 0;
+            long parallelSortTime = 0;
+            long radixSortTime = 0;
+            // 第一轮只用于预热
+            for (int round = 0; round <= rounds; round++) {
+                long[] data = input.clone();
+                long start = System.nanoTime();
+                Arrays.sort(data);
+                long sortCost = System.nanoTime() - start;
+
+                data = input.clone();
+                start = System.nanoTime();
+                Arrays.parallelSort(data);
+                long parallelSortCost = System.nanoTime() - start;
+
+                data = input.clone();
+                start = System.nanoTime();
+                RadixSort.sort(data);
+                long radixSortCost = System.nanoTime() - start;
+
+                if (round > 0) {
+                    sortTime += sortCost;
+                    parallelSortTime += parallelSortCost;
+                    radixSortTime += radixSortCost;
+                }
+            }
+
+            System.out.println(String.format("size=%d Arrays.sort=%.3fms Arrays.parallelSort=%.3fms RadixSort=%.3fms",
+                    size, sortTime / 1e6 / rounds, parallelSortTime / 1e6 / rounds, radixSortTime / 1e6 / rounds));
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package io.leavesfly.middleware.race.util;
+
+/**
+ * 桶内的名次计算：小于v的数据个数
+ * 有序的桶二分查找，无序的桶顺序计数，都不需要先排序
+ */
+public class RankSearch {
+
+    /**
+     * 升序数组中第一个不小于v的下标，即小于v的个数
+     */
+    public static int lowerBound(long[] sortedValues, long v) {
+        int low = 0;
+        int high = sortedValues.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sortedValues[middle] < v) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 无序数组中小于v的个数
+     */
+    public static int countLess(long[] values, long v) {
+        int count = 0;
+        for (long value : values) {
+            if (value < v) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,160 @@
+package io.leavesfly.middleware.race.util;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 查询结果输出
+ * 十进制格式不经过String，直接把数字按两位一组写进复用的字节缓冲区，结果不超过缓冲区时整份结果只需一次channel写；
+ * 输出方式由 -Dtopkn.result.mode 指定：text（默认，每行一个十进制数写入结果文件）、
+ * binary（按小端long连续写入结果文件）或 stdout（十进制流式写到标准输出，不落盘）
+ */
+public class ResultWriter {
+
+    public static final String MODE = System.getProperty("topkn.result.mode", "text");
+
+    // 一个long的十进制表示最多20个字节（含负号）
+    public static final int MAX_DECIMAL_BYTES = 20;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] MIN_VALUE_BYTES = "-9223372036854775808".getBytes();
+
+    // 0~99的十位和个位
+    private static final byte[] DIGIT_TENS = new byte[100];
+    private static final byte[] DIGIT_ONES = new byte[100];
+
+    static {
+        for (int i = 0; i < 100; i++) {
+            DIGIT_TENS[i] = (byte) ('0' + i / 10);
+            DIGIT_ONES[i] = (byte) ('0' + i % 10);
+        }
+    }
+
+    // 标准输出直接走文件描述符，绕开System.out的字符编码和同步
+    private static final FileChannel STDOUT = new FileOutputStream(FileDescriptor.out).getChannel();
+
+    private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(BUFFER_SIZE);
+        }
+    };
+
+    /**
+     * 按配置的方式输出一次查询的结果
+     */
+    public static void writeResult(String fileName, long[] values) throws IOException {
+        if ("stdout".equals(MODE)) {
+            writeDecimal(STDOUT, values, (byte) '\n');
+            return;
+        }
+        FileChannel channel = new FileOutputStream(fileName).getChannel();
+        try {
+            if ("binary".equals(MODE)) {
+                writeBinary(channel, values);
+            } else {
+                writeDecimal(channel, values, (byte) '\n');
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * 十进制输出，值之间以separator分隔，最后以换行结尾
+     */
+    public static void writeDecimal(WritableByteChannel channel, long[] values, byte separator) throws IOException {
+        ByteBuffer buffer = BUFFER.get();
+        byte[] bytes = buffer.array();
+        int pos = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (pos > BUFFER_SIZE - MAX_DECIMAL_BYTES - 1) {
+                writeFully(channel, buffer, pos);
+                pos = 0;
+            }
+            if (i > 0) {
+                bytes[pos++] = separator;
+            }
+            pos = formatDecimal(values[i], bytes, pos);
+        }
+        bytes[pos++] = '\n';
+        writeFully(channel, buffer, pos);
+    }
+
+    /**
+     * 二进制输出，每个值8字节小端
+     */
+    public static void writeBinary(WritableByteChannel channel, long[] values) throws IOException {
+        ByteBuffer buffer = BUFFER.get();
+        buffer.clear();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            for (long value : values) {
+                if (buffer.remaining() < 8) {
+                    writeFully(channel, buffer, buffer.position());
+                    buffer.clear();
+                }
+                buffer.putLong(value);
+            }
+            writeFully(channel, buffer, buffer.position());
+        } finally {
+            buffer.order(ByteOrder.BIG_ENDIAN);
+        }
+    }
+
+    /**
+     * 把value的十进制表示写到bytes[pos]起，返回写完后的位置
+     */
+    public static int formatDecimal(long value, byte[] bytes, int pos) {
+        if (value == Long.MIN_VALUE) {
+            System.arraycopy(MIN_VALUE_BYTES, 0, bytes, pos, MIN_VALUE_BYTES.length);
+            return pos + MIN_VALUE_BYTES.length;
+        }
+        if (value < 0) {
+            bytes[pos++] = '-';
+            value = -value;
+        }
+        int end = pos + decimalLength(value);
+        int i = end;
+        // 每次除以100产出两位，减少一半的除法
+        while (value >= 100) {
+            long q = value / 100;
+            int r = (int) (value - q * 100);
+            value = q;
+            bytes[--i] = DIGIT_ONES[r];
+            bytes[--i] = DIGIT_TENS[r];
+        }
+        int r = (int) value;
+        bytes[--i] = DIGIT_ONES[r];
+        if (r >= 10) {
+            bytes[--i] = DIGIT_TENS[r];
+        }
+        return end;
+    }
+
+    private static int decimalLength(long value) {
+        long bound = 10;
+        for (int length = 1; length < 19; length++) {
+            if (value < bound) {
+                return length;
+            }
+            bound *= 10;
+        }
+        return 19;
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer, int length) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -13,6 +13,12 @@ public class AppConstants {
 
     public static int DISK_PAGE_SIZE = 1024 * 16;
 
+    //批量解析时每批的long个数
+    public static int LONG_BATCH_NUM = 1024 * 4;
+
+    //单行最大字节数，long最多19位数字加符号和换行
+    public static int MAX_LINE_BYTE = 64;
+
     //分桶的文件数128最优
     public static int BUCKET_FILE_NUM = 128;
 
@@ -20,6 +26,27 @@ public class AppConstants {
     public static int FILE_INNER_BUCKET_NUM = 512;
 
 
+    //是否先对源文件采样，按分位点划分分桶边界，适用于分布不均匀的数据
+    public static boolean ADAPTIVE_BUCKETS = Boolean.getBoolean("topkn.v1.adaptiveBuckets");
+
+    //构建结束前是否把每个分桶在文件内原地排好序，查询时按下标直接读取，不再排序
+    public static boolean SORTED_BUILD = Boolean.getBoolean("topkn.v1.sortedBuild");
+
+    //查询时缓存排好序的分桶所用的字节数上限，0表示不缓存；适合常驻查询时的连续翻页
+    public static long BUCKET_CACHE_BYTES = Long.getLong("topkn.v1.bucketCacheBytes", 0L);
+
+    //是否两遍构建：先统计各分桶数据量并预分配连续的页，再把数据直接写到最终位置（开启后不使用流水线）
+    public static boolean SCATTER_BUILD = Boolean.getBoolean("topkn.v1.scatterBuild");
+
+    //是否使用解析、分区、写盘分阶段的流水线构建
+    public static boolean PIPELINE_BUILD = Boolean.getBoolean("topkn.v1.pipeline");
+
+    //流水线各阶段的线程数
+    public static int PARSE_THREAD_NUM = Integer.getInteger("topkn.v1.parseThreads", 4);
+    public static int PARTITION_THREAD_NUM = Integer.getInteger("topkn.v1.partitionThreads", 4);
+    public static int WRITE_THREAD_NUM = Integer.getInteger("topkn.v1.writeThreads", 2);
+
+
     public final static int SOURCE_FILE_NUM = 10;
 
     public final static long MIN_VALUE_RANGE = 0L;
@@ -32,7 +59,8 @@ public class AppConstants {
     public final static short LONG_BYTE = 8;
 
 
-    public static int BUCKET_FILE_BIT_NUM = (int) (Math.log(BUCKET_FILE_NUM) / Math.log(2)) + 1;
+    //分桶按翻转符号位后的高位计算，覆盖全部有符号long
+    public static int BUCKET_FILE_BIT_NUM = (int) (Math.log(BUCKET_FILE_NUM) / Math.log(2));
     public static int FILE_INNER_BUCKET_BIT_NUM = (int) (Math.log(FILE_INNER_BUCKET_NUM) / Math.log(2)) + BUCKET_FILE_BIT_NUM;
 
 
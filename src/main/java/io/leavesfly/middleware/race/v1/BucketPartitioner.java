@@ -0,0 +1,66 @@
+package io.leavesfly.middleware.race.v1;
+
+import io.leavesfly.middleware.race.pipeline.IngestPipeline;
+import io.leavesfly.middleware.race.v1.bucket.BucketRule;
+import io.leavesfly.middleware.race.v1.bucket.FileBucketWriter;
+import io.leavesfly.middleware.race.v1.bucket.PageEmitter;
+
+import java.io.IOException;
+
+/**
+ * 流水线构建的分区器，每个分区线程一个实例
+ * 值写入对应分桶文件的缓存页，页满时复制到流水线的页中，交给负责该分桶文件的写线程写盘
+ */
+public class BucketPartitioner implements IngestPipeline.Partitioner {
+
+    private final FileBucketWriter[] fileBucketWriters;
+    private final PageEmitter[] pageEmitters;
+    private IngestPipeline.PageOutput output;
+
+    public BucketPartitioner(FileBucketWriter[] fileBucketWriters) {
+        this.fileBucketWriters = fileBucketWriters;
+        this.pageEmitters = new PageEmitter[fileBucketWriters.length];
+        for (int i = 0; i < fileBucketWriters.length; i++) {
+            final int fileIndex = i;
+            pageEmitters[i] = new PageEmitter() {
+                @Override
+                public void emit(int innerBucketNum, byte[] page) throws IOException {
+                    IngestPipeline.Page pipelinePage = output.borrowPage();
+                    pipelinePage.getBuffer().put(page, 0, page.length);
+                    pipelinePage.setTarget(fileIndex);
+                    pipelinePage.setBucket(innerBucketNum);
+                    output.emit(pipelinePage);
+                }
+            };
+        }
+    }
+
+    @Override
+    public void partition(long[] values, int size, IngestPipeline.PageOutput output) throws IOException {
+        this.output = output;
+        for (int i = 0; i < size; i++) {
+            long value = values[i];
+            int bucketIndex = BucketRule.getShouldBucketIndex(value);
+            int fileIndex = bucketIndex / AppConstants.FILE_INNER_BUCKET_NUM;
+            fileBucketWriters[fileIndex].writeData(value, bucketIndex % AppConstants.FILE_INNER_BUCKET_NUM,
+                    pageEmitters[fileIndex]);
+        }
+    }
+
+    @Override
+    public void finish(IngestPipeline.PageOutput output) {
+        //未满的页在FileBucketWriter.flush()时写出
+    }
+
+    /**
+     * 写线程：按页的分桶文件写入
+     */
+    public static IngestPipeline.PageWriter newPageWriter(final FileBucketWriter[] fileBucketWriters) {
+        return new IngestPipeline.PageWriter() {
+            @Override
+            public void write(IngestPipeline.Page page) {
+                fileBucketWriters[page.getTarget()].writePage(page.getBucket(), page.getBuffer().array());
+            }
+        };
+    }
+}
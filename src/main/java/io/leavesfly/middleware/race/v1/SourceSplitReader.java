@@ -1,33 +1,43 @@
 package io.leavesfly.middleware.race.v1;
 
+import io.leavesfly.middleware.race.pipeline.BatchSource;
+import io.leavesfly.middleware.race.util.LongParser;
 import io.leavesfly.middleware.race.v1.util.EncodeUtil;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
 /**
  * Created by yefei.yf on 2017/4/6.
  */
-public class SourceSplitReader {
+public class SourceSplitReader implements BatchSource {
 
     private int CachePageCapa = AppConstants.DISK_PAGE_SIZE;
     private static File[] sourceFiles;
 
     private RandomAccessFile randomAccess;
     private File file;
-    private byte[] preCache;
+    //缓存区：上一页未解析完的行留在头部，后面接着读入下一页，固定大小复用
     private byte[] cache;
+    private ByteBuffer cacheBuffer;
+    private final LongParser parser = new LongParser();
+    private int cachePos;
+    private int cacheLimit;
     private long size;
     private long currentSize;
     private int pageCount;
 
+    //List接口适配时复用的批量数组
+    private long[] adapterValues;
+
     private SourceSplitReader(RandomAccessFile randomAccess, long size, File file) {
         this.file = file;
         this.randomAccess = randomAccess;
-        cache = new byte[CachePageCapa];
+        cache = new byte[CachePageCapa + AppConstants.MAX_LINE_BYTE];
+        cacheBuffer = ByteBuffer.wrap(cache);
         this.size = size;
     }
 
@@ -72,31 +82,88 @@ public class SourceSplitReader {
     }
 
 
+    /**
+     * 批量读取，把解析出的值填入调用方提供的数组，不产生装箱对象
+     *
+     * @param values
+     * @return 填充的个数，0表示分片已读完
+     */
+    public int readLongValues(long[] values) {
+        int count = 0;
+        while (count < values.length) {
+            count = parser.parseLines(cacheBuffer, cachePos, cacheLimit, values, count);
+            cachePos = parser.getPosition();
+            if (count >= values.length) {
+                break;
+            }
+            if (!fillCache()) {
+                //分片最后一行没有换行符
+                if (LongParser.hasDigit(cacheBuffer, cachePos, cacheLimit)) {
+                    values[count++] = LongParser.parseLong(cacheBuffer, cachePos, cacheLimit);
+                }
+                cachePos = cacheLimit;
+                break;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int read(long[] batch) {
+        return readLongValues(batch);
+    }
+
+    /**
+     * 适配原有的List接口
+     *
+     * @return
+     */
     public List<Long> readLongValues() {
         List<Long> result = new LinkedList<>();
+        if (adapterValues == null) {
+            adapterValues = new long[AppConstants.LONG_BATCH_NUM];
+        }
+        int readNum = readLongValues(adapterValues);
+        for (int i = 0; i < readNum; i++) {
+            result.add(adapterValues[i]);
+        }
+        return result;
+    }
+
+    /**
+     * 未解析完的行移到缓存头部，再读入下一页
+     *
+     * @return 是否读到了新数据
+     */
+    private boolean fillCache() {
         if (currentSize >= size) {
-            return result;
+            return false;
+        }
+        int remain = cacheLimit - cachePos;
+        if (remain > AppConstants.MAX_LINE_BYTE) {
+            throw new IllegalStateException("line too long in " + file + ", currentSize=" + currentSize);
         }
+        System.arraycopy(cache, cachePos, cache, 0, remain);
+        cachePos = 0;
+        cacheLimit = remain;
         try {
-            int readSize = randomAccess.read(cache);
+            int toRead = (int) Math.min(CachePageCapa, size - currentSize);
+            int readSize = randomAccess.read(cache, remain, toRead);
+            if (readSize <= 0) {
+                currentSize = size;
+                return false;
+            }
             pageCount++;
             currentSize += readSize;
-            if (currentSize <= size) {
-                if (readSize == cache.length) {
-                    preCache = EncodeUtil.charDigitByte2Long(preCache, cache, result);
-                } else {
-                    preCache = EncodeUtil.charDigitByte2Long(preCache, Arrays.copyOfRange(cache, 0, readSize), result);
-                }
-            } else {
-                preCache = EncodeUtil.charDigitByte2Long(preCache, Arrays.copyOfRange(cache, 0,
-                        (int) (readSize - (currentSize - size))), result);
-            }
+            cacheLimit += readSize;
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         }
-        return result;
+        return true;
     }
 
+    @Override
     public void close() {
         try {
             randomAccess.close();
@@ -3,19 +3,34 @@ package io.leavesfly.middleware.race.v1;
 
 import io.leavesfly.middleware.race.KNLimit;
 
+import io.leavesfly.middleware.race.pipeline.BatchSource;
+import io.leavesfly.middleware.race.pipeline.IngestPipeline;
+import io.leavesfly.middleware.race.util.BucketCache;
+import io.leavesfly.middleware.race.util.BucketSplitters;
+import io.leavesfly.middleware.race.util.BuildManifest;
+import io.leavesfly.middleware.race.util.QuantileSampler;
+import io.leavesfly.middleware.race.util.RadixSort;
+import io.leavesfly.middleware.race.util.RankSearch;
+import io.leavesfly.middleware.race.util.ResultWriter;
+import io.leavesfly.middleware.race.util.Introselect;
 import io.leavesfly.middleware.race.v1.bucket.*;
-import io.leavesfly.middleware.race.v1.util.EncodeUtil;
 import org.apache.log4j.FileAppender;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
 /**
@@ -26,6 +41,26 @@ public class TopKN implements KNLimit {
 
     public static final Logger logger = Logger.getLogger(TopKN.class);
 
+    //进程内缓存的全局索引和各分桶文件的reader，常驻查询时只加载一次
+    private static volatile SeqIdsIndex cachedSeqIdsIndex;
+    private static final AtomicReferenceArray<FileBucketReader> cachedBucketReaders =
+            new AtomicReferenceArray<>(AppConstants.BUCKET_FILE_NUM);
+
+    //排好序的分桶缓存，按字节数限额，未配置时为null
+    private static final BucketCache bucketCache = AppConstants.BUCKET_CACHE_BYTES > 0
+            ? new BucketCache(AppConstants.BUCKET_CACHE_BYTES) : null;
+
+    //缓存未命中时读取并排序整个分桶，参数为全局分桶号
+    private static final BucketCache.Loader sortedBucketLoader = new BucketCache.Loader() {
+        @Override
+        public long[] load(int bucketId) {
+            long[] values = getBucketReader(bucketId / AppConstants.FILE_INNER_BUCKET_NUM)
+                    .readData(bucketId % AppConstants.FILE_INNER_BUCKET_NUM);
+            RadixSort.sort(values);
+            return values;
+        }
+    };
+
     static {
 
         Logger rootLogger = Logger.getRootLogger();
@@ -56,15 +91,17 @@ public class TopKN implements KNLimit {
     /**
      * 构建"索引"文件的过程
      */
+    @Override
     public void init() {
 
         long time = System.currentTimeMillis();
 
-        //全局索引文件
+        //全局索引文件，所有分桶文件和索引落盘后最后原子发布，存在即表示构建完整
         final File globalIndexFile = new File(BucketRule.getGlobalIndexInfoFileName());
         if (globalIndexFile.exists()) {
             return;
         }
+        final File pendingGlobalIndexFile = new File(globalIndexFile.getPath() + ".tmp");
 
         //================1.文件初始化准备===================
         //数据源文件
@@ -73,23 +110,46 @@ public class TopKN implements KNLimit {
             sourceFiles[i] = new File(KNLimit.getSourceDataFileName(i));
         }
 
-        SourceSplitReader.setSourceFiles(sourceFiles);
-        final List<SourceSplitReader> sourceSplitReaders = SourceSplitReader.buildSourceSplitReaders(
-                AppConstants.SINGLE_PARALLEL_READ_FILE_NUM);
-
-        final File[] indexDataFiles = new File[AppConstants.BUCKET_FILE_NUM];
-        final File[] indexInfoFiles = new File[AppConstants.BUCKET_FILE_NUM];
-        final FileBucketWriter[] fileBucketWriters = new FileBucketWriter[AppConstants.BUCKET_FILE_NUM];
+        //构建清单：各分桶文件及其索引、待发布的全局索引落盘后带校验和记入清单；
+        //分桶阶段所有线程交错写128个文件，中途退出只能重做，但所有文件都已落盘且校验通过时只需补做发布
+        final BuildManifest manifest;
+        try {
+            File manifestFile = new File(BucketRule.getBuildManifestFileName());
+            String fingerprint = BuildManifest.fingerprint(sourceFiles, "v1;order=signed;sorted=" + AppConstants.SORTED_BUILD
+                    + ";adaptive=" + AppConstants.ADAPTIVE_BUCKETS);
+            BuildManifest previous = BuildManifest.open(manifestFile, fingerprint);
+            if (isBuildComplete(previous, pendingGlobalIndexFile)) {
+                publishGlobalIndex(pendingGlobalIndexFile, globalIndexFile, previous);
+                logger.info("resume-publish-global-index-cost-time:" + (System.currentTimeMillis() - time));
+                return;
+            }
+            previous.delete();
+            manifest = BuildManifest.open(manifestFile, fingerprint);
+        } catch (IOException e) {
+            logger.error("build-manifest-error:" + e.getMessage());
+            e.printStackTrace();
+            return;
+        }
 
-        for (int i = 0; i < AppConstants.BUCKET_FILE_NUM; i++) {
-            indexDataFiles[i] = new File(BucketRule.getIndexDataFileName(i));
-            indexInfoFiles[i] = new File(BucketRule.getIndexInfoFileName(i));
-            fileBucketWriters[i] = new FileBucketWriter(indexDataFiles[i], indexInfoFiles[i]);
+        //采样计算分桶边界，数据倾斜时各分桶大小依然均衡
+        BucketSplitters splitters = null;
+        if (AppConstants.ADAPTIVE_BUCKETS) {
+            try {
+                splitters = QuantileSampler.buildSplitters(sourceFiles,
+                        AppConstants.BUCKET_FILE_NUM * AppConstants.FILE_INNER_BUCKET_NUM);
+            } catch (IOException e) {
+                logger.error("sample-error:" + e.getMessage());
+                e.printStackTrace();
+            }
+            logger.info("sample-splitters-cost-time:" + (System.currentTimeMillis() - time));
         }
+        BucketRule.setSplitters(splitters);
 
-        //================2.多线程遍历原数据文件，构建分桶的索引文件===================
+        SourceSplitReader.setSourceFiles(sourceFiles);
+        List<SourceSplitReader> splitReaders = SourceSplitReader.buildSourceSplitReaders(
+                AppConstants.SINGLE_PARALLEL_READ_FILE_NUM);
 
-        int splitNum = sourceSplitReaders.size();
+        int splitNum = splitReaders.size();
         ExecutorService executorService = Executors.newFixedThreadPool(splitNum, new ThreadFactory() {
             @Override
             public Thread newThread(Runnable r) {
@@ -99,31 +159,77 @@ public class TopKN implements KNLimit {
             }
         });
 
-        final CountDownLatch latchIndex = new CountDownLatch(splitNum);
-        for (int i = 0; i < splitNum; i++) {
-            final int finalIndex = i;
-            executorService.submit(new Runnable() {
-                @Override
-                public void run() {
-                    SourceSplitReader splitReader = sourceSplitReaders.get(finalIndex);
-                    List<Long> longValues;
-                    do {
-                        longValues = splitReader.readLongValues();
-                        for (long value : longValues) {
-                            int[] indexPosition = BucketRule.getShouldIndexPosition(value);
-                            fileBucketWriters[indexPosition[0]].writeData(value, indexPosition[1]);
-                        }
-                    } while (!longValues.isEmpty());
-                    splitReader.close();
-                    latchIndex.countDown();
+        //两遍构建：先统计每个分桶的精确数据量，分桶文件按计数预分配，第二遍直接写到最终位置
+        long[] bucketCounts = null;
+        if (AppConstants.SCATTER_BUILD) {
+            bucketCounts = countBuckets(splitReaders, executorService);
+            splitReaders = SourceSplitReader.buildSourceSplitReaders(AppConstants.SINGLE_PARALLEL_READ_FILE_NUM);
+            logger.info("count-buckets-cost-time:" + (System.currentTimeMillis() - time));
+        }
+        final List<SourceSplitReader> sourceSplitReaders = splitReaders;
+
+        final File[] indexDataFiles = new File[AppConstants.BUCKET_FILE_NUM];
+        final File[] indexInfoFiles = new File[AppConstants.BUCKET_FILE_NUM];
+        final FileBucketWriter[] fileBucketWriters = new FileBucketWriter[AppConstants.BUCKET_FILE_NUM];
+
+        for (int i = 0; i < AppConstants.BUCKET_FILE_NUM; i++) {
+            indexDataFiles[i] = new File(BucketRule.getIndexDataFileName(i));
+            indexInfoFiles[i] = new File(BucketRule.getIndexInfoFileName(i));
+            if (bucketCounts == null) {
+                fileBucketWriters[i] = new FileBucketWriter(indexDataFiles[i], indexInfoFiles[i]);
+            } else {
+                try {
+                    fileBucketWriters[i] = new FileBucketWriter(indexDataFiles[i], indexInfoFiles[i],
+                            Arrays.copyOfRange(bucketCounts, i * AppConstants.FILE_INNER_BUCKET_NUM,
+                                    (i + 1) * AppConstants.FILE_INNER_BUCKET_NUM));
+                } catch (IOException e) {
+                    logger.error("preallocate-error:" + e.getMessage());
+                    e.printStackTrace();
+                    return;
                 }
-            });
+            }
         }
 
-        try {
-            latchIndex.await();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        //================2.多线程遍历原数据文件，构建分桶的索引文件===================
+
+        if (AppConstants.PIPELINE_BUILD && !AppConstants.SCATTER_BUILD) {
+            //解析、分区、写盘分阶段流水线执行
+            buildWithPipeline(sourceSplitReaders, fileBucketWriters);
+        } else {
+            final boolean scatter = AppConstants.SCATTER_BUILD;
+            final CountDownLatch latchIndex = new CountDownLatch(splitNum);
+            for (int i = 0; i < splitNum; i++) {
+                final int finalIndex = i;
+                executorService.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        SourceSplitReader splitReader = sourceSplitReaders.get(finalIndex);
+                        long[] longValues = new long[AppConstants.LONG_BATCH_NUM];
+                        int readNum;
+                        while ((readNum = splitReader.readLongValues(longValues)) > 0) {
+                            for (int j = 0; j < readNum; j++) {
+                                long value = longValues[j];
+                                int bucketIndex = BucketRule.getShouldBucketIndex(value);
+                                FileBucketWriter bucketWriter =
+                                        fileBucketWriters[bucketIndex / AppConstants.FILE_INNER_BUCKET_NUM];
+                                if (scatter) {
+                                    bucketWriter.scatterData(value, bucketIndex % AppConstants.FILE_INNER_BUCKET_NUM);
+                                } else {
+                                    bucketWriter.writeData(value, bucketIndex % AppConstants.FILE_INNER_BUCKET_NUM);
+                                }
+                            }
+                        }
+                        splitReader.close();
+                        latchIndex.countDown();
+                    }
+                });
+            }
+
+            try {
+                latchIndex.await();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
         }
 
         logger.info("build-index-cost-time:" + (System.currentTimeMillis() - time));
@@ -136,6 +242,10 @@ public class TopKN implements KNLimit {
                 @Override
                 public void run() {
                     bucketWriter.flush();
+                    //分桶在文件内原地排序，查询时不再排序
+                    if (AppConstants.SORTED_BUILD) {
+                        bucketWriter.sortInPlace();
+                    }
                     cpuCoreNumLatch.countDown();
                 }
             });
@@ -150,24 +260,47 @@ public class TopKN implements KNLimit {
         time = System.currentTimeMillis();
 
         //================3.构建全局的索引文件===================
-        SeqIdsIndex seqIdsIndex = new SeqIdsIndex();
-        IdRange idRangeIndexInfo = fileBucketWriters[0].getIdRangeIndexInfo(0l);
-        seqIdsIndex.addSeqIdsIndexInfo(idRangeIndexInfo);
-
-        for (int i = 1; i < AppConstants.BUCKET_FILE_NUM; i++) {
-            idRangeIndexInfo = fileBucketWriters[i].getIdRangeIndexInfo(idRangeIndexInfo.getEndSeqIdValue() + 1);
-            seqIdsIndex.addSeqIdsIndexInfo(idRangeIndexInfo);
+        long[] rankPrefix = new long[AppConstants.BUCKET_FILE_NUM * AppConstants.FILE_INNER_BUCKET_NUM + 1];
+        long rank = 0L;
+        for (int i = 0; i < AppConstants.BUCKET_FILE_NUM; i++) {
+            rank = fileBucketWriters[i].buildRankPrefix(rank, rankPrefix, i * AppConstants.FILE_INNER_BUCKET_NUM);
+        }
+        rankPrefix[rankPrefix.length - 1] = rank;
+        SeqIdsIndex seqIdsIndex = new SeqIdsIndex(rankPrefix);
+        if (splitters != null) {
+            seqIdsIndex.setSplitters(splitters.getSplitters());
+        }
+        try {
+            seqIdsIndex.serialize2File(pendingGlobalIndexFile);
+            BuildManifest.force(pendingGlobalIndexFile);
+            manifest.commit("global", Long.toHexString(BuildManifest.checksum(pendingGlobalIndexFile)));
+        } catch (IOException e) {
+            logger.error("global-index-write-error:" + e.getMessage());
+            e.printStackTrace();
+            executorService.shutdown();
+            return;
         }
-        seqIdsIndex.serialize2File(globalIndexFile);
 
-        //分桶后的索引文件持久化
+        //分桶后的索引文件持久化，数据文件和索引文件落盘后记入清单
+        final AtomicBoolean failed = new AtomicBoolean(false);
         final CountDownLatch cpuCoreNumLatch2 = new CountDownLatch(AppConstants.BUCKET_FILE_NUM);
-        for (final FileBucketWriter bucketWriter : fileBucketWriters) {
+        for (int i = 0; i < AppConstants.BUCKET_FILE_NUM; i++) {
+            final int fileIndex = i;
             executorService.submit(new Runnable() {
                 @Override
                 public void run() {
-                    bucketWriter.indexInfo2File();
-                    cpuCoreNumLatch2.countDown();
+                    try {
+                        fileBucketWriters[fileIndex].indexInfo2File();
+                        BuildManifest.force(indexDataFiles[fileIndex]);
+                        BuildManifest.force(indexInfoFiles[fileIndex]);
+                        manifest.commit("file." + fileIndex, fileChecksums(fileIndex));
+                    } catch (IOException e) {
+                        failed.set(true);
+                        logger.error("index-file-write-error:" + e.getMessage());
+                        e.printStackTrace();
+                    } finally {
+                        cpuCoreNumLatch2.countDown();
+                    }
                 }
             });
         }
@@ -179,146 +312,495 @@ public class TopKN implements KNLimit {
         }
         executorService.shutdown();
 
+        if (failed.get()) {
+            return;
+        }
+        try {
+            publishGlobalIndex(pendingGlobalIndexFile, globalIndexFile, manifest);
+        } catch (IOException e) {
+            logger.error("global-index-publish-error:" + e.getMessage());
+            e.printStackTrace();
+            return;
+        }
+
+        //丢弃进程内可能缓存的旧索引
+        cachedSeqIdsIndex = null;
+        if (bucketCache != null) {
+            bucketCache.clear();
+        }
+        for (int i = 0; i < AppConstants.BUCKET_FILE_NUM; i++) {
+            cachedBucketReaders.set(i, null);
+        }
+
         logger.info("build-global-init:" + (System.currentTimeMillis() - time));
 
     }
 
 
+    /**
+     * 待发布的全局索引和所有分桶文件都已记入清单且校验通过
+     *
+     * @param manifest
+     * @param pendingGlobalIndexFile
+     * @return
+     * @throws IOException
+     */
+    private boolean isBuildComplete(BuildManifest manifest, File pendingGlobalIndexFile) throws IOException {
+        if (!manifest.matchesChecksum("global", pendingGlobalIndexFile)) {
+            return false;
+        }
+        for (int i = 0; i < AppConstants.BUCKET_FILE_NUM; i++) {
+            String checksums = manifest.get("file." + i);
+            if (checksums == null || !new File(BucketRule.getIndexDataFileName(i)).isFile()
+                    || !new File(BucketRule.getIndexInfoFileName(i)).isFile()
+                    || !checksums.equals(fileChecksums(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 分桶数据文件和索引文件的CRC32
+     *
+     * @param fileIndex
+     * @return
+     * @throws IOException
+     */
+    private static String fileChecksums(int fileIndex) throws IOException {
+        return Long.toHexString(BuildManifest.checksum(new File(BucketRule.getIndexDataFileName(fileIndex))))
+                + "," + Long.toHexString(BuildManifest.checksum(new File(BucketRule.getIndexInfoFileName(fileIndex))));
+    }
+
+    /**
+     * 原子地把待发布的全局索引换成正式的全局索引，之后删除清单
+     *
+     * @param pendingGlobalIndexFile
+     * @param globalIndexFile
+     * @param manifest
+     * @throws IOException
+     */
+    private void publishGlobalIndex(File pendingGlobalIndexFile, File globalIndexFile, BuildManifest manifest)
+            throws IOException {
+        Files.move(pendingGlobalIndexFile.toPath(), globalIndexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        manifest.delete();
+    }
+
+    /**
+     * 两遍构建的第一遍：多线程遍历原数据文件，只统计每个全局分桶的数据量
+     *
+     * @param sourceSplitReaders
+     * @param executorService
+     * @return 按全局分桶号的数据量
+     */
+    private long[] countBuckets(final List<SourceSplitReader> sourceSplitReaders, ExecutorService executorService) {
+        int splitNum = sourceSplitReaders.size();
+        final long[][] splitCounts = new long[splitNum][];
+        final CountDownLatch latch = new CountDownLatch(splitNum);
+        for (int i = 0; i < splitNum; i++) {
+            final int finalIndex = i;
+            executorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    SourceSplitReader splitReader = sourceSplitReaders.get(finalIndex);
+                    long[] counts = new long[AppConstants.BUCKET_FILE_NUM * AppConstants.FILE_INNER_BUCKET_NUM];
+                    long[] longValues = new long[AppConstants.LONG_BATCH_NUM];
+                    int readNum;
+                    while ((readNum = splitReader.readLongValues(longValues)) > 0) {
+                        for (int j = 0; j < readNum; j++) {
+                            counts[BucketRule.getShouldBucketIndex(longValues[j])]++;
+                        }
+                    }
+                    splitReader.close();
+                    splitCounts[finalIndex] = counts;
+                    latch.countDown();
+                }
+            });
+        }
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        long[] bucketCounts = new long[AppConstants.BUCKET_FILE_NUM * AppConstants.FILE_INNER_BUCKET_NUM];
+        for (long[] counts : splitCounts) {
+            for (int i = 0; i < bucketCounts.length; i++) {
+                bucketCounts[i] += counts[i];
+            }
+        }
+        return bucketCounts;
+    }
+
+
+    /**
+     * 流水线构建：解析线程读源文件，分区线程写分桶缓存，写线程按分桶文件写盘
+     *
+     * @param sourceSplitReaders
+     * @param fileBucketWriters
+     */
+    private void buildWithPipeline(List<SourceSplitReader> sourceSplitReaders, FileBucketWriter[] fileBucketWriters) {
+
+        List<Callable<BatchSource>> sources = new ArrayList<>(sourceSplitReaders.size());
+        for (final SourceSplitReader splitReader : sourceSplitReaders) {
+            sources.add(new Callable<BatchSource>() {
+                @Override
+                public BatchSource call() {
+                    return splitReader;
+                }
+            });
+        }
+
+        BucketPartitioner[] partitioners = new BucketPartitioner[AppConstants.PARTITION_THREAD_NUM];
+        for (int i = 0; i < partitioners.length; i++) {
+            partitioners[i] = new BucketPartitioner(fileBucketWriters);
+        }
+
+        IngestPipeline pipeline = new IngestPipeline(sources, AppConstants.PARSE_THREAD_NUM, partitioners,
+                AppConstants.WRITE_THREAD_NUM, BucketPartitioner.newPageWriter(fileBucketWriters),
+                AppConstants.LONG_BATCH_NUM, AppConstants.LONG_BYTE * AppConstants.LONG_BYTE_BUFFER_NUM, 1);
+        try {
+            pipeline.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
     @Override
     public void processTopKN(long k, int n) {
 
+        long[] result = queryTopKN(k, n);
+        if (bucketCache != null) {
+            logger.info(bucketCache);
+        }
+
+        //==========3.输出结果=============
+        outputResults(result);
+    }
+
+
+    @Override
+    public long[] queryTopKN(long k, int n) {
+
         long[] result = null;
-        //==========1.从文件中构建全局索引结构=============
-        SeqIdsIndex seqIdsIndex = SeqIdsIndex.getInstanceFromFile(new File(BucketRule.getGlobalIndexInfoFileName()));
+        //==========1.加载全局索引结构（进程内只加载一次）=============
+        SeqIdsIndex seqIdsIndex = getSeqIdsIndex();
 
-        //==========2.根据全局索引定位数据分片=============
-        List<int[]> bucketPositions = BucketRule.getKNIndexPosition(k, n, seqIdsIndex);
-        int size = bucketPositions.size();
+        //超出数据总量的部分截掉
+        long totalNum = seqIdsIndex.getTotalNum();
+        if (k >= totalNum) {
+            return new long[0];
+        }
+        n = (int) Math.min(n, totalNum - k);
 
-        //只有两个值，1或者2
-        if (size == 1) {
-            int[] pos = bucketPositions.get(0);
-            File indexInfoFile = new File(BucketRule.getIndexInfoFileName(pos[0]));
-            File indexDataFile = new File(BucketRule.getIndexDataFileName(pos[0]));
-            FileBucketReader bucketReader = new FileBucketReader(indexInfoFile, indexDataFile);
+        //==========2.根据全局索引定位数据分片=============
+        int[] bucketPositions = BucketRule.getKNIndexPosition(k, n, seqIdsIndex);
 
-            //比赛环境数据量在5000左右,并排序
-            List<Long> pageValues = bucketReader.readData(pos[1]);
-            long[] pageLongValues = EncodeUtil.convert(pageValues);
+        //只落在一个分桶时直接读取
+        if (bucketPositions[0] == bucketPositions[1]) {
+            int fileIndex = bucketPositions[0] / AppConstants.FILE_INNER_BUCKET_NUM;
+            int innerBucketNum = bucketPositions[0] % AppConstants.FILE_INNER_BUCKET_NUM;
+            FileBucketReader bucketReader = getBucketReader(fileIndex);
 
-            Arrays.sort(pageLongValues);
             //定位排序之后的下标开始位置
-            int start = bucketReader.getInnerPageStartPos(k, pos[1]);
-            result = Arrays.copyOfRange(pageLongValues, start, start + n);
-
-        } else if (size == 2) {
-            int[] pos0 = bucketPositions.get(0);
-            int[] pos1 = bucketPositions.get(1);
-
-            //来自同一个索引文件的不同分区
-            if (pos0[0] == pos1[0]) {
-                File indexInfoFile = new File(BucketRule.getIndexInfoFileName(pos0[0]));
-                File indexDataFile = new File(BucketRule.getIndexDataFileName(pos0[0]));
-                final FileBucketReader bucketReader = new FileBucketReader(indexInfoFile, indexDataFile);
-
-                final int[] bucketPos = new int[2];
-                bucketPos[0] = pos0[1];
-                bucketPos[1] = pos1[1];
-                final long[][] resNeedMerge = new long[2][];
-
-                final CountDownLatch latch = new CountDownLatch(2);
-                for (int i = 0; i < 2; i++) {
-                    final int finalIndex = i;
-                    Thread thread = new Thread(new Runnable() {
-                        @Override
-                        public void run() {
-                            List<Long> pageValues = bucketReader.readData(bucketPos[finalIndex]);
-                            long[] pageLongValues = EncodeUtil.convert(pageValues);
-                            Arrays.sort(pageLongValues);
-                            resNeedMerge[finalIndex] = pageLongValues;
+            int start = bucketReader.getInnerPageStartPos(k, innerBucketNum);
+            result = readBucketRange(fileIndex, innerBucketNum, start, n);
+
+        } else {
+            //跨多个分桶时，每个分桶按全局索引的起始名次算出落在其中的一段，并行读取后按顺序拼接
+            final int bucketCount = bucketPositions[1] - bucketPositions[0] + 1;
+            final long[][] resNeedMerge = new long[bucketCount][];
+            final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+            final CountDownLatch latch = new CountDownLatch(bucketCount);
+            ExecutorService executorService = Executors.newFixedThreadPool(
+                    Math.min(bucketCount, Runtime.getRuntime().availableProcessors()));
+            for (int i = 0; i < bucketCount; i++) {
+                final int finalIndex = i;
+                final int bucketIndex = bucketPositions[0] + i;
+                final int[] window = getBucketWindow(seqIdsIndex, bucketIndex, k, n);
+                executorService.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            resNeedMerge[finalIndex] = window[1] == 0 ? new long[0]
+                                    : readBucketRange(bucketIndex / AppConstants.FILE_INNER_BUCKET_NUM,
+                                    bucketIndex % AppConstants.FILE_INNER_BUCKET_NUM, window[0], window[1]);
+                        } catch (RuntimeException e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
                             latch.countDown();
                         }
-                    });
-                    thread.start();
-                }
+                    }
+                });
+            }
 
-                try {
-                    latch.await();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            executorService.shutdown();
+            if (failure.get() != null) {
+                throw new IllegalStateException("读取分桶失败: " + failure.get().getMessage(), failure.get());
+            }
+
+            result = new long[n];
+            int pos = 0;
+            for (long[] part : resNeedMerge) {
+                System.arraycopy(part, 0, result, pos, part.length);
+                pos += part.length;
+            }
+        }
+
+        return result;
+    }
+
+
+    @Override
+    public long[][] queryTopKN(long[] ks, int[] ns) {
+
+        SeqIdsIndex seqIdsIndex = getSeqIdsIndex();
+        long totalNum = seqIdsIndex.getTotalNum();
+        final long[][] results = new long[ks.length][];
+
+        //==========1.所有查询对照全局索引定位，按分桶分组=============
+        //全局分桶号 -> 落在该分桶内的查询窗口{查询序号, 分桶内起始下标, 数量, 结果内偏移}
+        Map<Integer, List<int[]>> bucketWindows = new HashMap<>();
+        for (int q = 0; q < ks.length; q++) {
+            long k = ks[q];
+            int n = k >= totalNum ? 0 : (int) Math.min(ns[q], totalNum - k);
+            results[q] = new long[n];
+            if (n == 0) {
+                continue;
+            }
+
+            //窗口跨越的每个分桶各取一段，空分桶跳过
+            int[] bucketPositions = BucketRule.getKNIndexPosition(k, n, seqIdsIndex);
+            int offset = 0;
+            for (int bucketIndex = bucketPositions[0]; bucketIndex <= bucketPositions[1]; bucketIndex++) {
+                int[] window = getBucketWindow(seqIdsIndex, bucketIndex, k, n);
+                if (window[1] > 0) {
+                    addBucketWindow(bucketWindows, bucketIndex, new int[]{q, window[0], window[1], offset});
+                    offset += window[1];
                 }
+            }
+        }
 
-                int start = bucketReader.getInnerPageStartPos(k, bucketPos[0]);
-                int end = resNeedMerge[0].length;
-                long[] resultPart1 = Arrays.copyOfRange(resNeedMerge[0], start, end);
-                int left = n - (end - start);
-                long[] resultPart2 = Arrays.copyOfRange(resNeedMerge[1], 0, left);
+        //==========2.每个分桶只读取一次，按覆盖所有窗口的区间选择排序=============
+        if (!bucketWindows.isEmpty()) {
+            ExecutorService executorService = Executors.newFixedThreadPool(
+                    Math.min(bucketWindows.size(), Runtime.getRuntime().availableProcessors()));
+            final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+            final CountDownLatch latch = new CountDownLatch(bucketWindows.size());
+            for (final Map.Entry<Integer, List<int[]>> entry : bucketWindows.entrySet()) {
+                executorService.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            int fileIndex = entry.getKey() / AppConstants.FILE_INNER_BUCKET_NUM;
+                            int innerBucketNum = entry.getKey() % AppConstants.FILE_INNER_BUCKET_NUM;
+                            int spanFrom = Integer.MAX_VALUE;
+                            int spanTo = 0;
+                            for (int[] window : entry.getValue()) {
+                                spanFrom = Math.min(spanFrom, window[1]);
+                                spanTo = Math.max(spanTo, window[1] + window[2]);
+                            }
+                            long[] spanValues = readBucketRange(fileIndex, innerBucketNum, spanFrom, spanTo - spanFrom);
+                            for (int[] window : entry.getValue()) {
+                                System.arraycopy(spanValues, window[1] - spanFrom, results[window[0]], window[3],
+                                        window[2]);
+                            }
+                        } catch (RuntimeException e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            latch.countDown();
+                        }
+                    }
+                });
+            }
 
-                result = EncodeUtil.merge(resultPart1, resultPart2);
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            executorService.shutdown();
+            if (failure.get() != null) {
+                throw new IllegalStateException("读取分桶失败: " + failure.get().getMessage(), failure.get());
+            }
+        }
 
-            } else {  //来自不同索引文件
-                final FileBucketReader[] bucketReaders = new FileBucketReader[2];
+        return results;
+    }
 
-                final int[] filePos = new int[2];
-                filePos[0] = pos0[0];
-                filePos[1] = pos1[0];
 
-                final int[] bucketPos = new int[2];
-                bucketPos[0] = pos0[1];
-                bucketPos[1] = pos1[1];
+    @Override
+    public long[] queryTopKNDesc(long k, int n) {
+        long totalNum = getSeqIdsIndex().getTotalNum();
+        if (k >= totalNum) {
+            return new long[0];
+        }
+        //降序下标[k, k + n)对应升序下标[totalNum - k - n, totalNum - k)
+        long end = totalNum - k;
+        int num = (int) Math.min(n, end);
+        return KNLimit.reverse(queryTopKN(end - num, num));
+    }
 
-                final long[][] resNeedMerge = new long[2][];
 
-                final CountDownLatch latch = new CountDownLatch(2);
-                for (int i = 0; i < 2; i++) {
-                    final int finalIndex = i;
-                    Thread thread = new Thread(new Runnable() {
-                        @Override
-                        public void run() {
+    @Override
+    public long rankOf(long v) {
+        return rankOf(getSeqIdsIndex(), v);
+    }
 
-                            File indexInfoFile = new File(BucketRule.getIndexInfoFileName(filePos[finalIndex]));
-                            File indexDataFile = new File(BucketRule.getIndexDataFileName(filePos[finalIndex]));
-                            FileBucketReader bucketReader = new FileBucketReader(indexInfoFile, indexDataFile);
-                            bucketReaders[finalIndex] = bucketReader;
 
-                            List<Long> pageValues = bucketReader.readData(bucketPos[finalIndex]);
-                            long[] pageLongValues = EncodeUtil.convert(pageValues);
-                            Arrays.sort(pageLongValues);
-                            resNeedMerge[finalIndex] = pageLongValues;
+    @Override
+    public long countBetween(long a, long b) {
+        if (a > b) {
+            return 0;
+        }
+        SeqIdsIndex seqIdsIndex = getSeqIdsIndex();
+        long notGreater = b == Long.MAX_VALUE ? seqIdsIndex.getTotalNum() : rankOf(seqIdsIndex, b + 1);
+        return notGreater - rankOf(seqIdsIndex, a);
+    }
 
-                            latch.countDown();
-                        }
-                    });
-                    thread.start();
-                }
 
-                try {
-                    latch.await();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+    /**
+     * v所在分桶的起始名次加上分桶内小于v的个数，空分桶不读取
+     *
+     * @param seqIdsIndex
+     * @param v
+     * @return
+     */
+    private static long rankOf(SeqIdsIndex seqIdsIndex, long v) {
+        int bucketIndex = BucketRule.getShouldBucketIndex(v);
+        long rank = seqIdsIndex.getBucketBeginRank(bucketIndex);
+        if (seqIdsIndex.getBucketBeginRank(bucketIndex + 1) == rank) {
+            return rank;
+        }
+
+        FileBucketReader bucketReader = getBucketReader(bucketIndex / AppConstants.FILE_INNER_BUCKET_NUM);
+        if (bucketCache != null && !bucketReader.isSorted()) {
+            try {
+                return rank + RankSearch.lowerBound(bucketCache.get(bucketIndex, sortedBucketLoader), v);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        long[] values = bucketReader.readData(bucketIndex % AppConstants.FILE_INNER_BUCKET_NUM);
+        return rank + (bucketReader.isSorted() ? RankSearch.lowerBound(values, v) : RankSearch.countLess(values, v));
+    }
+
+
+    private static void addBucketWindow(Map<Integer, List<int[]>> bucketWindows, int bucketKey, int[] window) {
+        if (window[2] <= 0) {
+            return;
+        }
+        List<int[]> windows = bucketWindows.get(bucketKey);
+        if (windows == null) {
+            windows = new ArrayList<>();
+            bucketWindows.put(bucketKey, windows);
+        }
+        windows.add(window);
+    }
+
+
+    /**
+     * 获取全局索引，首次调用时从文件加载
+     *
+     * @return
+     */
+    static SeqIdsIndex getSeqIdsIndex() {
+        SeqIdsIndex seqIdsIndex = cachedSeqIdsIndex;
+        if (seqIdsIndex == null) {
+            synchronized (TopKN.class) {
+                seqIdsIndex = cachedSeqIdsIndex;
+                if (seqIdsIndex == null) {
+                    try {
+                        seqIdsIndex = SeqIdsIndex.getInstanceFromFile(new File(BucketRule.getGlobalIndexInfoFileName()));
+                    } catch (IOException e) {
+                        throw new IllegalStateException("global index load failed: " + e.getMessage(), e);
+                    }
+                    BucketRule.setSplitters(seqIdsIndex.getSplitters() == null
+                            ? null : new BucketSplitters(seqIdsIndex.getSplitters()));
+                    cachedSeqIdsIndex = seqIdsIndex;
                 }
+            }
+        }
+        return seqIdsIndex;
+    }
 
-                int start = bucketReaders[0].getInnerPageStartPos(k, bucketPos[0]);
-                int end = resNeedMerge[0].length;
-                long[] resultPart1 = Arrays.copyOfRange(resNeedMerge[0], start, end);
-                int left = n - (end - start);
-                long[] resultPart2 = Arrays.copyOfRange(resNeedMerge[1], 0, left);
 
-                result = EncodeUtil.merge(resultPart1, resultPart2);
+    /**
+     * 获取分桶文件的reader，首次调用时加载该文件的索引信息
+     *
+     * @param fileIndex
+     * @return
+     */
+    static FileBucketReader getBucketReader(int fileIndex) {
+        FileBucketReader bucketReader = cachedBucketReaders.get(fileIndex);
+        if (bucketReader == null) {
+            bucketReader = new FileBucketReader(new File(BucketRule.getIndexInfoFileName(fileIndex)),
+                    new File(BucketRule.getIndexDataFileName(fileIndex)));
+            if (!cachedBucketReaders.compareAndSet(fileIndex, null, bucketReader)) {
+                bucketReader = cachedBucketReaders.get(fileIndex);
             }
         }
+        return bucketReader;
+    }
 
-        //==========3.输出结果=============
-        outputResults(result);
+    /**
+     * 名次窗口[k, k + n)落在全局分桶内的一段{分桶内起始下标, 数量}，由全局索引的起始名次算出
+     *
+     * @param seqIdsIndex
+     * @param bucketIndex
+     * @param k
+     * @param n
+     * @return
+     */
+    static int[] getBucketWindow(SeqIdsIndex seqIdsIndex, int bucketIndex, long k, int n) {
+        long bucketBegin = seqIdsIndex.getBucketBeginRank(bucketIndex);
+        long from = Math.max(k, bucketBegin);
+        long to = Math.min(k + n, seqIdsIndex.getBucketBeginRank(bucketIndex + 1));
+        return new int[]{(int) (from - bucketBegin), (int) Math.max(0, to - from)};
+    }
+
+    /**
+     * 读取分桶内排序后下标[from, from + num)的数据
+     * 构建时已排序的分桶只按位置读取这一段；开启分桶缓存时从缓存的有序数组中截取；
+     * 否则读出整个分桶，只选出这一段并排序
+     *
+     * @param fileIndex
+     * @param innerBucketNum
+     * @param from
+     * @param num
+     * @return
+     */
+    static long[] readBucketRange(int fileIndex, int innerBucketNum, int from, int num) {
+        FileBucketReader bucketReader = getBucketReader(fileIndex);
+        if (bucketReader.isSorted()) {
+            return bucketReader.readSortedData(innerBucketNum, from, num);
+        }
+        if (bucketCache != null) {
+            try {
+                long[] sortedValues = bucketCache.get(fileIndex * AppConstants.FILE_INNER_BUCKET_NUM + innerBucketNum,
+                        sortedBucketLoader);
+                return Arrays.copyOfRange(sortedValues, from, from + num);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        //比赛环境数据量在5000左右,只对需要的窗口排序
+        long[] pageLongValues = bucketReader.readData(innerBucketNum);
+        Introselect.selectRange(pageLongValues, 0, pageLongValues.length, from, from + num);
+        return Arrays.copyOfRange(pageLongValues, from, from + num);
     }
 
     static void outputResults(long[] resultList) {
         try {
-            FileWriter fileWriter = new FileWriter(BucketRule.getResultFileName());
-            for (long value : resultList) {
-                fileWriter.append(String.valueOf(value)).append("\n");
-            }
-            fileWriter.flush();
+            ResultWriter.writeResult(BucketRule.getResultFileName(), resultList);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -2,98 +2,158 @@ package io.leavesfly.middleware.race.v1.bucket;
 
 
 import io.leavesfly.middleware.race.v1.AppConstants;
-import io.leavesfly.middleware.race.v1.util.EncodeUtil;
 
 
 import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
 /**
  * Created by yefei.yf on 2017/4/3.
+ * 分桶缓存页：每个分桶有一个当前页，写入线程用fetch-and-add领取页内位置后直接写入，不加锁也不产生对象；
+ * 领到最后一个位置的线程负责换上新页，最后写完的线程负责把满页交出去，交出后页的内存回到页池复用
  */
 public class BucketBuffer {
 
+    private static final int PAGE_POOL_SIZE = 64;
+
     private int BUCKET_CACHE_CAPA = AppConstants.LONG_BYTE * AppConstants.LONG_BYTE_BUFFER_NUM;
 
     private BufferedOutputStream bufferedOutputStream;
-    private byte[][] buffers;
-    private int[] bufferOffsets;
-    private final AtomicBoolean[] locks = new AtomicBoolean[AppConstants.FILE_INNER_BUCKET_NUM];
 
-    private ConcurrentLinkedQueue<Long>[] concurrentLinkedQueues = new ConcurrentLinkedQueue[AppConstants.FILE_INNER_BUCKET_NUM];
+    private final AtomicReferenceArray<Page> pages = new AtomicReferenceArray<>(AppConstants.FILE_INNER_BUCKET_NUM);
+
+    //交出后的页内存，换新页时优先从这里取
+    private final ArrayBlockingQueue<ByteBuffer> pagePool = new ArrayBlockingQueue<>(PAGE_POOL_SIZE);
 
     public BucketBuffer(FileOutputStream fileOutputStream) {
 
         this.bufferedOutputStream = new BufferedOutputStream(fileOutputStream);
-        buffers = new byte[AppConstants.FILE_INNER_BUCKET_NUM][BUCKET_CACHE_CAPA];
-        bufferOffsets = new int[AppConstants.FILE_INNER_BUCKET_NUM];
         for (int i = 0; i < AppConstants.FILE_INNER_BUCKET_NUM; i++) {
-            locks[i] = new AtomicBoolean(false);
-            concurrentLinkedQueues[i] = new ConcurrentLinkedQueue();
+            pages.set(i, newPage());
         }
 
     }
 
     public void writeData(long value, int bufferIndex, ElseNeedDo elseNeedDo) {
 
-        if (locks[bufferIndex].compareAndSet(false, true)) {
-            System.arraycopy(EncodeUtil.long2bytes(value), 0, buffers[bufferIndex], bufferOffsets[bufferIndex], AppConstants.LONG_BYTE);
-            bufferOffsets[bufferIndex] += AppConstants.LONG_BYTE;
-
-            if (bufferOffsets[bufferIndex] >= BUCKET_CACHE_CAPA) {
-                bufferOffsets[bufferIndex] = 0;
-                byte[] tmp = buffers[bufferIndex];
-                buffers[bufferIndex] = new byte[BUCKET_CACHE_CAPA];
-                locks[bufferIndex].set(false);
-
-                synchronized (this) {
-                    try {
-                        bufferedOutputStream.write(tmp);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    elseNeedDo.doSomething(bufferIndex);
+        Page full = append(value, bufferIndex);
+        if (full != null) {
+            writePage(full.buffer.array(), bufferIndex, elseNeedDo);
+            recycle(full);
+        }
+    }
+
+    /**
+     * 流水线模式：页满时交给pageEmitter，pageEmitter返回后页内存回到页池，不在这里写盘
+     *
+     * @param value
+     * @param bufferIndex
+     * @param pageEmitter
+     */
+    public void writeData(long value, int bufferIndex, PageEmitter pageEmitter) throws IOException {
+
+        Page full = append(value, bufferIndex);
+        if (full != null) {
+            try {
+                pageEmitter.emit(bufferIndex, full.buffer.array());
+            } finally {
+                recycle(full);
+            }
+        }
+    }
+
+    /**
+     * 把值写入分桶的当前页
+     *
+     * @param value
+     * @param bufferIndex
+     * @return 本次写入使页写满且所有位置都已写完时返回该页，由调用方交出；否则返回null
+     */
+    private Page append(long value, int bufferIndex) {
+
+        while (true) {
+            Page page = pages.get(bufferIndex);
+            int slot = Page.CLAIMED.getAndIncrement(page);
+            if (slot < AppConstants.LONG_BYTE_BUFFER_NUM) {
+                //堆内ByteBuffer的绝对位置写入不改变position，多个线程写不同位置互不影响
+                page.buffer.putLong(slot * AppConstants.LONG_BYTE, value);
+                if (slot == AppConstants.LONG_BYTE_BUFFER_NUM - 1) {
+                    //领到最后一个位置的线程负责换上新页，换页在计入写完之前，交出的页一定已不是当前页
+                    pages.set(bufferIndex, newPage());
                 }
+                return Page.FILLED.incrementAndGet(page) == AppConstants.LONG_BYTE_BUFFER_NUM ? page : null;
+            }
+            //页已被领满，等待换上新页；旧页对象不复用，迟到的领取只会落在已满的旧页上
+            while (pages.get(bufferIndex) == page) {
+                Thread.yield();
             }
-            locks[bufferIndex].set(false);
-        } else {
-            concurrentLinkedQueues[bufferIndex].add(value);
         }
     }
 
+    private Page newPage() {
+        ByteBuffer buffer = pagePool.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(BUCKET_CACHE_CAPA);
+        }
+        return new Page(buffer);
+    }
+
+    private void recycle(Page page) {
+        pagePool.offer(page.buffer);
+    }
+
     /**
+     * 把一个满页写入文件，流水线写线程也直接调用
+     *
+     * @param page
+     * @param bufferIndex
      * @param elseNeedDo
      */
+    public void writePage(byte[] page, int bufferIndex, ElseNeedDo elseNeedDo) {
+        synchronized (this) {
+            try {
+                bufferedOutputStream.write(page, 0, BUCKET_CACHE_CAPA);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            elseNeedDo.doSomething(bufferIndex);
+        }
+    }
 
-    public void flush(ElseNeedDo elseNeedDo, ElseNeedDo elseNeedDoAppand) {
+    /**
+     * 写出各分桶未满的当前页，须在所有写入线程结束后调用
+     *
+     * @param elseNeedDo
+     */
 
-        for (int i = 0; i < bufferOffsets.length; i++) {
-            if (!concurrentLinkedQueues[i].isEmpty()) {
-                Object[] values = concurrentLinkedQueues[i].toArray();
-                for (Object value : values) {
-                    writeData((Long) value, i, elseNeedDoAppand);
-                }
-            }
+    public void flush(ElseNeedDo elseNeedDo) {
 
-            if (bufferOffsets[i] != 0) {
+        for (int i = 0; i < AppConstants.FILE_INNER_BUCKET_NUM; i++) {
+            Page page = pages.get(i);
+            int byteNum = page.claimed * AppConstants.LONG_BYTE;
+            if (byteNum != 0) {
                 try {
                     //内存页对齐，便于寻址
-                    Arrays.fill(buffers[i], bufferOffsets[i], BUCKET_CACHE_CAPA, (byte) AppConstants.INVALID_LONG_VALUE);
-                    bufferedOutputStream.write(buffers[i]);
+                    byte[] bytes = page.buffer.array();
+                    Arrays.fill(bytes, byteNum, BUCKET_CACHE_CAPA, (byte) AppConstants.INVALID_LONG_VALUE);
+                    bufferedOutputStream.write(bytes);
 
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
-                elseNeedDo.doSomething(i, bufferOffsets[i]);
-                bufferOffsets[i] = 0;
+                elseNeedDo.doSomething(i, byteNum);
             }
+            pages.set(i, null);
         }
+        pagePool.clear();
         try {
             bufferedOutputStream.flush();
             bufferedOutputStream.close();
@@ -102,6 +162,25 @@ public class BucketBuffer {
         }
     }
 
+    /**
+     * 分桶的一个缓存页：claimed为已领取的位置数，filled为已写完的位置数
+     */
+    private static final class Page {
+
+        static final AtomicIntegerFieldUpdater<Page> CLAIMED =
+                AtomicIntegerFieldUpdater.newUpdater(Page.class, "claimed");
+        static final AtomicIntegerFieldUpdater<Page> FILLED =
+                AtomicIntegerFieldUpdater.newUpdater(Page.class, "filled");
+
+        final ByteBuffer buffer;
+        volatile int claimed;
+        volatile int filled;
+
+        Page(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
     interface ElseNeedDo {
         /**
          * @param args
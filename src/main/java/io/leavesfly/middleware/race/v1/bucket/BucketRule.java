@@ -1,16 +1,49 @@
 package io.leavesfly.middleware.race.v1.bucket;
 
 import io.leavesfly.middleware.race.KNLimit;
+import io.leavesfly.middleware.race.util.BucketSplitters;
 import io.leavesfly.middleware.race.v1.AppConstants;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * Created by yefei.yf on 2017/4/4.
  */
 public class BucketRule {
 
+    //采样得到的分桶边界，为null时按高位分桶；须在分桶线程启动前设置
+    private static BucketSplitters splitters;
+
+    public static void setSplitters(BucketSplitters bucketSplitters) {
+        splitters = bucketSplitters;
+    }
+
+    public static BucketSplitters getSplitters() {
+        return splitters;
+    }
+
+    /**
+     * 翻转符号位，按无符号比较的顺序与原值按有符号比较的顺序相同，负数落在编号小的分桶
+     *
+     * @param value
+     * @return
+     */
+    public static long sortableKey(long value) {
+        return value ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * 确定某个具体值的全局分桶号：分桶文件号 * FILE_INNER_BUCKET_NUM + 文件内分桶号
+     *
+     * @param value
+     * @return
+     */
+    public static int getShouldBucketIndex(long value) {
+        BucketSplitters current = splitters;
+        if (current != null) {
+            return current.bucketOf(value);
+        }
+        return (int) (sortableKey(value) >>> (64 - AppConstants.FILE_INNER_BUCKET_BIT_NUM));
+    }
+
     /**
      * 确定某个具体值的索引位置
      *
@@ -20,37 +53,54 @@ public class BucketRule {
 
     public static int[] getShouldIndexPosition(long value) {
 
-        long i = value >> (64 - AppConstants.BUCKET_FILE_BIT_NUM);
-        long j = (value >> (64 - AppConstants.FILE_INNER_BUCKET_BIT_NUM)) % AppConstants.FILE_INNER_BUCKET_NUM;
         int[] result = new int[2];
-        result[0] = (int) i;
-        result[1] = (int) j;
+        result[0] = getShouldFileIndex(value);
+        result[1] = getShouldInnerBucketIndex(value);
         return result;
     }
 
     /**
-     * 读取数据时，定位k,n的文件page位置
+     * 确定某个具体值所在的分桶文件，不产生对象
      *
-     * @param k
-     * @param n
+     * @param value
      * @return
      */
-    public static List<int[]> getKNIndexPosition(long k, int n, SeqIdsIndex seqIdsIndex) {
-
-        int[] beginPosition = seqIdsIndex.getIndexPosition(k);
-        int[] endPosition = seqIdsIndex.getIndexPosition(k + n - 1);
-
-        List<int[]> result = new ArrayList<>();
-        result.add(beginPosition);
-
-        if (endPosition[0] != beginPosition[0] || endPosition[1] != beginPosition[1]) {
-            result.add(endPosition);
+    public static int getShouldFileIndex(long value) {
+        if (splitters != null) {
+            return getShouldBucketIndex(value) / AppConstants.FILE_INNER_BUCKET_NUM;
         }
+        return (int) (sortableKey(value) >>> (64 - AppConstants.BUCKET_FILE_BIT_NUM));
+    }
 
-        return result;
+    /**
+     * 确定某个具体值在分桶文件内的分桶，不产生对象
+     *
+     * @param value
+     * @return
+     */
+    public static int getShouldInnerBucketIndex(long value) {
+        if (splitters != null) {
+            return getShouldBucketIndex(value) % AppConstants.FILE_INNER_BUCKET_NUM;
+        }
+        return (int) ((sortableKey(value) >>> (64 - AppConstants.FILE_INNER_BUCKET_BIT_NUM))
+                % AppConstants.FILE_INNER_BUCKET_NUM);
     }
 
+    /**
+     * 读取数据时，定位k,n所在的全局分桶号{起始分桶, 结束分桶}，只落在一个分桶内时两者相同
+     * 文件号 = 全局分桶号 / FILE_INNER_BUCKET_NUM，文件内分桶号 = 全局分桶号 % FILE_INNER_BUCKET_NUM
+     *
+     * @param k
+     * @param n
+     * @return
+     */
+    public static int[] getKNIndexPosition(long k, int n, SeqIdsIndex seqIdsIndex) {
 
+        int[] result = new int[2];
+        result[0] = seqIdsIndex.getBucketIndex(k);
+        result[1] = seqIdsIndex.getBucketIndex(k + n - 1);
+        return result;
+    }
 
 
     public static String getIndexDataFileName(int i) {
@@ -65,6 +115,10 @@ public class BucketRule {
         return KNLimit.MIDDLE_DIR + "global.index";
     }
 
+    public static String getBuildManifestFileName() {
+        return AppConstants.INDEX_DIR + "build.manifest";
+    }
+
     public static String getResultFileName() {
         return KNLimit.RESULT_DIR + KNLimit.RESULT_NAME;
     }
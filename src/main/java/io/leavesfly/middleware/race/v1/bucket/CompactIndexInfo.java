@@ -0,0 +1,140 @@
+package io.leavesfly.middleware.race.v1.bucket;
+
+import io.leavesfly.middleware.race.v1.AppConstants;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 一个分桶文件的紧凑索引（CSR形式），查询时使用
+ * 分桶i的页位置为pageOffsets[bucketPageStarts[i], bucketPageStarts[i + 1])，
+ * 名次区间为[rankPrefix[i], rankPrefix[i + 1])；全部是基本类型数组，读取时不装箱
+ * <p>
+ * 文件格式（大端）：
+ * <pre>
+ * 头部24字节：magic(int) version(int) flags(int) bucketNum(int) pageNum(int) reserved(int)
+ * rankPrefix：long[bucketNum + 1]
+ * pageOffsets：long[pageNum]
+ * bucketPageStarts：int[bucketNum + 1]
+ * </pre>
+ */
+public class CompactIndexInfo {
+
+    private static final int MAGIC = 0x544B5631; // "TKV1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    private static final int FLAG_SORTED = 1;
+
+    private final long[] pageOffsets;
+    private final int[] bucketPageStarts;
+    private final long[] rankPrefix;
+    private final boolean sorted;
+
+    public CompactIndexInfo(long[] pageOffsets, int[] bucketPageStarts, long[] rankPrefix, boolean sorted) {
+        this.pageOffsets = pageOffsets;
+        this.bucketPageStarts = bucketPageStarts;
+        this.rankPrefix = rankPrefix;
+        this.sorted = sorted;
+    }
+
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    public int getPageNum(int innerBucketIndex) {
+        return bucketPageStarts[innerBucketIndex + 1] - bucketPageStarts[innerBucketIndex];
+    }
+
+    /**
+     * 分桶内第page页在数据文件中的位置
+     *
+     * @param innerBucketIndex
+     * @param page
+     * @return
+     */
+    public long getPageOffset(int innerBucketIndex, int page) {
+        return pageOffsets[bucketPageStarts[innerBucketIndex] + page];
+    }
+
+    public long getBeginRank(int innerBucketIndex) {
+        return rankPrefix[innerBucketIndex];
+    }
+
+    public int getValueNum(int innerBucketIndex) {
+        return (int) (rankPrefix[innerBucketIndex + 1] - rankPrefix[innerBucketIndex]);
+    }
+
+    public void write2File(File file) throws IOException {
+
+        int bucketNum = bucketPageStarts.length - 1;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE
+                + (rankPrefix.length + pageOffsets.length) * AppConstants.LONG_BYTE
+                + bucketPageStarts.length * 4);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(sorted ? FLAG_SORTED : 0);
+        buffer.putInt(bucketNum);
+        buffer.putInt(pageOffsets.length);
+        buffer.putInt(0);
+        buffer.asLongBuffer().put(rankPrefix).put(pageOffsets);
+        buffer.position(buffer.position() + (rankPrefix.length + pageOffsets.length) * AppConstants.LONG_BYTE);
+        buffer.asIntBuffer().put(bucketPageStarts);
+        buffer.clear();
+
+        FileChannel channel = new FileOutputStream(file).getChannel();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * 映射索引文件，一次读出全部数组
+     *
+     * @param file
+     * @return
+     * @throws IOException 格式、版本或长度不符
+     */
+    public static CompactIndexInfo loadFromFile(File file) throws IOException {
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            long length = randomAccessFile.length();
+            if (length < HEADER_SIZE) {
+                throw new IOException("index file is incomplete: " + file);
+            }
+            MappedByteBuffer mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (mapped.getInt() != MAGIC || mapped.getInt() != VERSION) {
+                throw new IOException("index file format or version mismatch, rebuild middle data: " + file);
+            }
+            boolean sorted = (mapped.getInt() & FLAG_SORTED) != 0;
+            int bucketNum = mapped.getInt();
+            int pageNum = mapped.getInt();
+            mapped.getInt();
+            long expected = HEADER_SIZE + ((long) bucketNum + 1 + pageNum) * AppConstants.LONG_BYTE
+                    + (bucketNum + 1) * 4L;
+            if (length != expected) {
+                throw new IOException("index file length mismatch: " + file);
+            }
+
+            long[] rankPrefix = new long[bucketNum + 1];
+            long[] pageOffsets = new long[pageNum];
+            int[] bucketPageStarts = new int[bucketNum + 1];
+            mapped.asLongBuffer().get(rankPrefix).get(pageOffsets);
+            mapped.position(mapped.position() + (rankPrefix.length + pageNum) * AppConstants.LONG_BYTE);
+            mapped.asIntBuffer().get(bucketPageStarts);
+            return new CompactIndexInfo(pageOffsets, bucketPageStarts, rankPrefix, sorted);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
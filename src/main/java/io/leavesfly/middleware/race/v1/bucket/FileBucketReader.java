@@ -1,18 +1,16 @@
 package io.leavesfly.middleware.race.v1.bucket;
 
 import io.leavesfly.middleware.race.v1.AppConstants;
-import io.leavesfly.middleware.race.v1.util.EncodeUtil;
-import io.leavesfly.middleware.race.v1.util.SerializeUtil;
 
 import java.io.*;
-import java.util.*;
+import java.nio.ByteBuffer;
 
 /**
  * Created by yefei.yf on 2017/4/1.
  */
 public class FileBucketReader {
 
-    private IndexInfo indexInfo;
+    private CompactIndexInfo indexInfo;
 
     private File dateFile;
 
@@ -21,7 +19,7 @@ public class FileBucketReader {
     public FileBucketReader(File indexFile, File dateFile) {
 
         try {
-            indexInfo = (IndexInfo) SerializeUtil.unserializeFromFile(indexFile);
+            indexInfo = CompactIndexInfo.loadFromFile(indexFile);
             this.dateFile = dateFile;
         } catch (Exception e) {
             e.printStackTrace();
@@ -34,44 +32,88 @@ public class FileBucketReader {
      * @param innerBucketNum
      * @return
      */
-    public List<Long> readData(int innerBucketNum) {
+    public long[] readData(int innerBucketNum) {
 
         // 大概5000-1w 测试环境1/10
-        List<Long> pageValues = new ArrayList<>();
-        InnerBucketInfo innerBucketInfo = indexInfo.getIndexMapInfo().get(innerBucketNum);
-        if (innerBucketInfo == null) {
-            return pageValues;
+        long[] values = new long[indexInfo.getValueNum(innerBucketNum)];
+        int pageNum = indexInfo.getPageNum(innerBucketNum);
+        if (pageNum == 0) {
+            return values;
         }
         RandomAccessFile randomAccessFile = null;
         try {
             randomAccessFile = new RandomAccessFile(dateFile, "r");
-            List<Long> pageIndexes = innerBucketInfo.getPageIndexes();
-            for (long pageIndex : pageIndexes) {
-                byte[] inBucketPage = new byte[BUCKET_CACHE_CAPA];
-
-                randomAccessFile.seek(pageIndex);
+            byte[] inBucketPage = new byte[BUCKET_CACHE_CAPA];
+            ByteBuffer pageBuffer = ByteBuffer.wrap(inBucketPage);
+            int count = 0;
+            for (int page = 0; page < pageNum; page++) {
+                randomAccessFile.seek(indexInfo.getPageOffset(innerBucketNum, page));
                 randomAccessFile.readFully(inBucketPage);
 
-                for (int i = 0; i < BUCKET_CACHE_CAPA; ) {
-                    long value = EncodeUtil.bytes2long(Arrays.copyOfRange(inBucketPage, i, i + AppConstants.LONG_BYTE));
-                    if (value == AppConstants.INVALID_LONG_VALUE) {
-                        break;
-                    }
-                    pageValues.add(value);
-                    i += AppConstants.LONG_BYTE;
-                }
+                //只有最后一页有填充，按数据量截止
+                int readNum = Math.min(AppConstants.LONG_BYTE_BUFFER_NUM, values.length - count);
+                pageBuffer.clear();
+                pageBuffer.asLongBuffer().get(values, count, readNum);
+                count += readNum;
+            }
+            randomAccessFile.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return values;
+    }
+
+
+    /**
+     * 从构建时已排序的分桶中读取下标[from, from + num)的数据，只读取涉及的页内片段
+     *
+     * @param innerBucketNum
+     * @param from
+     * @param num
+     * @return
+     */
+    public long[] readSortedData(int innerBucketNum, int from, int num) {
+
+        if (num <= 0) {
+            return new long[0];
+        }
+        long[] result = new long[num];
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(dateFile, "r");
+            int resultPos = 0;
+            while (resultPos < num) {
+                int seq = from + resultPos;
+                int slot = seq % AppConstants.LONG_BYTE_BUFFER_NUM;
+                int readNum = Math.min(num - resultPos, AppConstants.LONG_BYTE_BUFFER_NUM - slot);
+                byte[] bytes = new byte[readNum * AppConstants.LONG_BYTE];
+
+                randomAccessFile.seek(indexInfo.getPageOffset(innerBucketNum, seq / AppConstants.LONG_BYTE_BUFFER_NUM)
+                        + slot * AppConstants.LONG_BYTE);
+                randomAccessFile.readFully(bytes);
+                ByteBuffer.wrap(bytes).asLongBuffer().get(result, resultPos, readNum);
+                resultPos += readNum;
             }
             randomAccessFile.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
-        return pageValues;
+        return result;
+    }
+
+
+    public boolean isSorted() {
+        return indexInfo.isSorted();
+    }
+
+
+    public int getInnerBucketValueNum(int innerBucketIndex) {
+        return indexInfo.getValueNum(innerBucketIndex);
     }
 
 
     public int getInnerPageStartPos(long k, int innerBucketIndex) {
-        InnerBucketInfo innerBucketInfo = indexInfo.getInnerBucketInfo(innerBucketIndex);
-        return (int) (k - innerBucketInfo.getBeginIdIndexValue());
+        return (int) (k - indexInfo.getBeginRank(innerBucketIndex));
     }
 
 }
\ No newline at end of file
@@ -1,12 +1,17 @@
 package io.leavesfly.middleware.race.v1.bucket;
 
+import io.leavesfly.middleware.race.util.MappedLongFile;
+import io.leavesfly.middleware.race.util.RadixSort;
 import io.leavesfly.middleware.race.v1.AppConstants;
-import io.leavesfly.middleware.race.v1.util.SerializeUtil;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Created by yefei.yf on 2017/4/1.
@@ -17,9 +22,14 @@ public class FileBucketWriter {
 
     private final IndexInfo indexInfo;
     private File indexFile;
+    private File dataFile;
 
     private BucketBuffer bucketBuffer;
 
+    //两遍构建时预分配的数据文件映射，以及每个分桶下一个写入位置
+    private MappedLongFile mappedDataFile;
+    private AtomicLongArray scatterCursors;
+
     private int BUCKET_CACHE_CAPA = AppConstants.LONG_BYTE * AppConstants.LONG_BYTE_BUFFER_NUM;
 
     private final BucketBuffer.ElseNeedDo writeFunc = new BucketBuffer.ElseNeedDo() {
@@ -62,6 +72,7 @@ public class FileBucketWriter {
 
         indexInfo = new IndexInfo();
         this.indexFile = indexFile;
+        this.dataFile = dataFile;
         try {
             bucketBuffer = new BucketBuffer(new FileOutputStream(dataFile));
         } catch (FileNotFoundException e) {
@@ -70,6 +81,69 @@ public class FileBucketWriter {
     }
 
 
+    /**
+     * 两遍构建：已知每个分桶的精确数据量，预分配数据文件，每个分桶占用连续的页，
+     * 页位置在写入数据前就已确定，最后一页的空位预先填充无效值
+     *
+     * @param dataFile
+     * @param indexFile
+     * @param innerBucketCounts 文件内每个分桶的数据量
+     */
+    public FileBucketWriter(File dataFile, File indexFile, long[] innerBucketCounts) throws IOException {
+
+        indexInfo = new IndexInfo();
+        this.indexFile = indexFile;
+        this.dataFile = dataFile;
+        scatterCursors = new AtomicLongArray(AppConstants.FILE_INNER_BUCKET_NUM);
+
+        long pageIndex = 0L;
+        for (int i = 0; i < AppConstants.FILE_INNER_BUCKET_NUM; i++) {
+            long count = innerBucketCounts[i];
+            if (count == 0) {
+                continue;
+            }
+            InnerBucketInfo innerBucketInfo = new InnerBucketInfo();
+            scatterCursors.set(i, pageIndex);
+            for (long left = count; left > 0; left -= AppConstants.LONG_BYTE_BUFFER_NUM) {
+                innerBucketInfo.add(pageIndex, (int) Math.min(left, AppConstants.LONG_BYTE_BUFFER_NUM));
+                pageIndex += BUCKET_CACHE_CAPA;
+            }
+            indexInfo.addInnerBucketInfo(i, innerBucketInfo);
+        }
+        dataFileCurrentSize.set(pageIndex);
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(dataFile, "rw");
+        try {
+            randomAccessFile.setLength(pageIndex);
+            mappedDataFile = new MappedLongFile(randomAccessFile.getChannel(), 0L, pageIndex);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        //最后一页的空位填充无效值
+        for (int i = 0; i < AppConstants.FILE_INNER_BUCKET_NUM; i++) {
+            long count = innerBucketCounts[i];
+            long end = scatterCursors.get(i) + count * AppConstants.LONG_BYTE;
+            long pageEnd = (end + BUCKET_CACHE_CAPA - 1) / BUCKET_CACHE_CAPA * BUCKET_CACHE_CAPA;
+            for (long position = end; position < pageEnd; position += AppConstants.LONG_BYTE) {
+                mappedDataFile.putLong(position, AppConstants.INVALID_LONG_VALUE);
+            }
+        }
+    }
+
+
+    /**
+     * 两遍构建的第二遍：把值直接写到预分配文件中所属分桶的下一个位置
+     *
+     * @param value
+     * @param innerBucketNum
+     */
+    public void scatterData(long value, int innerBucketNum) {
+
+        mappedDataFile.putLong(scatterCursors.getAndAdd(innerBucketNum, AppConstants.LONG_BYTE), value);
+    }
+
+
     /**
      * @param value
      * @param innerBucketNum
@@ -80,24 +154,121 @@ public class FileBucketWriter {
     }
 
 
+    /**
+     * 流水线模式下由分区线程调用，页满时交给pageEmitter
+     *
+     * @param value
+     * @param innerBucketNum
+     * @param pageEmitter
+     */
+    public void writeData(long value, final int innerBucketNum, PageEmitter pageEmitter) throws IOException {
+
+        bucketBuffer.writeData(value, innerBucketNum, pageEmitter);
+    }
+
+
+    /**
+     * 流水线模式下由写线程调用，写入一个满页并记录其位置
+     *
+     * @param innerBucketNum
+     * @param page
+     */
+    public void writePage(final int innerBucketNum, byte[] page) {
+
+        bucketBuffer.writePage(page, innerBucketNum, writeFunc);
+    }
+
+
     /**
      * 将剩余缓存写入文件，并将索引信息写入索引文件
      */
     public void flush() {
 
-        bucketBuffer.flush(flushFunc, writeFunc);
+        if (mappedDataFile != null) {
+            //两遍构建的数据已在映射文件中，释放映射即可
+            mappedDataFile = null;
+            return;
+        }
+        bucketBuffer.flush(flushFunc);
         //内存回收
         bucketBuffer = null;
     }
 
 
+    /**
+     * 把每个分桶在文件内原地排序：读出分桶的所有页，排序后按原页顺序依次写回，只有最后一页有填充
+     * 须在flush之后、indexInfo2File之前调用
+     */
+    public void sortInPlace() {
+        byte[] page = new byte[BUCKET_CACHE_CAPA];
+        ByteBuffer pageBuffer = ByteBuffer.wrap(page);
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(dataFile, "rw");
+            for (int inner = 0; inner < AppConstants.FILE_INNER_BUCKET_NUM; inner++) {
+                InnerBucketInfo innerBucketInfo = indexInfo.getInnerBucketInfo(inner);
+                if (innerBucketInfo == null) {
+                    continue;
+                }
+                int pageNum = innerBucketInfo.getPageNum();
+                int count = (int) innerBucketInfo.getHoldValueNum();
+                long[] values = new long[count];
+                int pos = 0;
+                for (int p = 0; p < pageNum; p++) {
+                    randomAccessFile.seek(innerBucketInfo.getPageIndex(p));
+                    randomAccessFile.readFully(page);
+                    int readNum = Math.min(AppConstants.LONG_BYTE_BUFFER_NUM, count - pos);
+                    pageBuffer.clear();
+                    pageBuffer.asLongBuffer().get(values, pos, readNum);
+                    pos += readNum;
+                }
+
+                RadixSort.sort(values, 0, count);
+
+                pos = 0;
+                for (int p = 0; p < pageNum; p++) {
+                    pageBuffer.clear();
+                    for (int i = 0; i < AppConstants.LONG_BYTE_BUFFER_NUM; i++) {
+                        pageBuffer.putLong(pos < count ? values[pos++] : AppConstants.INVALID_LONG_VALUE);
+                    }
+                    randomAccessFile.seek(innerBucketInfo.getPageIndex(p));
+                    randomAccessFile.write(page);
+                }
+            }
+            indexInfo.setSorted(true);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+
     public void indexInfo2File() {
-        SerializeUtil.serialize2File(indexInfo, indexFile);
+        try {
+            indexInfo.toCompact().write2File(indexFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
 
-    public IdRange getIdRangeIndexInfo(long thisBucketBeginIdIndex) {
+    /**
+     * 从thisBucketBeginIdIndex开始为文件内各分桶分配名次，并写入全局前缀和
+     *
+     * @param thisBucketBeginIdIndex
+     * @param globalRankPrefix
+     * @param offset
+     * @return 该文件之后的下一个名次
+     */
+    public long buildRankPrefix(long thisBucketBeginIdIndex, long[] globalRankPrefix, int offset) {
 
-        return indexInfo.buildSeqIdsIndexInfo(thisBucketBeginIdIndex);
+        return indexInfo.buildRankPrefix(thisBucketBeginIdIndex, globalRankPrefix, offset);
     }
 }
\ No newline at end of file
@@ -1,88 +1,107 @@
 package io.leavesfly.middleware.race.v1.bucket;
 
-import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
 import io.leavesfly.middleware.race.v1.AppConstants;
 
 /**
  * Created by yefei.yf on 2017/4/2.
+ * 构建期间一个分桶文件的索引信息，按文件内分桶号直接寻址；构建结束后转成CompactIndexInfo持久化
  */
-public class IndexInfo implements Serializable {
+public class IndexInfo {
+
+    private final InnerBucketInfo[] innerBucketInfos;
+
+    //各分桶的起始名次，最后一项为文件之后的下一个名次
+    private final long[] rankPrefix;
 
-    private Map<Integer, InnerBucketInfo> indexMapInfo;
+    //各分桶的数据是否已在构建时原地排好序
+    private boolean sorted;
 
     public IndexInfo() {
-        indexMapInfo = new ConcurrentHashMap<>();
+        innerBucketInfos = new InnerBucketInfo[AppConstants.FILE_INNER_BUCKET_NUM];
+        rankPrefix = new long[AppConstants.FILE_INNER_BUCKET_NUM + 1];
     }
 
-    public Map<Integer, InnerBucketInfo> getIndexMapInfo() {
-        return indexMapInfo;
+    public boolean isSorted() {
+        return sorted;
     }
 
-    public InnerBucketInfo getInnerBucketInfo(int key) {
-        return indexMapInfo.get(key);
+    public void setSorted(boolean sorted) {
+        this.sorted = sorted;
+    }
 
+    public InnerBucketInfo getInnerBucketInfo(int key) {
+        return innerBucketInfos[key];
     }
 
     public long getIndexInfoHoldValueSize() {
         long result = 0l;
-        for (InnerBucketInfo innerBucketInfo : indexMapInfo.values()) {
-            result += innerBucketInfo.getHoldValueNum().get();
+        for (InnerBucketInfo innerBucketInfo : innerBucketInfos) {
+            if (innerBucketInfo != null) {
+                result += innerBucketInfo.getHoldValueNum();
+            }
         }
         return result;
     }
 
 
     public void addInnerBucketInfo(int innerBucketIndex, InnerBucketInfo innerBucketInfo) {
-        indexMapInfo.put(innerBucketIndex, innerBucketInfo);
+        innerBucketInfos[innerBucketIndex] = innerBucketInfo;
 
     }
 
     /**
-     * 构建索引的数值下标范围
+     * 从beginIdIndex开始依次为文件内各分桶分配名次，
+     * 各分桶的起始名次同时写入全局的globalRankPrefix[offset, offset + FILE_INNER_BUCKET_NUM)
      *
      * @param beginIdIndex
+     * @param globalRankPrefix
+     * @param offset
+     * @return 该文件之后的下一个名次
      */
-    public IdRange buildSeqIdsIndexInfo(long beginIdIndex) {
-
-        List<IdRange> idRanges = new ArrayList<>(AppConstants.FILE_INNER_BUCKET_NUM);
+    public long buildRankPrefix(long beginIdIndex, long[] globalRankPrefix, int offset) {
 
-        InnerBucketInfo innerBucketInfo = null;
-        IdRange idRangeTmp = null;
-        int flagIndex = 0;
+        long rank = beginIdIndex;
         for (int i = 0; i < AppConstants.FILE_INNER_BUCKET_NUM; i++) {
-            innerBucketInfo = indexMapInfo.get(i);
+            rankPrefix[i] = rank;
+            globalRankPrefix[offset + i] = rank;
+            InnerBucketInfo innerBucketInfo = innerBucketInfos[i];
             if (innerBucketInfo != null) {
-                flagIndex = i;
-                idRangeTmp = new IdRange(beginIdIndex, beginIdIndex + innerBucketInfo.getHoldValueNum().get() - 1);
-                idRanges.add(idRangeTmp);
-                innerBucketInfo.setBeginIdIndexValue(idRangeTmp.getBeingSeqIdValue());
-                innerBucketInfo.setEndIdIndexValue(idRangeTmp.getEndSeqIdValue());
-                break;
+                rank += innerBucketInfo.getHoldValueNum();
             }
         }
+        rankPrefix[AppConstants.FILE_INNER_BUCKET_NUM] = rank;
+        return rank;
+    }
 
+    /**
+     * 转成CSR形式的紧凑索引：所有页位置连续存放，按分桶记录页的起始下标和起始名次
+     * 须在buildRankPrefix之后调用
+     *
+     * @return
+     */
+    public CompactIndexInfo toCompact() {
+
+        int bucketNum = AppConstants.FILE_INNER_BUCKET_NUM;
+        int[] bucketPageStarts = new int[bucketNum + 1];
+        int pageNum = 0;
+        for (int i = 0; i < bucketNum; i++) {
+            bucketPageStarts[i] = pageNum;
+            if (innerBucketInfos[i] != null) {
+                pageNum += innerBucketInfos[i].getPageNum();
+            }
+        }
+        bucketPageStarts[bucketNum] = pageNum;
 
-        for (int i = flagIndex + 1; i < AppConstants.FILE_INNER_BUCKET_NUM; i++) {
-            innerBucketInfo = null;
-            innerBucketInfo = indexMapInfo.get(i);
+        long[] pageOffsets = new long[pageNum];
+        for (int i = 0; i < bucketNum; i++) {
+            InnerBucketInfo innerBucketInfo = innerBucketInfos[i];
             if (innerBucketInfo != null) {
-                idRangeTmp = new IdRange(idRangeTmp.getEndSeqIdValue() + 1,
-                        idRangeTmp.getEndSeqIdValue() + innerBucketInfo.getHoldValueNum().get());
-                idRanges.add(idRangeTmp);
-                innerBucketInfo.setBeginIdIndexValue(idRangeTmp.getBeingSeqIdValue());
-                innerBucketInfo.setEndIdIndexValue(idRangeTmp.getEndSeqIdValue());
+                for (int p = 0; p < innerBucketInfo.getPageNum(); p++) {
+                    pageOffsets[bucketPageStarts[i] + p] = innerBucketInfo.getPageIndex(p);
+                }
             }
-
         }
-
-        IdRange result = new IdRange(beginIdIndex, idRangeTmp.getEndSeqIdValue());
-        result.setIdRanges(idRanges);
-        return result;
+        return new CompactIndexInfo(pageOffsets, bucketPageStarts, rankPrefix.clone(), sorted);
     }
 
 }
@@ -1,56 +1,39 @@
 package io.leavesfly.middleware.race.v1.bucket;
 
-import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Arrays;
 
 /**
  * Created by yefei.yf on 2017/4/2.
+ * 构建期间记录一个分桶的页位置和数据量，页位置存放在可增长的long数组中，不装箱
  */
-public class InnerBucketInfo implements Serializable {
+public class InnerBucketInfo {
 
-    private List<Long> pageIndexes;
-    private AtomicLong holdValueNum;
-
-    private long beginIdIndexValue;
-    private long endIdIndexValue;
+    private long[] pageIndexes;
+    private int pageNum;
+    private long holdValueNum;
 
 
     public InnerBucketInfo() {
-        pageIndexes = Collections.synchronizedList(new LinkedList<Long>());
-        holdValueNum = new AtomicLong(0);
+        pageIndexes = new long[4];
     }
 
-    public void add(long pageIndex, int addNum) {
-        pageIndexes.add(pageIndex);
-        holdValueNum.addAndGet(addNum);
+    public synchronized void add(long pageIndex, int addNum) {
+        if (pageNum == pageIndexes.length) {
+            pageIndexes = Arrays.copyOf(pageIndexes, pageNum * 2);
+        }
+        pageIndexes[pageNum++] = pageIndex;
+        holdValueNum += addNum;
     }
 
-    public AtomicLong getHoldValueNum() {
+    public synchronized long getHoldValueNum() {
         return holdValueNum;
     }
 
-    public List<Long> getPageIndexes() {
-        return pageIndexes;
-    }
-
-
-    public long getBeginIdIndexValue() {
-        return beginIdIndexValue;
-    }
-
-    public void setBeginIdIndexValue(long beginIdIndexValue) {
-        this.beginIdIndexValue = beginIdIndexValue;
-    }
-
-    public long getEndIdIndexValue() {
-        return endIdIndexValue;
+    public synchronized int getPageNum() {
+        return pageNum;
     }
 
-    public void setEndIdIndexValue(long endIdIndexValue) {
-        this.endIdIndexValue = endIdIndexValue;
+    public synchronized long getPageIndex(int i) {
+        return pageIndexes[i];
     }
 }
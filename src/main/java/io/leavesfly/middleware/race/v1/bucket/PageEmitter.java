@@ -0,0 +1,16 @@
+package io.leavesfly.middleware.race.v1.bucket;
+
+import java.io.IOException;
+
+/**
+ * 流水线构建时，分桶缓存页满后的出口，由分区线程调用
+ * 实现方需要在返回前把页内容取走，返回后该页会被原地复用
+ */
+public interface PageEmitter {
+
+    /**
+     * @param innerBucketNum
+     * @param page
+     */
+    void emit(int innerBucketNum, byte[] page) throws IOException;
+}
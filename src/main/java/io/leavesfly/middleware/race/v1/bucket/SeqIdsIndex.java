@@ -1,49 +1,142 @@
 package io.leavesfly.middleware.race.v1.bucket;
 
 import io.leavesfly.middleware.race.v1.AppConstants;
-import io.leavesfly.middleware.race.v1.util.SearchUtil;
-import io.leavesfly.middleware.race.v1.util.SerializeUtil;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Created by yefei.yf on 2017/4/4.
+ * 全局索引：所有分桶（按全局分桶号 = 分桶文件号 * FILE_INNER_BUCKET_NUM + 文件内分桶号）起始名次的前缀和
+ * <p>
+ * 文件格式（大端）：
+ * <pre>
+ * 头部16字节：magic(int) version(int) bucketNum(int) splitterNum(int)
+ * rankPrefix：long[bucketNum + 1]
+ * splitters：long[splitterNum]，按高位分桶时为空
+ * </pre>
  */
-public class SeqIdsIndex implements Serializable {
+public class SeqIdsIndex {
 
-    private List<IdRange> seqIdsIndexInfos;
+    private static final int MAGIC = 0x544B5647; // "TKVG"
+    //版本2：按翻转符号位后的高位分桶
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
 
-    public SeqIdsIndex() {
-        seqIdsIndexInfos = new ArrayList<>(AppConstants.BUCKET_FILE_NUM);
+    //全局分桶i的名次区间为[rankPrefix[i], rankPrefix[i + 1])
+    private final long[] rankPrefix;
+
+    //采样得到的分桶边界，按高位分桶时为null
+    private long[] splitters;
+
+    public SeqIdsIndex(long[] rankPrefix) {
+        this.rankPrefix = rankPrefix;
     }
 
-    public void addSeqIdsIndexInfo(IdRange idRange) {
-        seqIdsIndexInfos.add(idRange);
+    public long[] getSplitters() {
+        return splitters;
     }
 
-    public static SeqIdsIndex getInstanceFromFile(File file) {
-        return (SeqIdsIndex) SerializeUtil.unserializeFromFile(file);
+    public void setSplitters(long[] splitters) {
+        this.splitters = splitters;
     }
 
-    public void serialize2File(File file) {
-        SerializeUtil.serialize2File(this, file);
+    public static SeqIdsIndex getInstanceFromFile(File file) throws IOException {
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            long length = randomAccessFile.length();
+            if (length < HEADER_SIZE) {
+                throw new IOException("global index file is incomplete: " + file);
+            }
+            MappedByteBuffer mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (mapped.getInt() != MAGIC || mapped.getInt() != VERSION) {
+                throw new IOException("global index format or version mismatch, rebuild middle data: " + file);
+            }
+            int bucketNum = mapped.getInt();
+            int splitterNum = mapped.getInt();
+            if (length != HEADER_SIZE + ((long) bucketNum + 1 + splitterNum) * AppConstants.LONG_BYTE) {
+                throw new IOException("global index file length mismatch: " + file);
+            }
+
+            long[] rankPrefix = new long[bucketNum + 1];
+            mapped.asLongBuffer().get(rankPrefix);
+            SeqIdsIndex seqIdsIndex = new SeqIdsIndex(rankPrefix);
+            if (splitterNum > 0) {
+                long[] splitters = new long[splitterNum];
+                mapped.position(mapped.position() + rankPrefix.length * AppConstants.LONG_BYTE);
+                mapped.asLongBuffer().get(splitters);
+                seqIdsIndex.setSplitters(splitters);
+            }
+            return seqIdsIndex;
+        } finally {
+            randomAccessFile.close();
+        }
     }
 
-    public int[] getIndexPosition(long k) {
+    public void serialize2File(File file) throws IOException {
 
-        IdRange[] idRangeArr = seqIdsIndexInfos.toArray(new IdRange[seqIdsIndexInfos.size()]);
-        int i = SearchUtil.searchIdRange(k, idRangeArr);
+        int splitterNum = splitters == null ? 0 : splitters.length;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE
+                + (rankPrefix.length + splitterNum) * AppConstants.LONG_BYTE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(rankPrefix.length - 1);
+        buffer.putInt(splitterNum);
+        for (long rank : rankPrefix) {
+            buffer.putLong(rank);
+        }
+        for (int i = 0; i < splitterNum; i++) {
+            buffer.putLong(splitters[i]);
+        }
+        buffer.flip();
 
-        List<IdRange> idRangeList = idRangeArr[i].getIdRanges();
-        int j = SearchUtil.searchIdRange(k, idRangeList.toArray(new IdRange[idRangeList.size()]));
+        FileChannel channel = new FileOutputStream(file).getChannel();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * 数据总量
+     *
+     * @return
+     */
+    public long getTotalNum() {
+        return rankPrefix[rankPrefix.length - 1];
+    }
 
-        int[] position = new int[2];
-        position[0] = i;
-        position[1] = j;
+    /**
+     * 全局分桶的起始名次
+     *
+     * @param bucketIndex
+     * @return
+     */
+    public long getBucketBeginRank(int bucketIndex) {
+        return rankPrefix[bucketIndex];
+    }
 
-        return position;
+    /**
+     * 名次k所在的全局分桶号：最后一个起始名次不大于k的分桶，空分桶的起始名次与下一个分桶相同，自然被跳过
+     *
+     * @param k 须在[0, getTotalNum())内
+     * @return
+     */
+    public int getBucketIndex(long k) {
+        int base = 0;
+        int len = rankPrefix.length - 1;
+        while (len > 1) {
+            int half = len >>> 1;
+            base = rankPrefix[base + half] <= k ? base + half : base;
+            len -= half;
+        }
+        return base;
     }
 
 }
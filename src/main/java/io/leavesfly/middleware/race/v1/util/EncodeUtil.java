@@ -1,5 +1,9 @@
 package io.leavesfly.middleware.race.v1.util;
 
+import io.leavesfly.middleware.race.util.LongParser;
+import io.leavesfly.middleware.race.v1.AppConstants;
+
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -24,49 +28,35 @@ public class EncodeUtil {
         if (prexInput != null) {
             input = merge(prexInput, input);
         }
-        int size = input.length;
-        int i = 0;
-        int j = 0;
-        for (; i < size; i++) {
-            if (input[i] == LINE_CODE) {
-                long radix = 1;
-                int between = i - j;
-                long value = 0;
-                for (int index = 0; index < between; index++) {
-                    value += ((int) input[i - index - 1] - LETTER_INT_OFFSET) * radix;
-                    radix *= RADIX;
-                }
-                j = i + 1;
-                longValues.add(value);
-            }
-        }
-        if (i >= j) {
-            return Arrays.copyOfRange(input, j, i);
-        } else {
-            return null;
-        }
+        int end = parseLines(input, longValues);
+        return Arrays.copyOfRange(input, end, input.length);
     }
 
 
     public static List<Long> charBytes2Longs(byte[] input) {
         List<Long> longValues = new ArrayList<>();
-        int size = input.length;
-        int i = 0;
-        int j = 0;
-        for (; i < size; i++) {
-            if (input[i] == LINE_CODE) {
-                long radix = 1;
-                int between = i - j;
-                long value = 0;
-                for (int index = 0; index < between; index++) {
-                    value += ((int) input[i - index - 1] - LETTER_INT_OFFSET) * radix;
-                    radix *= RADIX;
-                }
-                j = i + 1;
-                longValues.add(value);
+        parseLines(input, longValues);
+        return longValues;
+    }
+
+    /**
+     * 用共享的LongParser解析input中所有完整的行
+     *
+     * @return 最后一个完整行之后的位置
+     */
+    private static int parseLines(byte[] input, List<Long> longValues) {
+        ByteBuffer buffer = ByteBuffer.wrap(input);
+        LongParser parser = new LongParser();
+        long[] values = new long[AppConstants.LONG_BATCH_NUM];
+        int position = 0;
+        int count;
+        while ((count = parser.parseLines(buffer, position, input.length, values, 0)) > 0) {
+            for (int i = 0; i < count; i++) {
+                longValues.add(values[i]);
             }
+            position = parser.getPosition();
         }
-        return longValues;
+        return parser.getPosition();
     }
 
 
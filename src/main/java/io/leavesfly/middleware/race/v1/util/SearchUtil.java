@@ -1,8 +1,6 @@
 package io.leavesfly.middleware.race.v1.util;
 
 
-import io.leavesfly.middleware.race.v1.bucket.IdRange;
-
 /**
  * Created by yefei.yf on 2017/4/1.
  */
@@ -42,26 +40,4 @@ public class SearchUtil {
         }
         return middle;
     }
-
-    /**
-     * @param value
-     * @param sortedArray
-     * @return
-     */
-    public static int searchIdRange(long value, IdRange[] sortedArray) {
-        int low = 0;
-        int high = sortedArray.length - 1;
-        int middle = low;
-        while (low <= high) {
-            middle = low + (high - low) / 2;
-            if (sortedArray[middle].isLeft(value)) {
-                high = middle - 1;
-            } else if (sortedArray[middle].isRight(value)) {
-                low = middle + 1;
-            } else {
-                return middle;
-            }
-        }
-        return middle;
-    }
 }
@@ -0,0 +1,147 @@
+package io.leavesfly.middleware.race.v2;
+
+import io.leavesfly.middleware.race.KNLimit;
+import io.leavesfly.middleware.race.util.QuantileSketch;
+
+import java.io.File;
+
+/**
+ * v2版本的常量与可调参数
+ * 可调参数均可通过 -Dtopkn.v2.xxx 系统属性覆盖
+ */
+public class AppConstants {
+
+    // 一级桶数量：256
+    public static final int LEVEL1_BUCKET_NUM = 256;
+    // 二级桶数量：256
+    public static final int LEVEL2_BUCKET_NUM = 256;
+    // 总桶数
+    public static final int TOTAL_BUCKET_NUM = LEVEL1_BUCKET_NUM * LEVEL2_BUCKET_NUM;
+
+    // 一级桶文件的索引头：每个二级桶记录偏移量(long)和数量(long)，256 * 16 = 4KB
+    public static final int BUCKET_HEADER_SIZE = LEVEL2_BUCKET_NUM * 16;
+
+    public static final int SOURCE_FILE_NUM = 10;
+
+    public static final int LONG_BYTE = 8;
+
+    // 中间文件根目录，同一台机器上运行多个分片进程时各自指定
+    public static final String MIDDLE_DIR = System.getProperty("topkn.v2.middleDir", KNLimit.MIDDLE_DIR);
+
+    // 本进程处理的源文件，逗号分隔；未指定时为全部10个源文件
+    public static final String SOURCE_FILES = System.getProperty("topkn.v2.sourceFiles", "");
+
+    // 索引目录
+    public static final String INDEX_DIR = MIDDLE_DIR + "v2_index/";
+    public static final String DATA_DIR_PATH = MIDDLE_DIR + "v2_data/";
+    public static final String GLOBAL_INDEX_FILE = INDEX_DIR + "global.idx";
+    // 可恢复构建的清单和采样得到的桶边界，索引发布后删除
+    public static final String BUILD_MANIFEST_FILE = INDEX_DIR + "build.manifest";
+    public static final String BUILD_SPLITTERS_FILE = INDEX_DIR + "build.splitters";
+    // 合并增量段的提交日志：记录合并前的增量段个数和已写好合并结果的一级桶，存在即表示合并已提交、须前滚完成
+    public static final String COMPACT_JOURNAL_FILE = INDEX_DIR + "compact.journal";
+    // 已追加的源文件记录（路径、长度、修改时间 -> 追加发布后的数据总量），同一个源文件不会重复追加
+    public static final String APPENDED_MANIFEST_FILE = INDEX_DIR + "appended.manifest";
+    // 构建时顺带生成的分位数草图，与全局索引的数据总量一致时才用于近似查询
+    public static final String QUANTILE_SKETCH_FILE = INDEX_DIR + "quantile.sketch";
+
+    // 分桶线程数，每个线程独占一套分区缓冲区和分段文件
+    public static final int INGEST_THREAD_NUM = Integer.getInteger("topkn.v2.ingestThreads",
+            Runtime.getRuntime().availableProcessors());
+
+    // 构建方式：partition（默认，每个线程解析并分区写入自己的分段）、pipeline（解析、分区、写盘分阶段流水线）
+    // 或 scatter（先计数再把数据直接写到预分配文件中的最终位置，源文件读两遍）
+    public static final String BUILD_MODE = System.getProperty("topkn.v2.buildMode", "partition");
+
+    // 流水线模式下各阶段的线程数
+    public static final int PARSE_THREAD_NUM = Integer.getInteger("topkn.v2.parseThreads",
+            Math.max(1, INGEST_THREAD_NUM / 2));
+    public static final int PARTITION_THREAD_NUM = Integer.getInteger("topkn.v2.partitionThreads",
+            Math.max(1, INGEST_THREAD_NUM / 4));
+    public static final int WRITE_THREAD_NUM = Integer.getInteger("topkn.v2.writeThreads",
+            Math.max(1, INGEST_THREAD_NUM / 4));
+
+    // 每个线程内每个一级桶的缓冲区大小（字节数），满了整块追加到线程自己的分段文件
+    public static final int PARTITION_BUFFER_SIZE = 32 * 1024;
+
+    // 源文件读取方式：mmap（默认，内存映射零拷贝解析）或 buffered（BufferedReader按行读取）
+    public static final String SOURCE_READER = System.getProperty("topkn.v2.reader", "mmap");
+
+    // 内存映射窗口大小
+    public static final int MAPPED_WINDOW_SIZE = Integer.getInteger("topkn.v2.mappedWindowSize", 64 * 1024 * 1024);
+
+    // 是否先对源文件采样，按分位点划分桶边界（适用于分布不均匀的数据）；否则按高16位分桶
+    public static final boolean ADAPTIVE_BUCKETS = Boolean.getBoolean("topkn.v2.adaptiveBuckets");
+
+    // 二级桶的存储编码：raw（默认，每个值8字节）、prefix（去掉桶内相同的高16位，每个值6字节）
+    // 或 packed（桶排好序后分块存差值并按位宽打包，带跳表，隐含有序构建）；
+    // 采样分桶时桶内值的高16位不一定相同，prefix退回raw
+    public static final int STORAGE = resolveStorage(System.getProperty("topkn.v2.storage", "raw"));
+
+    // 构建结束前是否把每个二级桶在磁盘上排好序；排好序后查询只需按名次算出偏移量读取n个值
+    public static final boolean SORTED_BUILD = Boolean.getBoolean("topkn.v2.sortedBuild")
+            || STORAGE == BucketCodec.PACKED;
+
+    // 查询时缓存排好序的二级桶所用的字节数上限，0表示不缓存；适合常驻查询时的连续翻页
+    public static final long BUCKET_CACHE_BYTES = Long.getLong("topkn.v2.bucketCacheBytes", 0L);
+
+    // 每批解析的long个数
+    public static final int READ_BATCH_SIZE = 4096;
+
+    // 索引已存在时追加的源文件，逗号分隔；追加的数据写成增量段，不重建已有的桶
+    public static final String APPEND_FILES = System.getProperty("topkn.v2.appendFiles", "");
+
+    // 增量段达到该数量时在后台把增量段合并回基础桶文件，0表示不自动合并
+    public static final int COMPACT_DELTA_NUM = Integer.getInteger("topkn.v2.compactDeltas", 4);
+
+    // 分位数草图的精度参数k，越大越准、草图越大，0表示构建时不生成草图
+    public static final int SKETCH_K = Integer.getInteger("topkn.v2.sketchK", QuantileSketch.DEFAULT_K);
+
+    private static int resolveStorage(String name) {
+        int storage = BucketCodec.parse(name);
+        return storage == BucketCodec.PREFIX && ADAPTIVE_BUCKETS ? BucketCodec.RAW : storage;
+    }
+
+    public static File[] getSourceFiles() {
+        if (SOURCE_FILES.isEmpty()) {
+            File[] sourceFiles = new File[SOURCE_FILE_NUM];
+            for (int i = 0; i < SOURCE_FILE_NUM; i++) {
+                sourceFiles[i] = new File(KNLimit.getSourceDataFileName(i));
+            }
+            return sourceFiles;
+        }
+        String[] names = SOURCE_FILES.split(",");
+        File[] sourceFiles = new File[names.length];
+        for (int i = 0; i < names.length; i++) {
+            sourceFiles[i] = new File(names[i].trim());
+        }
+        return sourceFiles;
+    }
+
+    public static String getBucketFileName(int level1) {
+        return getBucketFileName(DATA_DIR_PATH, level1);
+    }
+
+    public static String getBucketFileName(String dataDir, int level1) {
+        return dataDir + "bucket_" + level1 + ".dat";
+    }
+
+    public static String getSegmentFileName(String dataDir, int workerId) {
+        return dataDir + "segment_" + workerId + ".tmp";
+    }
+
+    public static String getSegmentMetaFileName(String dataDir, int segmentId) {
+        return dataDir + "segment_" + segmentId + ".meta";
+    }
+
+    /**
+     * 第delta个增量段的目录，编号从1开始
+     */
+    public static String getDeltaDir(int delta) {
+        return MIDDLE_DIR + "v2_delta_" + delta + "/";
+    }
+
+    public static String getDeltaIndexFile(int delta) {
+        return getDeltaDir(delta) + "delta.idx";
+    }
+}
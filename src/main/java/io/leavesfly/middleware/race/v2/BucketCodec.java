@@ -0,0 +1,347 @@
+package io.leavesfly.middleware.race.v2;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * 二级桶数据的存储编码
+ * <ul>
+ * <li>raw：每个值8字节</li>
+ * <li>prefix：按高16位分桶时桶内所有值的高16位相同（由桶号决定），只存低48位，每个值6字节</li>
+ * <li>packed：桶内已排好序，每BLOCK_SIZE个值一块，块内只存相邻值的差，按块内最大差值的位宽紧凑打包；
+ * 桶数据前是跳表，每块一项16字节：首值(long) 块数据相对桶起点的偏移(int) 位宽(byte) 填充3字节，
+ * 按名次定位时只需读跳表中的几项和涉及的块，不必解码整个桶</li>
+ * </ul>
+ * 一级桶文件仍是4KB索引头加各二级桶的数据区，索引头中的偏移指向数据区起点，数据区长度由下一项偏移（最后一项为文件末尾）确定
+ */
+public class BucketCodec {
+
+    public static final int RAW = 0;
+    public static final int PREFIX = 1;
+    public static final int PACKED = 2;
+
+    public static final int BLOCK_SIZE = 128;
+
+    private static final int SKIP_ENTRY_SIZE = 16;
+    private static final int PREFIX_VALUE_BYTES = 6;
+    private static final long LOW48_MASK = (1L << 48) - 1;
+
+    public static int parse(String name) {
+        if ("raw".equals(name)) {
+            return RAW;
+        }
+        if ("prefix".equals(name)) {
+            return PREFIX;
+        }
+        if ("packed".equals(name)) {
+            return PACKED;
+        }
+        throw new IllegalArgumentException("未知的桶存储编码: " + name);
+    }
+
+    public static String name(int storage) {
+        return storage == PREFIX ? "prefix" : storage == PACKED ? "packed" : "raw";
+    }
+
+    /**
+     * 按编码写出一个一级桶文件并落盘：二级桶l2的数据为values[starts[l2], starts[l2 + 1])，packed编码要求各段已排好序
+     *
+     * @return 文件内容的CRC32
+     */
+    public static long writeLevel1File(String fileName, int storage, long[] values, int[] starts)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(AppConstants.BUCKET_HEADER_SIZE);
+        long offset = AppConstants.BUCKET_HEADER_SIZE;
+        for (int l2 = 0; l2 < AppConstants.LEVEL2_BUCKET_NUM; l2++) {
+            header.putLong(offset);
+            header.putLong(starts[l2 + 1] - starts[l2]);
+            offset += encodedSize(storage, values, starts[l2], starts[l2 + 1]);
+        }
+        header.flip();
+
+        CRC32 crc = new CRC32();
+        FileChannel channel = new FileOutputStream(fileName).getChannel();
+        try {
+            crc.update(header.array(), 0, header.limit());
+            writeFully(channel, header);
+            for (int l2 = 0; l2 < AppConstants.LEVEL2_BUCKET_NUM; l2++) {
+                int from = starts[l2];
+                int to = starts[l2 + 1];
+                if (from == to) {
+                    continue;
+                }
+                ByteBuffer region = ByteBuffer.allocate(encodedSize(storage, values, from, to));
+                encode(storage, values, from, to, region);
+                region.flip();
+                crc.update(region.array(), 0, region.limit());
+                writeFully(channel, region);
+            }
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * 读取一级桶文件中一个二级桶的全部数据（按存储顺序）
+     */
+    static long[] readBucket(String fileName, int bucketId, int storage) throws IOException {
+        int l2 = BucketRule.getLevel2(bucketId);
+        RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+        try {
+            // 读取索引头，获取该二级桶的偏移量和数量，数据区到下一个二级桶的偏移量（最后一个桶到文件末尾）为止
+            raf.seek(l2 * 16);
+            long offset = raf.readLong();
+            long count = raf.readLong();
+            if (count == 0) {
+                return new long[0];
+            }
+            long end = l2 == AppConstants.LEVEL2_BUCKET_NUM - 1 ? raf.length() : raf.readLong();
+            ByteBuffer region = readFully(raf.getChannel(), offset, (int) (end - offset));
+            return decode(storage, region, (int) count, bucketId);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * 一次读入整个一级桶文件，返回各二级桶解码后的数据
+     */
+    static long[][] readLevel1File(String fileName, int l1, int storage) throws IOException {
+        long[][] buckets = new long[AppConstants.LEVEL2_BUCKET_NUM][];
+        FileChannel channel = new RandomAccessFile(fileName, "r").getChannel();
+        try {
+            ByteBuffer header = readFully(channel, 0, AppConstants.BUCKET_HEADER_SIZE);
+            long fileSize = channel.size();
+            for (int l2 = 0; l2 < AppConstants.LEVEL2_BUCKET_NUM; l2++) {
+                long offset = header.getLong(l2 * 16);
+                int count = (int) header.getLong(l2 * 16 + 8);
+                if (count == 0) {
+                    buckets[l2] = new long[0];
+                    continue;
+                }
+                long end = l2 == AppConstants.LEVEL2_BUCKET_NUM - 1 ? fileSize : header.getLong((l2 + 1) * 16);
+                ByteBuffer region = readFully(channel, offset, (int) (end - offset));
+                buckets[l2] = decode(storage, region, count, l1 * AppConstants.LEVEL2_BUCKET_NUM + l2);
+            }
+        } finally {
+            channel.close();
+        }
+        return buckets;
+    }
+
+    /**
+     * values[from, to)编码后的字节数
+     */
+    static int encodedSize(int storage, long[] values, int from, int to) {
+        int count = to - from;
+        if (storage == RAW) {
+            return count * AppConstants.LONG_BYTE;
+        }
+        if (storage == PREFIX) {
+            return count * PREFIX_VALUE_BYTES;
+        }
+        int size = 0;
+        for (int blockFrom = from; blockFrom < to; blockFrom += BLOCK_SIZE) {
+            int blockTo = Math.min(to, blockFrom + BLOCK_SIZE);
+            size += SKIP_ENTRY_SIZE + packedBytes(blockTo - blockFrom, deltaWidth(values, blockFrom, blockTo));
+        }
+        return size;
+    }
+
+    /**
+     * 把values[from, to)编码写入out
+     */
+    static void encode(int storage, long[] values, int from, int to, ByteBuffer out) {
+        if (storage == RAW) {
+            for (int i = from; i < to; i++) {
+                out.putLong(values[i]);
+            }
+            return;
+        }
+        if (storage == PREFIX) {
+            for (int i = from; i < to; i++) {
+                long value = values[i];
+                out.putShort((short) (value >>> 32));
+                out.putInt((int) value);
+            }
+            return;
+        }
+
+        // 先写跳表，再写各块
+        int regionStart = out.position();
+        int blockNum = (to - from + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int dataOffset = blockNum * SKIP_ENTRY_SIZE;
+        for (int b = 0; b < blockNum; b++) {
+            int blockFrom = from + b * BLOCK_SIZE;
+            int blockTo = Math.min(to, blockFrom + BLOCK_SIZE);
+            int width = deltaWidth(values, blockFrom, blockTo);
+            out.putLong(values[blockFrom]);
+            out.putInt(dataOffset);
+            out.put((byte) width);
+            out.put((byte) 0).put((byte) 0).put((byte) 0);
+            dataOffset += packedBytes(blockTo - blockFrom, width);
+        }
+        byte[] array = out.array();
+        for (int b = 0; b < blockNum; b++) {
+            int blockFrom = from + b * BLOCK_SIZE;
+            int blockTo = Math.min(to, blockFrom + BLOCK_SIZE);
+            int width = out.get(regionStart + b * SKIP_ENTRY_SIZE + 12);
+            int blockStart = out.arrayOffset() + out.position();
+            long bitPos = 0;
+            for (int i = blockFrom + 1; i < blockTo; i++) {
+                putBits(array, blockStart, bitPos, values[i] - values[i - 1], width);
+                bitPos += width;
+            }
+            out.position(out.position() + packedBytes(blockTo - blockFrom, width));
+        }
+    }
+
+    /**
+     * 解码整个桶，region为该桶的完整数据区
+     */
+    static long[] decode(int storage, ByteBuffer region, int count, int bucketId) {
+        long[] values = new long[count];
+        if (storage == RAW) {
+            region.asLongBuffer().get(values);
+        } else if (storage == PREFIX) {
+            long prefix = BucketRule.getBucketPrefix(bucketId);
+            for (int i = 0; i < count; i++) {
+                values[i] = prefix | ((long) (region.getShort() & 0xFFFF) << 32) | (region.getInt() & 0xFFFFFFFFL);
+            }
+        } else {
+            int blockNum = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            for (int b = 0; b < blockNum; b++) {
+                int entry = region.position() + b * SKIP_ENTRY_SIZE;
+                int blockNumValues = Math.min(BLOCK_SIZE, count - b * BLOCK_SIZE);
+                decodeBlock(region, region.position() + region.getInt(entry + 8), region.getLong(entry),
+                        region.get(entry + 12), blockNumValues, values, b * BLOCK_SIZE);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * 从桶数据区读取排序后下标[from, from + num)的数据，只读取涉及的字节；raw与prefix要求桶已排好序
+     *
+     * @param regionOffset 桶数据区在文件中的起点
+     */
+    static long[] readRange(int storage, FileChannel channel, long regionOffset, int count, int bucketId,
+                            int from, int num) throws IOException {
+        long[] result = new long[num];
+        if (num == 0) {
+            return result;
+        }
+        if (storage == RAW || storage == PREFIX) {
+            int valueBytes = storage == RAW ? AppConstants.LONG_BYTE : PREFIX_VALUE_BYTES;
+            ByteBuffer buffer = readFully(channel, regionOffset + (long) from * valueBytes, num * valueBytes);
+            long[] values = decode(storage, buffer, num, bucketId);
+            System.arraycopy(values, 0, result, 0, num);
+            return result;
+        }
+
+        int firstBlock = from / BLOCK_SIZE;
+        int lastBlock = (from + num - 1) / BLOCK_SIZE;
+        ByteBuffer skip = readFully(channel, regionOffset + (long) firstBlock * SKIP_ENTRY_SIZE,
+                (lastBlock - firstBlock + 1) * SKIP_ENTRY_SIZE);
+        int lastEntry = (lastBlock - firstBlock) * SKIP_ENTRY_SIZE;
+        int dataStart = skip.getInt(8);
+        int dataEnd = skip.getInt(lastEntry + 8) + packedBytes(
+                Math.min(BLOCK_SIZE, count - lastBlock * BLOCK_SIZE), skip.get(lastEntry + 12));
+        ByteBuffer data = readFully(channel, regionOffset + dataStart, dataEnd - dataStart);
+
+        long[] block = new long[BLOCK_SIZE];
+        int resultPos = 0;
+        for (int b = firstBlock; b <= lastBlock; b++) {
+            int entry = (b - firstBlock) * SKIP_ENTRY_SIZE;
+            int blockNumValues = Math.min(BLOCK_SIZE, count - b * BLOCK_SIZE);
+            decodeBlock(data, skip.getInt(entry + 8) - dataStart, skip.getLong(entry), skip.get(entry + 12),
+                    blockNumValues, block, 0);
+            int blockFrom = Math.max(from, b * BLOCK_SIZE) - b * BLOCK_SIZE;
+            int blockTo = Math.min(from + num, b * BLOCK_SIZE + blockNumValues) - b * BLOCK_SIZE;
+            System.arraycopy(block, blockFrom, result, resultPos, blockTo - blockFrom);
+            resultPos += blockTo - blockFrom;
+        }
+        return result;
+    }
+
+    private static void decodeBlock(ByteBuffer buffer, int start, long first, int width, int count,
+                                    long[] out, int outPos) {
+        byte[] array = buffer.array();
+        int base = buffer.arrayOffset() + start;
+        long value = first;
+        out[outPos] = value;
+        long bitPos = 0;
+        for (int i = 1; i < count; i++) {
+            value += getBits(array, base, bitPos, width);
+            bitPos += width;
+            out[outPos + i] = value;
+        }
+    }
+
+    /**
+     * 块内相邻差值的最大位宽，差值按无符号数计
+     */
+    private static int deltaWidth(long[] values, int from, int to) {
+        long or = 0;
+        for (int i = from + 1; i < to; i++) {
+            or |= values[i] - values[i - 1];
+        }
+        return 64 - Long.numberOfLeadingZeros(or);
+    }
+
+    private static int packedBytes(int count, int width) {
+        return (int) (((long) (count - 1) * width + 7) >>> 3);
+    }
+
+    /**
+     * 把value的低width位按低位在前写到base起第bitPos位
+     */
+    private static void putBits(byte[] array, int base, long bitPos, long value, int width) {
+        int done = 0;
+        while (done < width) {
+            int index = base + (int) (bitPos >>> 3);
+            int shift = (int) (bitPos & 7);
+            int take = Math.min(8 - shift, width - done);
+            array[index] |= (byte) (((value >>> done) & ((1 << take) - 1)) << shift);
+            done += take;
+            bitPos += take;
+        }
+    }
+
+    private static long getBits(byte[] array, int base, long bitPos, int width) {
+        long value = 0;
+        int done = 0;
+        while (done < width) {
+            int index = base + (int) (bitPos >>> 3);
+            int shift = (int) (bitPos & 7);
+            int take = Math.min(8 - shift, width - done);
+            value |= (long) (((array[index] & 0xFF) >>> shift) & ((1 << take) - 1)) << done;
+            done += take;
+            bitPos += take;
+        }
+        return value;
+    }
+
+    static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("桶文件长度不足，位置: " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package io.leavesfly.middleware.race.v2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * BucketCodec自检：按三种存储编码写出一级桶文件，再整文件解码、按二级桶读取、按名次区间读取，与原数据比对
+ * 二级桶覆盖空桶、单值、全部相同（packed位宽0）、Long.MIN_VALUE紧接Long.MAX_VALUE（位宽64）、全范围随机、
+ * 恰好一块、一块多一个值等情形；区间读取覆盖整桶、跨块边界和随机区间，结果不符时抛出IllegalStateException
+ * 用法：java BucketCodecCheck [轮数]
+ */
+public class BucketCodecCheck {
+
+    private static final long LOW48_MASK = (1L << 48) - 1;
+
+    public static void main(String[] args) throws IOException {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        Random random = new Random(42);
+        File file = File.createTempFile("bucket_codec_check", ".dat");
+        file.deleteOnExit();
+
+        int fileNum = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (int l1 : new int[]{0, 127, 128, AppConstants.LEVEL1_BUCKET_NUM - 1}) {
+                int[] starts = new int[AppConstants.LEVEL2_BUCKET_NUM + 1];
+                long[] anyValues = buildLevel1(l1, random, starts, false);
+                check(file, BucketCodec.RAW, l1, anyValues, starts, random);
+                check(file, BucketCodec.PACKED, l1, anyValues, starts, random);
+
+                // prefix编码要求桶内值的高16位由桶号决定
+                int[] prefixStarts = new int[AppConstants.LEVEL2_BUCKET_NUM + 1];
+                long[] prefixValues = buildLevel1(l1, random, prefixStarts, true);
+                check(file, BucketCodec.PREFIX, l1, prefixValues, prefixStarts, random);
+                check(file, BucketCodec.PACKED, l1, prefixValues, prefixStarts, random);
+                check(file, BucketCodec.RAW, l1, prefixValues, prefixStarts, random);
+                fileNum += 5;
+            }
+        }
+        file.delete();
+        System.out.println("BucketCodec自检通过：" + fileNum + "个一级桶文件");
+    }
+
+    /**
+     * 生成一个一级桶的数据，各二级桶的数据段已排好序
+     */
+    private static long[] buildLevel1(int l1, Random random, int[] starts, boolean prefixOnly) {
+        long[][] buckets = new long[AppConstants.LEVEL2_BUCKET_NUM][];
+        int total = 0;
+        for (int l2 = 0; l2 < AppConstants.LEVEL2_BUCKET_NUM; l2++) {
+            long[] bucket = buildBucket(l2 % 9, random);
+            if (prefixOnly) {
+                long prefix = BucketRule.getBucketPrefix(l1 * AppConstants.LEVEL2_BUCKET_NUM + l2);
+                for (int i = 0; i < bucket.length; i++) {
+                    // 低48位保持原来的相对顺序
+                    bucket[i] = prefix | (BucketRule.sortableKey(bucket[i]) >>> 16);
+                }
+            }
+            Arrays.sort(bucket);
+            buckets[l2] = bucket;
+            starts[l2 + 1] = starts[l2] + bucket.length;
+            total += bucket.length;
+        }
+        long[] values = new long[total];
+        for (int l2 = 0; l2 < AppConstants.LEVEL2_BUCKET_NUM; l2++) {
+            System.arraycopy(buckets[l2], 0, values, starts[l2], buckets[l2].length);
+        }
+        return values;
+    }
+
+    private static long[] buildBucket(int pattern, Random random) {
+        int blockSize = BucketCodec.BLOCK_SIZE;
+        long[] bucket;
+        switch (pattern) {
+            case 0:
+                return new long[0];
+            case 1:
+                return new long[]{random.nextLong()};
+            case 2:
+                // 全部相同，每块位宽为0
+                bucket = new long[blockSize * 2 + 44];
+                Arrays.fill(bucket, random.nextLong());
+                return bucket;
+            case 3:
+                // 第一块内从Long.MIN_VALUE跳到Long.MAX_VALUE，差值按无符号数为2^64 - 1，位宽64
+                bucket = new long[blockSize * 2 + 1];
+                Arrays.fill(bucket, 0, 100, Long.MIN_VALUE);
+                Arrays.fill(bucket, 100, bucket.length, Long.MAX_VALUE);
+                return bucket;
+            case 4:
+                return new long[]{Long.MIN_VALUE, Long.MAX_VALUE};
+            case 5:
+                // 全范围随机
+                bucket = new long[1000 + random.nextInt(1000)];
+                for (int i = 0; i < bucket.length; i++) {
+                    bucket[i] = random.nextLong();
+                }
+                return bucket;
+            case 6:
+                // 恰好一块，差值很小
+                bucket = new long[blockSize];
+                bucket[0] = random.nextLong() >> 1;
+                for (int i = 1; i < bucket.length; i++) {
+                    bucket[i] = bucket[i - 1] + random.nextInt(16);
+                }
+                return bucket;
+            case 7:
+                // 一块多一个值
+                bucket = new long[blockSize + 1];
+                for (int i = 0; i < bucket.length; i++) {
+                    bucket[i] = random.nextLong() & LOW48_MASK;
+                }
+                return bucket;
+            default:
+                // 随机大小，成段重复
+                bucket = new long[random.nextInt(blockSize * 6)];
+                for (int i = 0; i < bucket.length; i++) {
+                    bucket[i] = i > 0 && random.nextInt(4) == 0
+                            ? bucket[i - 1] : random.nextLong() >> random.nextInt(64);
+                }
+                return bucket;
+        }
+    }
+
+    private static void check(File file, int storage, int l1, long[] values, int[] starts, Random random)
+            throws IOException {
+        String fileName = file.getPath();
+        String name = BucketCodec.name(storage);
+        BucketCodec.writeLevel1File(fileName, storage, values, starts);
+
+        long[][] decoded = BucketCodec.readLevel1File(fileName, l1, storage);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            for (int l2 = 0; l2 < AppConstants.LEVEL2_BUCKET_NUM; l2++) {
+                int bucketId = l1 * AppConstants.LEVEL2_BUCKET_NUM + l2;
+                long[] expected = Arrays.copyOfRange(values, starts[l2], starts[l2 + 1]);
+                assertEquals(name + "整文件解码，桶" + bucketId, expected, decoded[l2]);
+                assertEquals(name + "读取二级桶，桶" + bucketId, expected,
+                        BucketCodec.readBucket(fileName, bucketId, storage));
+
+                int count = expected.length;
+                if (count == 0) {
+                    continue;
+                }
+                // 索引头中该二级桶的数据区起点
+                raf.seek(l2 * 16);
+                long regionOffset = raf.readLong();
+
+                checkRange(storage, channel, regionOffset, bucketId, expected, 0, count);
+                checkRange(storage, channel, regionOffset, bucketId, expected, count - 1, 1);
+                // 跨块边界：从边界前几个值读到边界后几个值，以及从边界开始读
+                for (int boundary = BucketCodec.BLOCK_SIZE; boundary < count; boundary += BucketCodec.BLOCK_SIZE) {
+                    int from = Math.max(0, boundary - 3);
+                    checkRange(storage, channel, regionOffset, bucketId, expected, from,
+                            Math.min(count, boundary + 3) - from);
+                    checkRange(storage, channel, regionOffset, bucketId, expected, boundary,
+                            Math.min(count - boundary, BucketCodec.BLOCK_SIZE + 1));
+                    checkRange(storage, channel, regionOffset, bucketId, expected, boundary - 1, 1);
+                }
+                for (int i = 0; i < 8; i++) {
+                    int from = random.nextInt(count);
+                    checkRange(storage, channel, regionOffset, bucketId, expected, from,
+                            1 + random.nextInt(count - from));
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void checkRange(int storage, FileChannel channel, long regionOffset, int bucketId, long[] expected,
+                                   int from, int num) throws IOException {
+        long[] actual = BucketCodec.readRange(storage, channel, regionOffset, expected.length, bucketId, from, num);
+        assertEquals(BucketCodec.name(storage) + "区间读取，桶" + bucketId + "[" + from + ", " + (from + num) + ")",
+                Arrays.copyOfRange(expected, from, from + num), actual);
+    }
+
+    private static void assertEquals(String what, long[] expected, long[] actual) {
+        if (!Arrays.equals(expected, actual)) {
+            throw new IllegalStateException(what + "结果错误：得到" + actual.length + "个值，应为" + expected.length + "个");
+        }
+    }
+}
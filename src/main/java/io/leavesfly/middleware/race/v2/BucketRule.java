@@ -0,0 +1,54 @@
+package io.leavesfly.middleware.race.v2;
+
+import io.leavesfly.middleware.race.util.BucketSplitters;
+
+/**
+ * v2分桶规则：默认使用翻转符号位后的高16位分桶，高8位为一级桶，次高8位为二级桶，负数排在正数之前；
+ * 设置了采样得到的分位点后，按分位点二分查找桶号，全局桶号的高8位/低8位仍对应一级/二级桶
+ */
+public class BucketRule {
+
+    // 采样得到的桶边界，为null时按高16位分桶；须在分桶线程启动前设置
+    private static BucketSplitters splitters;
+
+    public static void setSplitters(BucketSplitters bucketSplitters) {
+        splitters = bucketSplitters;
+    }
+
+    public static BucketSplitters getSplitters() {
+        return splitters;
+    }
+
+    /**
+     * 计算long值所属的全局桶号，范围[0, TOTAL_BUCKET_NUM)，桶号顺序与有符号long的大小顺序一致
+     */
+    public static int getBucketId(long value) {
+        BucketSplitters current = splitters;
+        if (current != null) {
+            return current.bucketOf(value);
+        }
+        return (int) (sortableKey(value) >>> 48);
+    }
+
+    /**
+     * 翻转符号位得到的可排序键：键按无符号比较的顺序与值按有符号比较的顺序相同，变换是自逆的
+     */
+    public static long sortableKey(long value) {
+        return value ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * 按高16位分桶时桶内的最小值，其高16位即桶内所有值共同的高16位
+     */
+    public static long getBucketPrefix(int bucketId) {
+        return sortableKey((long) bucketId << 48);
+    }
+
+    public static int getLevel1(int bucketId) {
+        return bucketId / AppConstants.LEVEL2_BUCKET_NUM;
+    }
+
+    public static int getLevel2(int bucketId) {
+        return bucketId % AppConstants.LEVEL2_BUCKET_NUM;
+    }
+}
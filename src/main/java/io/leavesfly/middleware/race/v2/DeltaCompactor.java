@@ -0,0 +1,192 @@
+package io.leavesfly.middleware.race.v2;
+
+import io.leavesfly.middleware.race.util.BuildManifest;
+import io.leavesfly.middleware.race.util.RadixSort;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 增量段合并：把各增量段的数据并回基础桶文件
+ * 只重写有增量数据的一级桶文件，合并结果先写到临时文件，由调用方在没有查询读取时替换基础桶文件并发布新的全局索引；
+ * 基础桶是有序构建时，合并后的二级桶重新排好序，存储编码与基础桶相同。
+ * 替换基础桶文件与发布全局索引之间中断时，基础桶已含增量数据而索引仍记着增量段，查询会重复计入增量数据；
+ * 因此临时文件落盘后先原子地写出提交日志，替换、发布、删除增量段都由recover()按日志前滚，加载索引前总会先前滚
+ */
+public class DeltaCompactor {
+
+    private final GlobalIndex globalIndex;
+
+    public DeltaCompactor(GlobalIndex globalIndex) {
+        this.globalIndex = globalIndex;
+    }
+
+    /**
+     * 并行写出所有需要合并的一级桶的临时文件
+     *
+     * @return 写出了临时文件的一级桶
+     */
+    public List<Integer> mergeLevel1Files(ExecutorService executor) throws Exception {
+        final List<Integer> level1s = new ArrayList<>();
+        for (int l1 = 0; l1 < AppConstants.LEVEL1_BUCKET_NUM; l1++) {
+            if (hasDeltaData(l1)) {
+                level1s.add(l1);
+            }
+        }
+
+        final CountDownLatch latch = new CountDownLatch(level1s.size());
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        for (final int l1 : level1s) {
+            executor.submit(new Runnable() {
+                public void run() {
+                    try {
+                        mergeLevel1File(l1);
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        latch.await();
+
+        if (failure.get() != null) {
+            for (int l1 : level1s) {
+                new File(getCompactFileName(l1)).delete();
+            }
+            throw failure.get();
+        }
+        return level1s;
+    }
+
+    /**
+     * 提交合并：原子地写出提交日志{合并前的增量段个数, 一级桶...}，合并结果已在mergeLevel1Files中落盘
+     */
+    public void commit(List<Integer> level1s) throws IOException {
+        long[] journal = new long[level1s.size() + 1];
+        journal[0] = globalIndex.getDeltaNum();
+        for (int i = 0; i < level1s.size(); i++) {
+            journal[i + 1] = level1s.get(i);
+        }
+        File journalFile = new File(AppConstants.COMPACT_JOURNAL_FILE);
+        File tmp = new File(journalFile.getPath() + ".tmp");
+        BuildManifest.writeLongs(tmp, journal);
+        Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 按提交日志前滚合并：用合并结果替换基础桶文件（已替换的跳过），发布不含增量段的全局索引，删除日志和增量段目录；
+     * 每一步都可重复执行，中途再次退出后下次加载继续。调用方须保证此时没有查询在读
+     *
+     * @return 是否有已提交的合并被前滚
+     */
+    public static boolean recover() throws IOException {
+        File journalFile = new File(AppConstants.COMPACT_JOURNAL_FILE);
+        if (!journalFile.exists()) {
+            return false;
+        }
+        long[] journal = BuildManifest.readLongs(journalFile);
+        for (int i = 1; i < journal.length; i++) {
+            File compactFile = new File(getCompactFileName((int) journal[i]));
+            if (compactFile.exists()) {
+                Files.move(compactFile.toPath(), Paths.get(AppConstants.getBucketFileName((int) journal[i])),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        // 合并不改变各桶的数据量，只去掉增量段
+        File globalIndexFile = new File(AppConstants.GLOBAL_INDEX_FILE);
+        GlobalIndex globalIndex = GlobalIndex.load(globalIndexFile);
+        if (globalIndex.getDeltaNum() != 0) {
+            GlobalIndex.publish(globalIndexFile, globalIndex.getCounts(), globalIndex.getSplitters(),
+                    globalIndex.isSorted(), globalIndex.getStorage(), 0);
+        }
+        journalFile.delete();
+        for (int d = 1; d <= journal[0]; d++) {
+            deleteDir(new File(AppConstants.getDeltaDir(d)));
+        }
+        return true;
+    }
+
+    static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private boolean hasDeltaData(int l1) {
+        for (int d = 1; d <= globalIndex.getDeltaNum(); d++) {
+            if (hasData(globalIndex.getDelta(d), l1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 读入基础桶文件和各增量段中该一级桶的数据，按二级桶拼接后写出临时文件
+     */
+    private void mergeLevel1File(int l1) throws IOException {
+        int firstBucket = l1 * AppConstants.LEVEL2_BUCKET_NUM;
+        int[] starts = new int[AppConstants.LEVEL2_BUCKET_NUM + 1];
+        long total = 0;
+        for (int l2 = 0; l2 < AppConstants.LEVEL2_BUCKET_NUM; l2++) {
+            total += globalIndex.getCount(firstBucket + l2);
+            if (total > Integer.MAX_VALUE) {
+                throw new IOException("一级桶" + l1 + "数据量过大: " + total);
+            }
+            starts[l2 + 1] = (int) total;
+        }
+
+        int deltaNum = globalIndex.getDeltaNum();
+        long[][][] parts = new long[deltaNum + 1][][];
+        parts[0] = BucketCodec.readLevel1File(AppConstants.getBucketFileName(l1), l1, globalIndex.getStorage());
+        for (int d = 1; d <= deltaNum; d++) {
+            // 增量段只写出有数据的一级桶文件
+            if (hasData(globalIndex.getDelta(d), l1)) {
+                parts[d] = BucketCodec.readLevel1File(
+                        AppConstants.getBucketFileName(AppConstants.getDeltaDir(d), l1), l1, BucketCodec.RAW);
+            }
+        }
+
+        long[] values = new long[(int) total];
+        for (int l2 = 0; l2 < AppConstants.LEVEL2_BUCKET_NUM; l2++) {
+            int cursor = starts[l2];
+            for (long[][] part : parts) {
+                if (part != null) {
+                    System.arraycopy(part[l2], 0, values, cursor, part[l2].length);
+                    cursor += part[l2].length;
+                }
+            }
+            if (cursor != starts[l2 + 1]) {
+                throw new IOException("桶" + (firstBucket + l2) + "合并后的数据量与全局索引不符");
+            }
+            if (globalIndex.isSorted()) {
+                RadixSort.sort(values, starts[l2], cursor);
+            }
+        }
+        BucketCodec.writeLevel1File(getCompactFileName(l1), globalIndex.getStorage(), values, starts);
+    }
+
+    private static boolean hasData(GlobalIndex index, int l1) {
+        int firstBucket = l1 * AppConstants.LEVEL2_BUCKET_NUM;
+        return index.getStartSeq(firstBucket + AppConstants.LEVEL2_BUCKET_NUM) > index.getStartSeq(firstBucket);
+    }
+
+    private static String getCompactFileName(int l1) {
+        return AppConstants.getBucketFileName(l1) + ".compact";
+    }
+}
@@ -0,0 +1,246 @@
+package io.leavesfly.middleware.race.v2;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * 全局索引：所有桶数据量的前缀和，桶b的名次区间为[prefix[b], prefix[b + 1])
+ * 以带版本号的扁平二进制文件保存，加载时直接内存映射，不做反序列化，冷启动只需映射一个512KB的文件；
+ * 追加过增量段时，前缀和是基础桶与所有增量段合并后的数据量，deltaNum记录增量段个数，各增量段的数据量在各自的索引文件中；
+ * 文件格式（大端）：
+ * <pre>
+ * 头部32字节：magic(int) version(int) flags(int) bucketNum(int) splitterNum(int) deltaNum(int) total(long)
+ * 前缀和：long[bucketNum + 1]
+ * 桶边界：long[splitterNum]，按高16位分桶时为空
+ * </pre>
+ */
+public class GlobalIndex {
+
+    private static final int MAGIC = 0x544B4749; // "TKGI"
+    // 版本2：按翻转符号位后的高16位分桶
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+
+    private static final int FLAG_SORTED = 1;
+    // flags的第1~2位为二级桶的存储编码，见BucketCodec
+    private static final int STORAGE_SHIFT = 1;
+    private static final int STORAGE_MASK = 3;
+
+    private final LongBuffer prefix;
+    private final int bucketNum;
+    private final long total;
+    private final boolean sorted;
+    private final int storage;
+    private final long[] splitters;
+    // 第d个增量段的索引为deltas[d - 1]
+    private final GlobalIndex[] deltas;
+
+    private GlobalIndex(LongBuffer prefix, int bucketNum, boolean sorted, int storage, long[] splitters,
+                        GlobalIndex[] deltas) {
+        this.prefix = prefix;
+        this.bucketNum = bucketNum;
+        this.total = prefix.get(bucketNum);
+        this.sorted = sorted;
+        this.storage = storage;
+        this.splitters = splitters;
+        this.deltas = deltas;
+    }
+
+    /**
+     * 按各桶数据量写出索引文件
+     *
+     * @param counts    每个桶的数据量（按全局桶号）
+     * @param splitters 采样得到的桶边界，按高16位分桶时为null
+     * @param sorted    桶数据是否已在构建时排好序
+     * @param storage   二级桶的存储编码
+     */
+    public static void write(File file, long[] counts, long[] splitters, boolean sorted, int storage)
+            throws IOException {
+        write(file, counts, splitters, sorted, storage, 0);
+    }
+
+    /**
+     * 先写到临时文件并落盘，再原子地替换，正在映射旧文件的查询不受影响，中途退出也不会留下写了一半的索引
+     *
+     * @param deltaNum 前缀和中已合并的增量段个数
+     */
+    public static void publish(File file, long[] counts, long[] splitters, boolean sorted, int storage,
+                               int deltaNum) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        write(tmp, counts, splitters, sorted, storage, deltaNum);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void write(File file, long[] counts, long[] splitters, boolean sorted, int storage,
+                              int deltaNum) throws IOException {
+        int splitterNum = splitters == null ? 0 : splitters.length;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE
+                + (counts.length + 1 + splitterNum) * AppConstants.LONG_BYTE);
+
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt((sorted ? FLAG_SORTED : 0) | (storage << STORAGE_SHIFT));
+        buffer.putInt(counts.length);
+        buffer.putInt(splitterNum);
+        buffer.putInt(deltaNum);
+        buffer.putLong(total);
+
+        long seq = 0;
+        buffer.putLong(seq);
+        for (long count : counts) {
+            seq += count;
+            buffer.putLong(seq);
+        }
+        for (int i = 0; i < splitterNum; i++) {
+            buffer.putLong(splitters[i]);
+        }
+        buffer.flip();
+
+        FileChannel channel = new FileOutputStream(file).getChannel();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * 映射索引文件，同时映射其中记录的各增量段索引，格式或版本不符时抛出IOException
+     */
+    public static GlobalIndex load(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length < HEADER_SIZE) {
+                throw new IOException("全局索引文件不完整: " + file);
+            }
+            MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+                throw new IOException("全局索引格式或版本不符，需删除中间目录后重建: " + file);
+            }
+            int flags = mapped.getInt(8);
+            boolean sorted = (flags & FLAG_SORTED) != 0;
+            int storage = (flags >>> STORAGE_SHIFT) & STORAGE_MASK;
+            int bucketNum = mapped.getInt(12);
+            int splitterNum = mapped.getInt(16);
+            int deltaNum = mapped.getInt(20);
+            long expected = HEADER_SIZE + ((long) bucketNum + 1 + splitterNum) * AppConstants.LONG_BYTE;
+            if (length != expected || bucketNum != AppConstants.TOTAL_BUCKET_NUM) {
+                throw new IOException("全局索引文件长度或桶数不符: " + file);
+            }
+
+            mapped.position(HEADER_SIZE);
+            LongBuffer longs = mapped.slice().asLongBuffer();
+            long[] splitters = null;
+            if (splitterNum > 0) {
+                splitters = new long[splitterNum];
+                longs.position(bucketNum + 1);
+                longs.get(splitters);
+                longs.position(0);
+            }
+            GlobalIndex[] deltas = new GlobalIndex[deltaNum];
+            for (int d = 1; d <= deltaNum; d++) {
+                deltas[d - 1] = load(new File(AppConstants.getDeltaIndexFile(d)));
+            }
+            GlobalIndex index = new GlobalIndex(longs, bucketNum, sorted, storage, splitters, deltas);
+            if (index.total != mapped.getLong(24)) {
+                throw new IOException("全局索引数据总量校验失败: " + file);
+            }
+            return index;
+        } finally {
+            raf.close();
+        }
+    }
+
+    public long getStartSeq(int bucketId) {
+        return prefix.get(bucketId);
+    }
+
+    public long getCount(int bucketId) {
+        return prefix.get(bucketId + 1) - prefix.get(bucketId);
+    }
+
+    // 数据总量
+    public long getTotal() {
+        return total;
+    }
+
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    public int getStorage() {
+        return storage;
+    }
+
+    public long[] getSplitters() {
+        return splitters;
+    }
+
+    // 每个桶的数据量（按全局桶号）
+    public long[] getCounts() {
+        long[] counts = new long[bucketNum];
+        for (int i = 0; i < bucketNum; i++) {
+            counts[i] = getCount(i);
+        }
+        return counts;
+    }
+
+    public int getDeltaNum() {
+        return deltas.length;
+    }
+
+    /**
+     * 第delta个增量段的索引，编号从1开始
+     */
+    public GlobalIndex getDelta(int delta) {
+        return deltas[delta - 1];
+    }
+
+    /**
+     * 桶在所有增量段中的数据量之和
+     */
+    public long getDeltaCount(int bucketId) {
+        long count = 0;
+        for (GlobalIndex delta : deltas) {
+            count += delta.getCount(bucketId);
+        }
+        return count;
+    }
+
+    /**
+     * 根据序号k定位到桶：找最后一个起始序号不大于k的桶，空桶的起始序号与下一个桶相同，自然被跳过
+     * 循环体只有一次比较和条件赋值，没有提前退出的分支，固定16轮
+     *
+     * @return 桶号，k越界时返回-1
+     */
+    public int locateBucket(long k) {
+        if (k < 0 || k >= total) {
+            return -1;
+        }
+        int base = 0;
+        int len = bucketNum;
+        while (len > 1) {
+            int half = len >>> 1;
+            base = prefix.get(base + half) <= k ? base + half : base;
+            len -= half;
+        }
+        return base;
+    }
+}
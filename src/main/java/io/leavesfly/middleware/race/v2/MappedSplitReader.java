@@ -0,0 +1,87 @@
+package io.leavesfly.middleware.race.v2;
+
+import io.leavesfly.middleware.race.util.LongParser;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 基于内存映射的零拷贝分片读取器
+ * 按大窗口映射分片，窗口末尾回退到最后一个换行符，用LongParser直接从映射缓冲区解析出long值，解析过程不产生任何对象
+ */
+public class MappedSplitReader implements SplitReader {
+
+    private static final byte LINE_CODE = (byte) '\n';
+
+    private final FileChannel channel;
+    private final long end;
+    // 下一个映射窗口的起始位置
+    private long position;
+
+    private final LongParser parser = new LongParser();
+
+    private MappedByteBuffer window;
+    private int windowPos;
+    private int windowLimit;
+    private boolean lastWindow;
+
+    MappedSplitReader(SourceSplit split) throws IOException {
+        this.channel = new FileInputStream(split.getFile()).getChannel();
+        this.position = split.getStart();
+        this.end = split.getEnd();
+    }
+
+    @Override
+    public int read(long[] batch) throws IOException {
+        int count = 0;
+        while (count < batch.length) {
+            if (windowPos >= windowLimit && !mapNextWindow()) {
+                break;
+            }
+
+            count = parser.parseLines(window, windowPos, windowLimit, batch, count);
+            windowPos = parser.getPosition();
+            // 只有最后一个窗口可能以不带换行符的行结尾
+            if (count < batch.length && windowPos < windowLimit) {
+                if (LongParser.hasDigit(window, windowPos, windowLimit)) {
+                    batch[count++] = LongParser.parseLong(window, windowPos, windowLimit);
+                }
+                windowPos = windowLimit;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 映射下一个窗口，窗口只包含完整的行
+     */
+    private boolean mapNextWindow() throws IOException {
+        if (position >= end) {
+            return false;
+        }
+        long size = Math.min(AppConstants.MAPPED_WINDOW_SIZE, end - position);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        int limit = (int) size;
+        lastWindow = position + size >= end;
+        if (!lastWindow) {
+            while (limit > 0 && window.get(limit - 1) != LINE_CODE) {
+                limit--;
+            }
+            if (limit == 0) {
+                throw new IOException("单行长度超过映射窗口大小，position=" + position);
+            }
+        }
+        windowPos = 0;
+        windowLimit = limit;
+        position += limit;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
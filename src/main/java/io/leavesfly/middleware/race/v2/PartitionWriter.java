@@ -0,0 +1,77 @@
+package io.leavesfly.middleware.race.v2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 单个分桶线程独占的分区写入器，无需任何锁
+ * 按一级桶缓冲数据，缓冲区满则整块追加到线程自己的分段文件；可恢复构建时每个分片切换一次分段文件
+ */
+public class PartitionWriter implements ValueWriter {
+
+    private SegmentFile segment;
+    private final ByteBuffer[] buffers;
+    // 每个二级桶的数据量（按全局桶号）
+    private long[] counts;
+
+    PartitionWriter(SegmentFile segment) {
+        this.segment = segment;
+        buffers = new ByteBuffer[AppConstants.LEVEL1_BUCKET_NUM];
+        for (int i = 0; i < AppConstants.LEVEL1_BUCKET_NUM; i++) {
+            buffers[i] = ByteBuffer.allocate(AppConstants.PARTITION_BUFFER_SIZE);
+        }
+        counts = new long[AppConstants.TOTAL_BUCKET_NUM];
+    }
+
+    /**
+     * 写入数据
+     */
+    @Override
+    public void write(long value) throws IOException {
+        int bucketId = BucketRule.getBucketId(value);
+        int l1 = BucketRule.getLevel1(bucketId);
+
+        ByteBuffer buffer = buffers[l1];
+        buffer.putLong(value);
+        counts[bucketId]++;
+
+        // 缓冲区满则刷新
+        if (!buffer.hasRemaining()) {
+            segment.appendBlock(l1, buffer);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * 把缓冲区中剩余的数据写入当前分段，之后的数据写入next，计数重新开始
+     *
+     * @return 写入之前分段的计数
+     */
+    long[] switchSegment(SegmentFile next) throws IOException {
+        if (segment != null) {
+            for (int l1 = 0; l1 < AppConstants.LEVEL1_BUCKET_NUM; l1++) {
+                segment.appendBlock(l1, buffers[l1]);
+                buffers[l1].clear();
+            }
+        }
+        long[] done = counts;
+        counts = new long[AppConstants.TOTAL_BUCKET_NUM];
+        segment = next;
+        return done;
+    }
+
+    /**
+     * 刷新剩余缓冲区
+     */
+    void close() throws IOException {
+        for (int l1 = 0; l1 < AppConstants.LEVEL1_BUCKET_NUM; l1++) {
+            segment.appendBlock(l1, buffers[l1]);
+            // 释放缓冲区
+            buffers[l1] = null;
+        }
+    }
+
+    long[] getCounts() {
+        return counts;
+    }
+}
@@ -0,0 +1,289 @@
+package io.leavesfly.middleware.race.v2;
+
+import io.leavesfly.middleware.race.util.BuildManifest;
+import io.leavesfly.middleware.race.util.RadixSort;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 按线程分区的桶写入器
+ * 每个分桶线程独占一个分段文件（直接模式下通过PartitionWriter写入，流水线模式下由写线程追加），写入期间没有任何共享状态；
+ * flush时把各分段按一级桶拼接成bucket_<i>.dat，二级桶数据连续存放并写入合并后的4KB索引头；
+ * 开启有序构建时，每个二级桶在写出前排好序，多个一级桶并行处理；二级桶数据按配置的存储编码写出；
+ * 追加增量段时写到增量段目录，固定为raw编码、不排序，且只写有数据的一级桶文件；
+ * 可恢复构建时每个分片一个分段文件，分片和一级桶文件完成后各自连同校验和记入构建清单，重新构建时跳过已完成且校验通过的部分
+ */
+public class PartitionedBucketWriter {
+
+    // 可恢复构建时按分片编号，否则按线程编号
+    private final SegmentFile[] segments;
+    private final PartitionWriter[] writers;
+    private final long[] counts = new long[AppConstants.TOTAL_BUCKET_NUM];
+
+    private final String dataDir;
+    private final int storage;
+    private final boolean sorted;
+    private final boolean delta;
+    // 可恢复构建的清单，普通构建为null
+    private final BuildManifest manifest;
+    private final boolean[] splitDone;
+
+    public PartitionedBucketWriter(int segmentNum) throws IOException {
+        this(segmentNum, segmentNum, AppConstants.DATA_DIR_PATH, AppConstants.STORAGE, AppConstants.SORTED_BUILD,
+                false, null);
+    }
+
+    private PartitionedBucketWriter(int workerNum, int segmentNum, String dataDir, int storage, boolean sorted,
+                                    boolean delta, BuildManifest manifest) throws IOException {
+        this.dataDir = dataDir;
+        this.storage = storage;
+        this.sorted = sorted;
+        this.delta = delta;
+        this.manifest = manifest;
+        segments = new SegmentFile[segmentNum];
+        writers = new PartitionWriter[workerNum];
+        splitDone = new boolean[manifest == null ? 0 : segmentNum];
+        if (manifest == null) {
+            for (int i = 0; i < segmentNum; i++) {
+                segments[i] = new SegmentFile(AppConstants.getSegmentFileName(dataDir, i));
+            }
+        } else {
+            for (int i = 0; i < segmentNum; i++) {
+                resumeSplit(i);
+            }
+        }
+    }
+
+    /**
+     * 写入增量段目录的写入器
+     */
+    public static PartitionedBucketWriter forDelta(int segmentNum, String deltaDir) throws IOException {
+        return new PartitionedBucketWriter(segmentNum, segmentNum, deltaDir, BucketCodec.RAW, false, true, null);
+    }
+
+    /**
+     * 可恢复构建的写入器：从清单中恢复已完成且校验通过的分片，分桶时通过getCheckpoint()跳过它们
+     */
+    public static PartitionedBucketWriter resumable(int workerNum, int splitNum, BuildManifest manifest)
+            throws IOException {
+        return new PartitionedBucketWriter(workerNum, splitNum, AppConstants.DATA_DIR_PATH, AppConstants.STORAGE,
+                AppConstants.SORTED_BUILD, false, manifest);
+    }
+
+    /**
+     * 分片级检查点，普通构建时为null
+     */
+    public SplitCheckpoint getCheckpoint() {
+        if (manifest == null) {
+            return null;
+        }
+        return new SplitCheckpoint() {
+            public boolean isDone(int split) {
+                return splitDone[split];
+            }
+
+            public void begin(int worker, int split) throws IOException {
+                segments[split] = new SegmentFile(AppConstants.getSegmentFileName(dataDir, split));
+                getWriter(worker).switchSegment(segments[split]);
+            }
+
+            public void commit(int worker, int split) throws IOException {
+                long[] splitCounts = getWriter(worker).switchSegment(null);
+                SegmentFile segment = segments[split];
+                long metaChecksum = segment.commit(getSegmentMetaFile(split), splitCounts);
+                synchronized (counts) {
+                    addCounts(splitCounts);
+                }
+                manifest.commit("split." + split,
+                        Long.toHexString(segment.getChecksum()) + "," + Long.toHexString(metaChecksum));
+            }
+        };
+    }
+
+    /**
+     * 已从之前的构建中恢复的分片数
+     */
+    public int getResumedSplitNum() {
+        int resumed = 0;
+        for (boolean done : splitDone) {
+            if (done) {
+                resumed++;
+            }
+        }
+        return resumed;
+    }
+
+    /**
+     * 清单中记录的分段文件和块表文件都校验通过时恢复该分片，否则留待重新处理
+     */
+    private void resumeSplit(int split) throws IOException {
+        String checksums = manifest.get("split." + split);
+        if (checksums == null) {
+            return;
+        }
+        File dataFile = new File(AppConstants.getSegmentFileName(dataDir, split));
+        File metaFile = getSegmentMetaFile(split);
+        String[] parts = checksums.split(",");
+        if (parts.length != 2 || !dataFile.isFile() || !metaFile.isFile()
+                || !parts[0].equals(Long.toHexString(BuildManifest.checksum(dataFile)))
+                || !parts[1].equals(Long.toHexString(BuildManifest.checksum(metaFile)))) {
+            return;
+        }
+        long[] splitCounts = new long[AppConstants.TOTAL_BUCKET_NUM];
+        segments[split] = SegmentFile.reopen(dataFile, metaFile, splitCounts);
+        addCounts(splitCounts);
+        splitDone[split] = true;
+    }
+
+    private File getSegmentMetaFile(int split) {
+        return new File(AppConstants.getSegmentMetaFileName(dataDir, split));
+    }
+
+    /**
+     * 获取独占第workerId个分段文件的分区写入器；可恢复构建时写入器的分段随分片切换
+     */
+    public PartitionWriter getWriter(int workerId) {
+        if (writers[workerId] == null) {
+            writers[workerId] = new PartitionWriter(manifest == null ? segments[workerId] : null);
+        }
+        return writers[workerId];
+    }
+
+    /**
+     * 获取分段文件，供流水线的写线程直接追加
+     */
+    public SegmentFile getSegment(int segmentId) {
+        return segments[segmentId];
+    }
+
+    /**
+     * 累加由外部（如流水线分区器）统计的桶计数，须在flush之前调用
+     */
+    public void addCounts(long[] partCounts) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += partCounts[i];
+        }
+    }
+
+    /**
+     * 合并各线程的计数，并行拼接所有一级桶文件，最后删除分段文件；
+     * 可恢复构建时各分片提交时已计数，已记入清单且校验通过的一级桶文件不再拼接，分段文件留到索引发布后由cleanup删除
+     */
+    public void flush(ExecutorService executor) throws Exception {
+        if (manifest == null) {
+            for (PartitionWriter writer : writers) {
+                if (writer != null) {
+                    writer.close();
+                    addCounts(writer.getCounts());
+                }
+            }
+        }
+
+        final CountDownLatch latch = new CountDownLatch(AppConstants.LEVEL1_BUCKET_NUM);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        for (int l1 = 0; l1 < AppConstants.LEVEL1_BUCKET_NUM; l1++) {
+            final int level1 = l1;
+            executor.submit(new Runnable() {
+                public void run() {
+                    try {
+                        stitchBucketFile(level1);
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        latch.await();
+
+        if (manifest == null) {
+            cleanup();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * 删除分段文件和块表文件
+     */
+    public void cleanup() {
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i] != null) {
+                segments[i].delete();
+            }
+            if (manifest != null) {
+                getSegmentMetaFile(i).delete();
+            }
+        }
+    }
+
+    /**
+     * 把所有线程中属于该一级桶的块读入内存，按二级桶计数排布后一次性写出
+     */
+    private void stitchBucketFile(int l1) throws IOException {
+        int baseBucketId = l1 * AppConstants.LEVEL2_BUCKET_NUM;
+        int[] cursors = new int[AppConstants.LEVEL2_BUCKET_NUM];
+        long total = 0;
+        for (int l2 = 0; l2 < AppConstants.LEVEL2_BUCKET_NUM; l2++) {
+            cursors[l2] = (int) total;
+            total += counts[baseBucketId + l2];
+        }
+        if (total > Integer.MAX_VALUE) {
+            throw new IOException("一级桶" + l1 + "数据量过大: " + total);
+        }
+        if (total == 0 && delta) {
+            // 增量段查询时只读取有数据的桶，空文件不必写出
+            return;
+        }
+        String fileName = AppConstants.getBucketFileName(dataDir, l1);
+        if (manifest != null && manifest.matchesChecksum("bucket." + l1, new File(fileName))) {
+            return;
+        }
+
+        int[] starts = cursors.clone();
+        long[] values = new long[(int) total];
+        ByteBuffer block = ByteBuffer.allocate(AppConstants.PARTITION_BUFFER_SIZE);
+        for (SegmentFile segment : segments) {
+            if (segment == null) {
+                continue;
+            }
+            int blockNum = segment.getBlockNum(l1);
+            for (int b = 0; b < blockNum; b++) {
+                segment.readBlock(l1, b, block);
+                while (block.hasRemaining()) {
+                    long value = block.getLong();
+                    int l2 = BucketRule.getLevel2(BucketRule.getBucketId(value));
+                    values[cursors[l2]++] = value;
+                }
+            }
+        }
+
+        if (sorted) {
+            for (int l2 = 0; l2 < AppConstants.LEVEL2_BUCKET_NUM; l2++) {
+                RadixSort.sort(values, starts[l2], cursors[l2]);
+            }
+        }
+
+        int[] bounds = new int[AppConstants.LEVEL2_BUCKET_NUM + 1];
+        System.arraycopy(starts, 0, bounds, 0, AppConstants.LEVEL2_BUCKET_NUM);
+        bounds[AppConstants.LEVEL2_BUCKET_NUM] = values.length;
+        long checksum = BucketCodec.writeLevel1File(fileName, storage, values, bounds);
+        if (manifest != null) {
+            manifest.commit("bucket." + l1, Long.toHexString(checksum));
+        }
+    }
+
+    /**
+     * 合并后每个桶的数据量（按全局桶号），flush之后可用
+     */
+    public long[] getCounts() {
+        return counts;
+    }
+}
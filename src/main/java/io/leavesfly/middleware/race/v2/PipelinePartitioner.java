@@ -0,0 +1,67 @@
+package io.leavesfly.middleware.race.v2;
+
+import io.leavesfly.middleware.race.pipeline.IngestPipeline;
+import io.leavesfly.middleware.race.util.QuantileSketch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 流水线模式下的分区器，每个分区线程一个实例
+ * 每个一级桶持有一个页，页满后交给负责该一级桶的写线程追加到其分段文件
+ */
+public class PipelinePartitioner implements IngestPipeline.Partitioner {
+
+    private final IngestPipeline.Page[] pages = new IngestPipeline.Page[AppConstants.LEVEL1_BUCKET_NUM];
+    // 每个二级桶的数据量（按全局桶号）
+    private final long[] counts = new long[AppConstants.TOTAL_BUCKET_NUM];
+    // 分区线程独占的分位数草图，为null时不统计
+    private final QuantileSketch sketch;
+
+    public PipelinePartitioner(QuantileSketch sketch) {
+        this.sketch = sketch;
+    }
+
+    @Override
+    public void partition(long[] values, int size, IngestPipeline.PageOutput output) throws IOException {
+        for (int i = 0; i < size; i++) {
+            long value = values[i];
+            int bucketId = BucketRule.getBucketId(value);
+            int l1 = BucketRule.getLevel1(bucketId);
+
+            IngestPipeline.Page page = pages[l1];
+            if (page == null) {
+                page = output.borrowPage();
+                page.setTarget(l1);
+                pages[l1] = page;
+            }
+            ByteBuffer buffer = page.getBuffer();
+            buffer.putLong(value);
+            counts[bucketId]++;
+
+            if (!buffer.hasRemaining()) {
+                output.emit(page);
+                pages[l1] = null;
+            }
+        }
+        if (sketch != null) {
+            for (int i = 0; i < size; i++) {
+                sketch.update(values[i]);
+            }
+        }
+    }
+
+    @Override
+    public void finish(IngestPipeline.PageOutput output) throws IOException {
+        for (int l1 = 0; l1 < AppConstants.LEVEL1_BUCKET_NUM; l1++) {
+            if (pages[l1] != null) {
+                output.emit(pages[l1]);
+                pages[l1] = null;
+            }
+        }
+    }
+
+    long[] getCounts() {
+        return counts;
+    }
+}
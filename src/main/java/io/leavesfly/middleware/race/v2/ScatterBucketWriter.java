@@ -0,0 +1,231 @@
+package io.leavesfly.middleware.race.v2;
+
+import io.leavesfly.middleware.race.util.MappedLongFile;
+import io.leavesfly.middleware.race.util.RadixSort;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 两遍构建中第二遍的写入器：第一遍统计出每个桶的精确数据量后，
+ * 预先分配好各一级桶文件并写入索引头，再把数据直接散布写到最终位置，不需要分段文件和拼接
+ * 每个线程按一级桶缓冲一批数据，按二级桶分组后一次性预留各组的写入区间，再写入映射的文件
+ */
+public class ScatterBucketWriter {
+
+    // 每个线程每个一级桶缓冲的long个数，与分区缓冲区大小一致
+    private static final int SCATTER_BUFFER_NUM = AppConstants.PARTITION_BUFFER_SIZE / AppConstants.LONG_BYTE;
+
+    private final long[] counts;
+    private final MappedLongFile[] files = new MappedLongFile[AppConstants.LEVEL1_BUCKET_NUM];
+    // 每个二级桶下一个写入位置（相对数据区起点的字节偏移）
+    private final AtomicLongArray cursors = new AtomicLongArray(AppConstants.TOTAL_BUCKET_NUM);
+    private final List<ThreadScatterer> scatterers = new ArrayList<>();
+
+    public ScatterBucketWriter(long[] counts) throws IOException {
+        this.counts = counts;
+        for (int l1 = 0; l1 < AppConstants.LEVEL1_BUCKET_NUM; l1++) {
+            ByteBuffer header = ByteBuffer.allocate(AppConstants.BUCKET_HEADER_SIZE);
+            long dataBytes = 0;
+            for (int l2 = 0; l2 < AppConstants.LEVEL2_BUCKET_NUM; l2++) {
+                int bucketId = l1 * AppConstants.LEVEL2_BUCKET_NUM + l2;
+                cursors.set(bucketId, dataBytes);
+                header.putLong(AppConstants.BUCKET_HEADER_SIZE + dataBytes);
+                header.putLong(counts[bucketId]);
+                dataBytes += counts[bucketId] * AppConstants.LONG_BYTE;
+            }
+            header.flip();
+
+            File file = new File(getScatterFileName(l1));
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.setLength(AppConstants.BUCKET_HEADER_SIZE + dataBytes);
+                FileChannel channel = randomAccessFile.getChannel();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+                files[l1] = new MappedLongFile(channel, AppConstants.BUCKET_HEADER_SIZE, dataBytes);
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+    }
+
+    /**
+     * 创建一个分桶线程独占的写入器
+     */
+    public synchronized ValueWriter newWriter() {
+        ThreadScatterer scatterer = new ThreadScatterer();
+        scatterers.add(scatterer);
+        return scatterer;
+    }
+
+    /**
+     * 写出所有线程的剩余缓冲，校验每个桶都恰好写满；开启有序构建时并行把每个二级桶原地排序，
+     * 配置了压缩编码时再把散布写入的原始文件编码成最终的一级桶文件
+     */
+    public void finish(ExecutorService executor) throws Exception {
+        for (ThreadScatterer scatterer : scatterers) {
+            scatterer.close();
+        }
+        for (int l1 = 0; l1 < AppConstants.LEVEL1_BUCKET_NUM; l1++) {
+            long end = 0;
+            for (int l2 = 0; l2 < AppConstants.LEVEL2_BUCKET_NUM; l2++) {
+                int bucketId = l1 * AppConstants.LEVEL2_BUCKET_NUM + l2;
+                end += counts[bucketId] * AppConstants.LONG_BYTE;
+                if (cursors.get(bucketId) != end) {
+                    throw new IOException("桶" + bucketId + "写入数量与第一遍计数不一致，源文件可能在构建期间被修改");
+                }
+            }
+        }
+
+        if (!AppConstants.SORTED_BUILD && AppConstants.STORAGE == BucketCodec.RAW) {
+            return;
+        }
+        final CountDownLatch latch = new CountDownLatch(AppConstants.LEVEL1_BUCKET_NUM);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        for (int l1 = 0; l1 < AppConstants.LEVEL1_BUCKET_NUM; l1++) {
+            final int level1 = l1;
+            executor.submit(new Runnable() {
+                public void run() {
+                    try {
+                        if (AppConstants.SORTED_BUILD) {
+                            sortBucketFile(level1);
+                        }
+                        if (AppConstants.STORAGE != BucketCodec.RAW) {
+                            encodeBucketFile(level1);
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        latch.await();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private void sortBucketFile(int l1) {
+        MappedLongFile file = files[l1];
+        long position = 0;
+        for (int l2 = 0; l2 < AppConstants.LEVEL2_BUCKET_NUM; l2++) {
+            int count = (int) counts[l1 * AppConstants.LEVEL2_BUCKET_NUM + l2];
+            long[] values = new long[count];
+            for (int i = 0; i < count; i++) {
+                values[i] = file.getLong(position + (long) i * AppConstants.LONG_BYTE);
+            }
+            RadixSort.sort(values);
+            for (int i = 0; i < count; i++) {
+                file.putLong(position + (long) i * AppConstants.LONG_BYTE, values[i]);
+            }
+            position += (long) count * AppConstants.LONG_BYTE;
+        }
+    }
+
+    /**
+     * 按存储编码重写一级桶文件，完成后删除散布写入用的原始文件
+     */
+    private void encodeBucketFile(int l1) throws IOException {
+        MappedLongFile file = files[l1];
+        int[] starts = new int[AppConstants.LEVEL2_BUCKET_NUM + 1];
+        for (int l2 = 0; l2 < AppConstants.LEVEL2_BUCKET_NUM; l2++) {
+            starts[l2 + 1] = starts[l2] + (int) counts[l1 * AppConstants.LEVEL2_BUCKET_NUM + l2];
+        }
+        long[] values = new long[starts[AppConstants.LEVEL2_BUCKET_NUM]];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = file.getLong((long) i * AppConstants.LONG_BYTE);
+        }
+        BucketCodec.writeLevel1File(AppConstants.getBucketFileName(l1), AppConstants.STORAGE, values, starts);
+        files[l1] = null;
+        new File(getScatterFileName(l1)).delete();
+    }
+
+    /**
+     * 散布写入的目标文件：原始编码时直接是最终的一级桶文件，否则是之后再编码的临时文件
+     */
+    private static String getScatterFileName(int l1) {
+        String fileName = AppConstants.getBucketFileName(l1);
+        return AppConstants.STORAGE == BucketCodec.RAW ? fileName : fileName + ".raw";
+    }
+
+    /**
+     * 单个分桶线程的写入器，缓冲区按一级桶划分
+     */
+    private class ThreadScatterer implements ValueWriter {
+
+        private final long[][] buffers = new long[AppConstants.LEVEL1_BUCKET_NUM][];
+        // 与缓冲区中的值一一对应的二级桶号
+        private final byte[][] level2s = new byte[AppConstants.LEVEL1_BUCKET_NUM][];
+        private final int[] sizes = new int[AppConstants.LEVEL1_BUCKET_NUM];
+        private final int[] groupCounts = new int[AppConstants.LEVEL2_BUCKET_NUM];
+        private final long[] groupCursors = new long[AppConstants.LEVEL2_BUCKET_NUM];
+
+        @Override
+        public void write(long value) {
+            int bucketId = BucketRule.getBucketId(value);
+            int l1 = BucketRule.getLevel1(bucketId);
+            long[] buffer = buffers[l1];
+            if (buffer == null) {
+                buffer = buffers[l1] = new long[SCATTER_BUFFER_NUM];
+                level2s[l1] = new byte[SCATTER_BUFFER_NUM];
+            }
+            int size = sizes[l1];
+            buffer[size] = value;
+            level2s[l1][size] = (byte) BucketRule.getLevel2(bucketId);
+            sizes[l1] = ++size;
+            if (size == SCATTER_BUFFER_NUM) {
+                scatter(l1);
+            }
+        }
+
+        /**
+         * 按二级桶分组，每组一次原子操作预留区间，再写入映射文件
+         */
+        private void scatter(int l1) {
+            long[] buffer = buffers[l1];
+            byte[] level2 = level2s[l1];
+            int size = sizes[l1];
+            Arrays.fill(groupCounts, 0);
+            for (int i = 0; i < size; i++) {
+                groupCounts[level2[i] & 0xFF]++;
+            }
+            int base = l1 * AppConstants.LEVEL2_BUCKET_NUM;
+            for (int l2 = 0; l2 < AppConstants.LEVEL2_BUCKET_NUM; l2++) {
+                if (groupCounts[l2] > 0) {
+                    groupCursors[l2] = cursors.getAndAdd(base + l2, (long) groupCounts[l2] * AppConstants.LONG_BYTE);
+                }
+            }
+            MappedLongFile file = files[l1];
+            for (int i = 0; i < size; i++) {
+                int l2 = level2[i] & 0xFF;
+                file.putLong(groupCursors[l2], buffer[i]);
+                groupCursors[l2] += AppConstants.LONG_BYTE;
+            }
+            sizes[l1] = 0;
+        }
+
+        void close() {
+            for (int l1 = 0; l1 < AppConstants.LEVEL1_BUCKET_NUM; l1++) {
+                if (sizes[l1] > 0) {
+                    scatter(l1);
+                }
+                buffers[l1] = null;
+                level2s[l1] = null;
+            }
+        }
+    }
+}
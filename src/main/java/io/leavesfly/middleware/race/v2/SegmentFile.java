@@ -0,0 +1,204 @@
+package io.leavesfly.middleware.race.v2;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * 构建过程中的临时分段文件，只允许一个线程追加
+ * 数据按块追加，记录每个一级桶的块偏移量，拼接时按一级桶读回；
+ * 可恢复构建时每个分片一个分段文件，分片读完后连同块表和计数一起落盘，重新构建时从块表文件恢复
+ * <p>
+ * 块表文件格式（大端）：magic(int) size(long) blockNums(int[一级桶数]) 各一级桶的块(offset(long) bytes(int)) counts(long[总桶数])
+ */
+public class SegmentFile {
+
+    private static final int META_MAGIC = 0x544B5345; // "TKSE"
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+
+    // 每个一级桶已写出的块在分段文件中的偏移量和有效字节数
+    private final long[][] blockOffsets;
+    private final int[][] blockBytes;
+    private final int[] blockNums;
+
+    private long size;
+    // 按追加顺序累计的数据校验和，即整个分段文件的CRC32
+    private final CRC32 crc = new CRC32();
+
+    SegmentFile(String fileName) throws IOException {
+        file = new File(fileName);
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(0);
+        channel = randomAccessFile.getChannel();
+
+        blockOffsets = new long[AppConstants.LEVEL1_BUCKET_NUM][16];
+        blockBytes = new int[AppConstants.LEVEL1_BUCKET_NUM][16];
+        blockNums = new int[AppConstants.LEVEL1_BUCKET_NUM];
+    }
+
+    private SegmentFile(File file, long size, long[][] blockOffsets, int[][] blockBytes, int[] blockNums)
+            throws IOException {
+        this.file = file;
+        this.size = size;
+        this.blockOffsets = blockOffsets;
+        this.blockBytes = blockBytes;
+        this.blockNums = blockNums;
+        randomAccessFile = new RandomAccessFile(file, "r");
+        channel = randomAccessFile.getChannel();
+    }
+
+    /**
+     * 从块表文件恢复已提交的分段，把其中的计数累加到counts
+     */
+    static SegmentFile reopen(File dataFile, File metaFile, long[] counts) throws IOException {
+        RandomAccessFile metaRaf = new RandomAccessFile(metaFile, "r");
+        ByteBuffer meta;
+        try {
+            meta = BucketCodec.readFully(metaRaf.getChannel(), 0, (int) metaRaf.length());
+        } finally {
+            metaRaf.close();
+        }
+        if (meta.getInt() != META_MAGIC) {
+            throw new IOException("分段块表格式不符: " + metaFile);
+        }
+        long size = meta.getLong();
+        if (dataFile.length() != size) {
+            throw new IOException("分段文件长度与块表不符: " + dataFile);
+        }
+        int[] blockNums = new int[AppConstants.LEVEL1_BUCKET_NUM];
+        meta.asIntBuffer().get(blockNums);
+        meta.position(meta.position() + blockNums.length * 4);
+        long[][] blockOffsets = new long[AppConstants.LEVEL1_BUCKET_NUM][];
+        int[][] blockBytes = new int[AppConstants.LEVEL1_BUCKET_NUM][];
+        for (int l1 = 0; l1 < AppConstants.LEVEL1_BUCKET_NUM; l1++) {
+            blockOffsets[l1] = new long[Math.max(1, blockNums[l1])];
+            blockBytes[l1] = new int[Math.max(1, blockNums[l1])];
+            for (int b = 0; b < blockNums[l1]; b++) {
+                blockOffsets[l1][b] = meta.getLong();
+                blockBytes[l1][b] = meta.getInt();
+            }
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += meta.getLong();
+        }
+        return new SegmentFile(dataFile, size, blockOffsets, blockBytes, blockNums);
+    }
+
+    /**
+     * 数据落盘后写出块表文件并落盘，之后该分段只读
+     *
+     * @param counts 分段内每个桶的数据量（按全局桶号）
+     * @return 块表文件的CRC32
+     */
+    long commit(File metaFile, long[] counts) throws IOException {
+        channel.force(false);
+
+        int blockTotal = 0;
+        for (int blockNum : blockNums) {
+            blockTotal += blockNum;
+        }
+        ByteBuffer meta = ByteBuffer.allocate(12 + blockNums.length * 4 + blockTotal * 12
+                + counts.length * AppConstants.LONG_BYTE);
+        meta.putInt(META_MAGIC);
+        meta.putLong(size);
+        for (int blockNum : blockNums) {
+            meta.putInt(blockNum);
+        }
+        for (int l1 = 0; l1 < AppConstants.LEVEL1_BUCKET_NUM; l1++) {
+            for (int b = 0; b < blockNums[l1]; b++) {
+                meta.putLong(blockOffsets[l1][b]);
+                meta.putInt(blockBytes[l1][b]);
+            }
+        }
+        for (long count : counts) {
+            meta.putLong(count);
+        }
+        meta.flip();
+
+        CRC32 metaCrc = new CRC32();
+        metaCrc.update(meta.array(), 0, meta.limit());
+        FileChannel metaChannel = new FileOutputStream(metaFile).getChannel();
+        try {
+            while (meta.hasRemaining()) {
+                metaChannel.write(meta);
+            }
+            metaChannel.force(false);
+        } finally {
+            metaChannel.close();
+        }
+        return metaCrc.getValue();
+    }
+
+    /**
+     * 已追加数据的CRC32
+     */
+    long getChecksum() {
+        return crc.getValue();
+    }
+
+    /**
+     * 把buffer中已写入的数据作为一级桶的一个块追加到文件末尾，调用方负责之后清空buffer
+     */
+    void appendBlock(int l1, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        int bytes = buffer.remaining();
+        if (bytes == 0) {
+            return;
+        }
+        long offset = size;
+        crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(), bytes);
+        while (buffer.hasRemaining()) {
+            size += channel.write(buffer, size);
+        }
+
+        int block = blockNums[l1]++;
+        if (block == blockOffsets[l1].length) {
+            blockOffsets[l1] = Arrays.copyOf(blockOffsets[l1], block * 2);
+            blockBytes[l1] = Arrays.copyOf(blockBytes[l1], block * 2);
+        }
+        blockOffsets[l1][block] = offset;
+        blockBytes[l1][block] = bytes;
+    }
+
+    int getBlockNum(int l1) {
+        return blockNums[l1];
+    }
+
+    /**
+     * 读取一级桶的第block块到dst中（线程安全的定位读）
+     */
+    void readBlock(int l1, int block, ByteBuffer dst) throws IOException {
+        long position = blockOffsets[l1][block];
+        dst.clear();
+        dst.limit(blockBytes[l1][block]);
+        while (dst.hasRemaining()) {
+            int readSize = channel.read(dst, position);
+            if (readSize < 0) {
+                throw new IOException("分段文件" + file + "数据不完整");
+            }
+            position += readSize;
+        }
+        dst.flip();
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    void delete() {
+        try {
+            randomAccessFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,170 @@
+package io.leavesfly.middleware.race.v2;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 源文件的一个分片，范围[start, end)按换行符对齐，用于多线程并发读入
+ */
+public class SourceSplit {
+
+    private static final byte LINE_CODE = (byte) '\n';
+
+    private final File file;
+    private final long start;
+    private final long end;
+
+    SourceSplit(File file, long start, long end) {
+        this.file = file;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * 把每个源文件切成num个按行对齐的分片
+     */
+    public static List<SourceSplit> buildSourceSplits(File[] sourceFiles, int num) throws IOException {
+        List<SourceSplit> splits = new ArrayList<>();
+        for (File sourceFile : sourceFiles) {
+            long fileSize = sourceFile.length();
+            long step = fileSize / num;
+            long beginPosition = 0L;
+
+            RandomAccessFile randomAccess = new RandomAccessFile(sourceFile, "r");
+            try {
+                for (int j = 1; j < num && beginPosition < fileSize; j++) {
+                    long endPosition = Math.max(beginPosition, j * step);
+                    randomAccess.seek(endPosition);
+                    int b;
+                    while ((b = randomAccess.read()) != -1 && b != LINE_CODE) {
+                        endPosition++;
+                    }
+                    // 包含换行符本身
+                    endPosition = Math.min(endPosition + 1, fileSize);
+                    splits.add(new SourceSplit(sourceFile, beginPosition, endPosition));
+                    beginPosition = endPosition;
+                }
+            } finally {
+                randomAccess.close();
+            }
+
+            if (beginPosition < fileSize) {
+                splits.add(new SourceSplit(sourceFile, beginPosition, fileSize));
+            }
+        }
+        return splits;
+    }
+
+    /**
+     * 按配置的读取方式打开该分片
+     */
+    public SplitReader openReader() throws IOException {
+        if ("buffered".equals(AppConstants.SOURCE_READER)) {
+            return new LineSplitReader(openLineReader());
+        }
+        return new MappedSplitReader(this);
+    }
+
+    /**
+     * 按行读取该分片
+     */
+    public BufferedReader openLineReader() throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        return new BufferedReader(new InputStreamReader(
+                new SplitInputStream(channel, start, end), "US-ASCII"), 1024 * 64);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public long length() {
+        return end - start;
+    }
+
+    @Override
+    public String toString() {
+        return file.getName() + "[" + start + ", " + end + ")";
+    }
+
+    /**
+     * 基于BufferedReader按行解析的读取器
+     */
+    private static class LineSplitReader implements SplitReader {
+
+        private final BufferedReader reader;
+
+        LineSplitReader(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public int read(long[] batch) throws IOException {
+            int count = 0;
+            String line;
+            while (count < batch.length && (line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    batch[count++] = Long.parseLong(line);
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * 只读取分片范围内字节的输入流
+     */
+    private static class SplitInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        SplitInputStream(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int toRead = (int) Math.min(len, end - position);
+            int readSize = channel.read(ByteBuffer.wrap(b, off, toRead), position);
+            if (readSize > 0) {
+                position += readSize;
+            }
+            return readSize;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package io.leavesfly.middleware.race.v2;
+
+import java.io.IOException;
+
+/**
+ * 分片级检查点：分桶线程处理每个分片前后调用，已提交的分片在重新构建时跳过
+ */
+public interface SplitCheckpoint {
+
+    /**
+     * 分片是否已在之前的构建中完成并通过校验
+     */
+    boolean isDone(int split);
+
+    /**
+     * 第worker个分桶线程开始处理分片
+     */
+    void begin(int worker, int split) throws IOException;
+
+    /**
+     * 分片读完，其数据落盘后记入构建清单
+     */
+    void commit(int worker, int split) throws IOException;
+}
@@ -0,0 +1,9 @@
+package io.leavesfly.middleware.race.v2;
+
+import io.leavesfly.middleware.race.pipeline.BatchSource;
+
+/**
+ * 源文件分片读取器，把分片中的数字按批解析到调用方提供的long数组中
+ */
+public interface SplitReader extends BatchSource {
+}
@@ -1,16 +1,39 @@
 package io.leavesfly.middleware.race.v2;
 
 import io.leavesfly.middleware.race.KNLimit;
+import io.leavesfly.middleware.race.pipeline.BatchSource;
+import io.leavesfly.middleware.race.pipeline.IngestPipeline;
+import io.leavesfly.middleware.race.util.BucketCache;
+import io.leavesfly.middleware.race.util.BucketSplitters;
+import io.leavesfly.middleware.race.util.BuildManifest;
+import io.leavesfly.middleware.race.util.Introselect;
+import io.leavesfly.middleware.race.util.QuantileSampler;
+import io.leavesfly.middleware.race.util.QuantileSketch;
+import io.leavesfly.middleware.race.util.RadixSort;
+import io.leavesfly.middleware.race.util.RankSearch;
+import io.leavesfly.middleware.race.util.ResultWriter;
 import org.apache.log4j.FileAppender;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * TopKN v2版本 - 优化的分页排序实现
@@ -18,31 +41,56 @@ import java.util.concurrent.Executors;
  * 1. 两级索引：256个一级桶 + 每桶256个二级桶
  * 2. 更紧凑的索引结构，减少内存占用
  * 3. 优化的查询流程，减少不必要的IO
+ * 4. 分桶线程各自独占分区缓冲区和分段文件，构建过程无锁，随核数扩展
+ * 5. 默认以内存映射方式读入源文件，直接从映射缓冲区解析数字，不产生中间对象
+ * 6. 可选采样预处理，按分位点划分桶边界，数据倾斜时各桶大小依然均衡
+ * 7. 可选有序构建，桶数据在构建时排好序，查询时按名次直接定位读取，不再排序
+ * 8. 未排序的桶查询时只做区间选择，只对窗口内的n个值排序
+ * 9. 可选的排好序二级桶缓存（分段LRU，按字节限额），常驻查询时连续翻页不再重复读取和排序
+ * 10. 全局索引为桶数据量的前缀和，以扁平二进制文件内存映射加载，定位桶为无分支二分查找
+ * 11. 可选的桶存储编码：去掉桶内相同的高16位（每个值6字节），或排好序后分块差值位压缩并带跳表
+ * 12. 支持向已有索引追加源文件：新数据写成增量段，只处理新数据，查询时合并读取基础桶和增量段，
+ *     增量段积累到一定数量后在后台合并回基础桶文件
+ * 13. 分区构建可断点续做：构建清单带校验和记录已完成的分片和一级桶文件，中途退出后重新构建只补做缺失部分，
+ *     全局索引最后原子地发布，索引文件存在即表示构建完整
+ * 14. 按翻转符号位后的高16位分桶，全范围有符号long按大小有序；降序分页用数据总量换算成升序名次，代价与升序相同
+ * 15. 构建时每个线程顺带维护一个KLL分位数草图，合并后与全局索引一起保存，追加增量段时并入；
+ *     近似分位数和近似名次查询只读内存中的草图，不读桶文件
  */
 public class TopKN implements KNLimit {
 
     public static final Logger logger = Logger.getLogger(TopKN.class);
 
-    // 一级桶数量：256
-    private static final int LEVEL1_BUCKET_NUM = 256;
-    // 二级桶数量：256
-    private static final int LEVEL2_BUCKET_NUM = 256;
-    // 总桶数
-    private static final int TOTAL_BUCKET_NUM = LEVEL1_BUCKET_NUM * LEVEL2_BUCKET_NUM;
-
-    // 索引目录
-    private static final String INDEX_DIR = MIDDLE_DIR + "v2_index/";
-    private static final String DATA_DIR_PATH = MIDDLE_DIR + "v2_data/";
-    private static final String GLOBAL_INDEX_FILE = INDEX_DIR + "global.idx";
     private static final String LOG_FILE = LOG_DIR + "v2_log";
 
-    // 每个桶的缓冲区大小（字节数）
-    private static final int BUCKET_BUFFER_SIZE = 8 * 256; // 256个long值
-
     // 索引缓存（进程级缓存，5轮查询复用）
-    private static GlobalIndex cachedGlobalIndex = null;
+    private static volatile GlobalIndex cachedGlobalIndex = null;
+    // 追加记录的指纹和作废记录的值
+    private static final String APPENDED_MANIFEST_FINGERPRINT = "v2;appended";
+    private static final String NOT_APPENDED = "none";
+
+    // 与全局索引一起加载的分位数草图，缺失或与索引的数据总量不一致时为null
+    private static volatile QuantileSketch cachedSketch = null;
     private static final Object cacheLock = new Object();
 
+    // 查询持读锁；追加和合并替换全局索引与桶文件时持写锁，查询不会看到新旧混合的状态
+    private static final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
+    // 追加与合并互斥执行
+    private static final Object maintenanceLock = new Object();
+
+    // 排好序的二级桶缓存，按字节数限额，未配置时为null
+    private static final BucketCache bucketCache = AppConstants.BUCKET_CACHE_BYTES > 0
+            ? new BucketCache(AppConstants.BUCKET_CACHE_BYTES) : null;
+
+    // 缓存未命中时读取并排序整个二级桶
+    private final BucketCache.Loader sortedBucketLoader = new BucketCache.Loader() {
+        public long[] load(int bucketId) throws IOException {
+            long[] values = readBucket(bucketId);
+            RadixSort.sort(values);
+            return values;
+        }
+    };
+
     static {
         Logger rootLogger = Logger.getRootLogger();
         rootLogger.setLevel(Level.INFO);
@@ -54,350 +102,1010 @@ public class TopKN implements KNLimit {
         }
 
         // 创建必要的目录
-        new File(INDEX_DIR).mkdirs();
-        new File(DATA_DIR_PATH).mkdirs();
+        new File(AppConstants.INDEX_DIR).mkdirs();
+        new File(AppConstants.DATA_DIR_PATH).mkdirs();
         new File(RESULT_DIR).mkdirs();
     }
 
     /**
-     * 全局索引：记录每个桶的起始序号和数据量
+     * 初始化索引
      */
-    private static class GlobalIndex implements Serializable {
-        long[][] bucketInfo; // [桶号][起始序号, 数据量]
-
-        GlobalIndex() {
-            bucketInfo = new long[TOTAL_BUCKET_NUM][2];
-        }
-
-        void setBucketInfo(int bucketId, long startSeq, long count) {
-            bucketInfo[bucketId][0] = startSeq;
-            bucketInfo[bucketId][1] = count;
+    @Override
+    public void init() {
+        File globalIndexFile = new File(AppConstants.GLOBAL_INDEX_FILE);
+        if (globalIndexFile.exists()) {
+            if (AppConstants.APPEND_FILES.isEmpty()) {
+                logger.info("索引已存在，跳过初始化");
+            } else {
+                String[] names = AppConstants.APPEND_FILES.split(",");
+                File[] appendFiles = new File[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    appendFiles[i] = new File(names[i].trim());
+                }
+                appendSources(appendFiles);
+            }
+            return;
         }
 
-        long getStartSeq(int bucketId) {
-            return bucketInfo[bucketId][0];
-        }
+        long startTime = System.currentTimeMillis();
+        logger.info("开始构建索引...");
+        // 重建后旧的追加记录不再对应索引中的数据
+        new File(AppConstants.APPENDED_MANIFEST_FILE).delete();
 
-        long getCount(int bucketId) {
-            return bucketInfo[bucketId][1];
-        }
+        try {
+            final int threadNum = AppConstants.INGEST_THREAD_NUM;
+            ExecutorService executor = Executors.newFixedThreadPool(threadNum);
 
-        // 根据序号k定位到桶（使用二分查找优化）
-        int locateBucket(long k) {
-            int left = 0, right = TOTAL_BUCKET_NUM - 1;
-            int result = -1;
+            // 源文件按行切分成多个分片，线程数多于文件数时也能均衡
+            File[] sourceFiles = AppConstants.getSourceFiles();
+            int splitsPerFile = Math.max(1, (threadNum * 2 + sourceFiles.length - 1) / sourceFiles.length);
+            List<SourceSplit> splits = SourceSplit.buildSourceSplits(sourceFiles, splitsPerFile);
+
+            // 分区构建按构建清单断点续做，源文件或构建参数变了时清单作废、从头构建
+            BuildManifest manifest = null;
+            if ("partition".equals(AppConstants.BUILD_MODE)) {
+                manifest = BuildManifest.open(new File(AppConstants.BUILD_MANIFEST_FILE),
+                        BuildManifest.fingerprint(sourceFiles, "v2;order=signed;storage=" + AppConstants.STORAGE
+                                + ";sorted=" + AppConstants.SORTED_BUILD + ";adaptive=" + AppConstants.ADAPTIVE_BUCKETS
+                                + ";splitsPerFile=" + splitsPerFile));
+            }
 
-            while (left <= right) {
-                int mid = left + (right - left) / 2;
-                long start = bucketInfo[mid][0];
-                long count = bucketInfo[mid][1];
+            BucketSplitters splitters = null;
+            if (AppConstants.ADAPTIVE_BUCKETS) {
+                splitters = loadOrSampleSplitters(sourceFiles, manifest);
+                logger.info("采样计算桶边界完成，耗时: " + (System.currentTimeMillis() - startTime) + "ms");
+            }
+            BucketRule.setSplitters(splitters);
 
-                if (k >= start && k < start + count) {
-                    return mid;
-                } else if (k < start) {
-                    right = mid - 1;
+            // 每个读入线程（流水线模式下为每个分区线程）一个草图
+            QuantileSketch[] sketches = newSketches("pipeline".equals(AppConstants.BUILD_MODE)
+                    ? AppConstants.PARTITION_THREAD_NUM : threadNum);
+            long[] counts;
+            PartitionedBucketWriter bucketWriter = null;
+            try {
+                if ("scatter".equals(AppConstants.BUILD_MODE)) {
+                    counts = buildWithScatter(splits, executor, sketches);
                 } else {
-                    left = mid + 1;
+                    if ("pipeline".equals(AppConstants.BUILD_MODE)) {
+                        bucketWriter = partitionWithPipeline(splits, sketches);
+                    } else {
+                        bucketWriter = PartitionedBucketWriter.resumable(threadNum, splits.size(), manifest);
+                        logger.info("从构建清单恢复" + bucketWriter.getResumedSplitNum() + "/" + splits.size()
+                                + "个分片");
+                        partitionWithWriters(splits, executor, bucketWriter, sketches);
+                    }
+                    logger.info("数据分桶完成，耗时: " + (System.currentTimeMillis() - startTime) + "ms");
+
+                    // 拼接各线程的分段到一级桶文件
+                    bucketWriter.flush(executor);
+                    counts = bucketWriter.getCounts();
                 }
+            } finally {
+                executor.shutdown();
             }
 
-            // 降级：如果二分未找到，回退到线性查找（处理边界情况）
-            for (int i = 0; i < TOTAL_BUCKET_NUM; i++) {
-                long start = bucketInfo[i][0];
-                long count = bucketInfo[i][1];
-                if (k >= start && k < start + count) {
-                    return i;
-                }
+            logger.info("桶文件写入完成，耗时: " + (System.currentTimeMillis() - startTime) + "ms");
+
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            publishSketch(mergeSketches(sketches), total);
+
+            // 所有桶文件落盘后最后原子地发布全局索引
+            GlobalIndex.publish(globalIndexFile, counts,
+                    splitters == null ? null : splitters.getSplitters(), AppConstants.SORTED_BUILD,
+                    AppConstants.STORAGE, 0);
+            if (manifest != null) {
+                bucketWriter.cleanup();
+                manifest.delete();
+                new File(AppConstants.BUILD_SPLITTERS_FILE).delete();
             }
-            return -1;
+
+            // 丢弃进程内可能缓存的旧索引和桶数据
+            resetCaches();
+
+            logger.info("索引构建完成，总耗时: " + (System.currentTimeMillis() - startTime) + "ms");
+
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
 
     /**
-     * 桶数据文件写入器
+     * 可恢复构建时优先使用清单中记录且校验通过的桶边界，否则重新采样并记入清单
      */
-    private static class BucketWriter {
-        private RandomAccessFile[] dataFiles;
-        private long[][][] offsets; // [一级桶][二级桶][起始偏移量]
-        private long[][] counts; // 每个桶的数据量
-        private byte[][][] buffers; // 三维数组：[一级桶][二级桶][字节数组]
-        private int[][] bufferPos; // 当前缓冲区位置
-
-        BucketWriter() throws IOException {
-            dataFiles = new RandomAccessFile[LEVEL1_BUCKET_NUM];
-            offsets = new long[LEVEL1_BUCKET_NUM][LEVEL2_BUCKET_NUM][1];
-            counts = new long[LEVEL1_BUCKET_NUM][LEVEL2_BUCKET_NUM];
-            buffers = new byte[LEVEL1_BUCKET_NUM][LEVEL2_BUCKET_NUM][BUCKET_BUFFER_SIZE];
-            bufferPos = new int[LEVEL1_BUCKET_NUM][LEVEL2_BUCKET_NUM];
-
-            // 初始化数据文件
-            for (int i = 0; i < LEVEL1_BUCKET_NUM; i++) {
-                dataFiles[i] = new RandomAccessFile(
-                        DATA_DIR_PATH + "bucket_" + i + ".dat", "rw");
-                // 预留索引空间：每个二级桶需要记录偏移量(long)和数量(long)
-                long headerSize = LEVEL2_BUCKET_NUM * 16; // 256 * 16 = 4KB
-                dataFiles[i].seek(headerSize);
-            }
+    private BucketSplitters loadOrSampleSplitters(File[] sourceFiles, BuildManifest manifest) throws IOException {
+        File splittersFile = new File(AppConstants.BUILD_SPLITTERS_FILE);
+        if (manifest != null && manifest.matchesChecksum("splitters", splittersFile)) {
+            logger.info("从构建清单恢复桶边界");
+            return new BucketSplitters(BuildManifest.readLongs(splittersFile));
         }
-
-        // 根据long值计算桶号
-        private int[] getBucketId(long value) {
-            // 使用高16位分桶
-            int level1 = (int) ((value >>> 56) & 0xFF);
-            int level2 = (int) ((value >>> 48) & 0xFF);
-            return new int[]{level1, level2};
+        BucketSplitters splitters = QuantileSampler.buildSplitters(sourceFiles, AppConstants.TOTAL_BUCKET_NUM);
+        if (manifest != null) {
+            manifest.commit("splitters",
+                    Long.toHexString(BuildManifest.writeLongs(splittersFile, splitters.getSplitters())));
         }
+        return splitters;
+    }
 
-        // 写入数据
-        void write(long value) {
-            int[] bucketId = getBucketId(value);
-            int l1 = bucketId[0];
-            int l2 = bucketId[1];
-
-            // 写入缓冲区
-            byte[] buffer = buffers[l1][l2];
-            int pos = bufferPos[l1][l2];
+    /**
+     * 每个线程一个空草图，未启用草图时返回null
+     */
+    private static QuantileSketch[] newSketches(int num) {
+        if (AppConstants.SKETCH_K <= 0) {
+            return null;
+        }
+        QuantileSketch[] sketches = new QuantileSketch[num];
+        for (int i = 0; i < num; i++) {
+            sketches[i] = new QuantileSketch(AppConstants.SKETCH_K);
+        }
+        return sketches;
+    }
 
-            // long转字节
-            buffer[pos++] = (byte) (value >>> 56);
-            buffer[pos++] = (byte) (value >>> 48);
-            buffer[pos++] = (byte) (value >>> 40);
-            buffer[pos++] = (byte) (value >>> 32);
-            buffer[pos++] = (byte) (value >>> 24);
-            buffer[pos++] = (byte) (value >>> 16);
-            buffer[pos++] = (byte) (value >>> 8);
-            buffer[pos++] = (byte) value;
+    private static QuantileSketch mergeSketches(QuantileSketch[] sketches) {
+        if (sketches == null) {
+            return null;
+        }
+        QuantileSketch merged = sketches[0];
+        for (int i = 1; i < sketches.length; i++) {
+            merged.merge(sketches[i]);
+        }
+        return merged;
+    }
 
-            bufferPos[l1][l2] = pos;
-            counts[l1][l2]++;
+    /**
+     * 在全局索引之前发布草图；草图未覆盖全部数据时（断点续做跳过了已完成的分片、已有草图缺失）删除旧草图，
+     * 近似查询退化为精确查询
+     */
+    private static void publishSketch(QuantileSketch sketch, long total) throws IOException {
+        File sketchFile = new File(AppConstants.QUANTILE_SKETCH_FILE);
+        if (sketch == null || sketch.getN() != total) {
+            sketchFile.delete();
+            if (sketch != null) {
+                logger.info("分位数草图只覆盖" + sketch.getN() + "/" + total + "个值，不保存");
+            }
+            return;
+        }
+        sketch.publish(sketchFile);
+        logger.info("分位数草图已保存，名次误差上界: " + sketch.getRankError());
+    }
 
-            // 缓冲区满则刷新
-            if (pos >= BUCKET_BUFFER_SIZE) {
-                flushBuffer(l1, l2);
+    /**
+     * 加载与全局索引数据总量一致的草图，否则返回null
+     */
+    private static QuantileSketch loadSketch(long total) {
+        File sketchFile = new File(AppConstants.QUANTILE_SKETCH_FILE);
+        if (!sketchFile.exists()) {
+            return null;
+        }
+        try {
+            QuantileSketch sketch = QuantileSketch.load(sketchFile);
+            if (sketch.getN() == total) {
+                return sketch;
             }
+            logger.info("分位数草图与全局索引的数据总量不一致，忽略");
+        } catch (IOException e) {
+            logger.error("加载分位数草图失败: " + e.getMessage());
+            e.printStackTrace();
         }
+        return null;
+    }
 
-        // 刷新特定桶的缓冲区
-        private void flushBuffer(int l1, int l2) {
+    /**
+     * 把新的源文件追加到已有索引：新数据按已有的分桶规则写成一个增量段，耗时只与新数据量有关；
+     * 之后把增量段的数据量并入全局前缀和并原子地发布，新的查询合并读取基础桶和各增量段。
+     * 已追加过的源文件（路径、长度、修改时间都相同）跳过，每次启动都带着同样的追加参数也不会重复追加
+     */
+    public void appendSources(File[] sourceFiles) {
+        long startTime = System.currentTimeMillis();
+        synchronized (maintenanceLock) {
+            BuildManifest appendedManifest = null;
             try {
-                int pos = bufferPos[l1][l2];
-                if (pos > 0) {
-                    dataFiles[l1].write(buffers[l1][l2], 0, pos);
-                    bufferPos[l1][l2] = 0;
+                // 加载索引的同时恢复构建时的分桶规则
+                GlobalIndex globalIndex = getOrLoadGlobalIndex();
+                appendedManifest = BuildManifest.open(new File(AppConstants.APPENDED_MANIFEST_FILE),
+                        APPENDED_MANIFEST_FINGERPRINT);
+                sourceFiles = filterAppended(appendedManifest, sourceFiles, globalIndex.getTotal());
+                if (sourceFiles.length == 0) {
+                    logger.info("源文件均已追加过，跳过追加");
+                    return;
+                }
+                int delta = globalIndex.getDeltaNum() + 1;
+                String deltaDir = AppConstants.getDeltaDir(delta);
+                // 清理上次未发布就中断的同号增量段
+                DeltaCompactor.deleteDir(new File(deltaDir));
+                new File(deltaDir).mkdirs();
+                logger.info("开始追加" + sourceFiles.length + "个源文件到增量段" + delta);
+
+                int threadNum = AppConstants.INGEST_THREAD_NUM;
+                int splitsPerFile = Math.max(1, (threadNum * 2 + sourceFiles.length - 1) / sourceFiles.length);
+                List<SourceSplit> splits = SourceSplit.buildSourceSplits(sourceFiles, splitsPerFile);
+                ExecutorService executor = Executors.newFixedThreadPool(threadNum);
+                long[] deltaCounts;
+                QuantileSketch[] sketches = newSketches(threadNum);
+                try {
+                    PartitionedBucketWriter bucketWriter = PartitionedBucketWriter.forDelta(threadNum, deltaDir);
+                    partitionWithWriters(splits, executor, bucketWriter, sketches);
+                    bucketWriter.flush(executor);
+                    deltaCounts = bucketWriter.getCounts();
+                } finally {
+                    executor.shutdown();
+                }
+                GlobalIndex.write(new File(AppConstants.getDeltaIndexFile(delta)), deltaCounts, null, false,
+                        BucketCodec.RAW);
+
+                long[] counts = globalIndex.getCounts();
+                long appended = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] += deltaCounts[i];
+                    appended += deltaCounts[i];
+                }
+                // 已有草图与增量段的草图合并；已有草图缺失或已过期时合并结果也不完整，publishSketch会丢弃
+                QuantileSketch sketch = mergeSketches(sketches);
+                if (sketch != null && cachedSketch != null) {
+                    sketch.merge(cachedSketch);
+                }
+                publishSketch(sketch, globalIndex.getTotal() + appended);
+                // 先记下追加后的数据总量再发布索引；发布前中断时索引的数据总量达不到记录值，下次仍会追加
+                for (File sourceFile : sourceFiles) {
+                    appendedManifest.commit(appendedKey(sourceFile),
+                            Long.toString(globalIndex.getTotal() + appended));
+                }
+                indexLock.writeLock().lock();
+                try {
+                    GlobalIndex.publish(new File(AppConstants.GLOBAL_INDEX_FILE), counts,
+                            globalIndex.getSplitters(), globalIndex.isSorted(), globalIndex.getStorage(), delta);
+                    resetCaches();
+                } finally {
+                    indexLock.writeLock().unlock();
                 }
-            } catch (IOException e) {
+                logger.info("追加完成，新增" + appended + "个值，耗时: " + (System.currentTimeMillis() - startTime) + "ms");
+
+                if (AppConstants.COMPACT_DELTA_NUM > 0 && delta >= AppConstants.COMPACT_DELTA_NUM) {
+                    startBackgroundCompaction();
+                }
+            } catch (Exception e) {
+                logger.error("追加源文件失败: " + e.getMessage());
                 e.printStackTrace();
+            } finally {
+                if (appendedManifest != null) {
+                    appendedManifest.close();
+                }
             }
         }
+    }
 
-        // 刷新所有缓冲区并写入索引
-        void flush() throws IOException {
-            for (int l1 = 0; l1 < LEVEL1_BUCKET_NUM; l1++) {
-                long currentOffset = LEVEL2_BUCKET_NUM * 16;
+    /**
+     * 去掉已追加并发布过的源文件和重复列出的源文件；记录了但数据总量没有达到记录值的追加没有发布成功，
+     * 先作废这些记录，避免之后别的追加使数据总量达到记录值而被误认为已追加
+     */
+    private static File[] filterAppended(BuildManifest appendedManifest, File[] sourceFiles, long total)
+            throws IOException {
+        for (String key : appendedManifest.keys()) {
+            String value = appendedManifest.get(key);
+            if (!NOT_APPENDED.equals(value) && Long.parseLong(value) > total) {
+                appendedManifest.commit(key, NOT_APPENDED);
+            }
+        }
+        Map<String, File> pending = new LinkedHashMap<>();
+        for (File sourceFile : sourceFiles) {
+            String key = appendedKey(sourceFile);
+            String value = appendedManifest.get(key);
+            if (value == null || NOT_APPENDED.equals(value)) {
+                pending.put(key, sourceFile);
+            } else {
+                logger.info("源文件" + sourceFile + "已追加过，跳过");
+            }
+        }
+        return pending.values().toArray(new File[0]);
+    }
 
-                // 刷新所有二级桶的数据
-                for (int l2 = 0; l2 < LEVEL2_BUCKET_NUM; l2++) {
-                    flushBuffer(l1, l2);
-                    offsets[l1][l2][0] = currentOffset;
-                    currentOffset += counts[l1][l2] * 8;
-                }
+    private static String appendedKey(File sourceFile) {
+        return BuildManifest.fingerprint(new File[]{sourceFile.getAbsoluteFile()}, "append");
+    }
 
-                // 写入索引头
-                dataFiles[l1].seek(0);
-                for (int l2 = 0; l2 < LEVEL2_BUCKET_NUM; l2++) {
-                    dataFiles[l1].writeLong(offsets[l1][l2][0]);
-                    dataFiles[l1].writeLong(counts[l1][l2]);
+    /**
+     * 把所有增量段合并回基础桶文件：只重写有增量数据的一级桶，合并期间查询照常进行，
+     * 写好后在持写锁的短暂间隙里替换文件并发布不含增量段的全局索引
+     */
+    public void compact() {
+        long startTime = System.currentTimeMillis();
+        synchronized (maintenanceLock) {
+            try {
+                GlobalIndex globalIndex = getOrLoadGlobalIndex();
+                if (globalIndex.getDeltaNum() == 0) {
+                    return;
+                }
+                DeltaCompactor compactor = new DeltaCompactor(globalIndex);
+                ExecutorService executor = Executors.newFixedThreadPool(AppConstants.INGEST_THREAD_NUM);
+                List<Integer> level1s;
+                try {
+                    level1s = compactor.mergeLevel1Files(executor);
+                } finally {
+                    executor.shutdown();
                 }
 
-                dataFiles[l1].close();
+                // 提交后即使替换到一半中断，下次加载索引时也会前滚完成
+                indexLock.writeLock().lock();
+                try {
+                    compactor.commit(level1s);
+                    resetCaches();
+                    DeltaCompactor.recover();
+                } finally {
+                    indexLock.writeLock().unlock();
+                }
+                logger.info("合并" + globalIndex.getDeltaNum() + "个增量段完成，重写" + level1s.size()
+                        + "个一级桶文件，耗时: " + (System.currentTimeMillis() - startTime) + "ms");
+            } catch (Exception e) {
+                // 丢弃缓存的索引，下次加载时前滚已提交的合并，前滚仍失败时查询报错而不是重复计入增量数据
+                indexLock.writeLock().lock();
+                try {
+                    resetCaches();
+                } finally {
+                    indexLock.writeLock().unlock();
+                }
+                logger.error("合并增量段失败: " + e.getMessage());
+                e.printStackTrace();
             }
         }
+    }
+
+    /**
+     * 在后台线程合并增量段；非守护线程，一次性运行的进程退出前会等合并完成
+     */
+    private void startBackgroundCompaction() {
+        new Thread(new Runnable() {
+            public void run() {
+                compact();
+            }
+        }, "v2-compaction").start();
+    }
 
-        // 获取统计信息
-        long[][] getCounts() {
-            return counts;
+    /**
+     * 丢弃进程内缓存的全局索引和桶数据
+     */
+    private static void resetCaches() {
+        cachedGlobalIndex = null;
+        cachedSketch = null;
+        if (bucketCache != null) {
+            bucketCache.clear();
         }
     }
 
     /**
-     * 初始化索引
+     * 每个线程独占一个分区写入器，解析和写入在同一线程完成，分桶过程无锁
      */
-    public void init() {
-        File globalIndexFile = new File(GLOBAL_INDEX_FILE);
-        if (globalIndexFile.exists()) {
-            logger.info("索引已存在，跳过初始化");
-            return;
+    private void partitionWithWriters(List<SourceSplit> splits, ExecutorService executor,
+                                      PartitionedBucketWriter bucketWriter, QuantileSketch[] sketches)
+            throws Exception {
+        int threadNum = AppConstants.INGEST_THREAD_NUM;
+        ValueWriter[] writers = new ValueWriter[threadNum];
+        for (int t = 0; t < threadNum; t++) {
+            writers[t] = bucketWriter.getWriter(t);
         }
+        ingestSplits(splits, executor, writers, bucketWriter.getCheckpoint(), sketches);
+    }
 
+    /**
+     * 两遍构建：第一遍只统计每个桶的精确数据量，据此预分配各一级桶文件并写好索引头；
+     * 第二遍把数据直接写到最终位置，不产生分段文件，也不需要拼接
+     */
+    private long[] buildWithScatter(List<SourceSplit> splits, ExecutorService executor, QuantileSketch[] sketches)
+            throws Exception {
         long startTime = System.currentTimeMillis();
-        logger.info("开始构建索引...");
-
-        try {
-            // 创建桶写入器
-            final BucketWriter bucketWriter = new BucketWriter();
-
-            // 并行读取源文件并分桶
-            int threadNum = Math.min(10, Runtime.getRuntime().availableProcessors());
-            ExecutorService executor = Executors.newFixedThreadPool(threadNum);
-            final CountDownLatch latch = new CountDownLatch(10);
+        int threadNum = AppConstants.INGEST_THREAD_NUM;
+        final long[][] threadCounts = new long[threadNum][AppConstants.TOTAL_BUCKET_NUM];
+        ValueWriter[] counters = new ValueWriter[threadNum];
+        for (int t = 0; t < threadNum; t++) {
+            final long[] threadCount = threadCounts[t];
+            counters[t] = new ValueWriter() {
+                public void write(long value) {
+                    threadCount[BucketRule.getBucketId(value)]++;
+                }
+            };
+        }
+        ingestSplits(splits, executor, counters, null, sketches);
 
-            // 为每个线程创建独立的缓冲区，避免锁竞争
-            final BucketWriter[] writers = new BucketWriter[10];
-            for (int i = 0; i < 10; i++) {
-                writers[i] = bucketWriter;
+        long[] counts = new long[AppConstants.TOTAL_BUCKET_NUM];
+        for (long[] threadCount : threadCounts) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += threadCount[i];
             }
+        }
+        logger.info("第一遍计数完成，耗时: " + (System.currentTimeMillis() - startTime) + "ms");
 
-            for (int fileId = 0; fileId < 10; fileId++) {
-                final int fid = fileId;
-                executor.submit(new Runnable() {
-                    public void run() {
-                        try {
-                            String fileName = KNLimit.getSourceDataFileName(fid);
-                            BufferedReader reader = new BufferedReader(
-                                    new FileReader(fileName), 1024 * 64);
-                            String line;
-                            int count = 0;
-                            while ((line = reader.readLine()) != null) {
-                                long value = Long.parseLong(line.trim());
-                                synchronized (bucketWriter) {
-                                    bucketWriter.write(value);
+        ScatterBucketWriter scatterWriter = new ScatterBucketWriter(counts);
+        ValueWriter[] writers = new ValueWriter[threadNum];
+        for (int t = 0; t < threadNum; t++) {
+            writers[t] = scatterWriter.newWriter();
+        }
+        ingestSplits(splits, executor, writers, null, null);
+        scatterWriter.finish(executor);
+        logger.info("第二遍散布写入完成，耗时: " + (System.currentTimeMillis() - startTime) + "ms");
+        return counts;
+    }
+
+    /**
+     * 多线程并发读入所有分片，每个线程把解析出的值交给自己独占的写入器
+     *
+     * @param checkpoint 分片级检查点，为null时不跳过也不提交分片
+     * @param sketches   每个线程的分位数草图，为null时不统计
+     */
+    private void ingestSplits(final List<SourceSplit> splits, ExecutorService executor,
+                              ValueWriter[] writers, final SplitCheckpoint checkpoint,
+                              QuantileSketch[] sketches) throws Exception {
+        final int threadNum = writers.length;
+        final AtomicInteger nextSplit = new AtomicInteger(0);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final CountDownLatch latch = new CountDownLatch(threadNum);
+
+        for (int t = 0; t < threadNum; t++) {
+            final int worker = t;
+            final ValueWriter writer = writers[t];
+            final QuantileSketch sketch = sketches == null ? null : sketches[t];
+            executor.submit(new Runnable() {
+                public void run() {
+                    long readBytes = 0;
+                    long readTime = 0;
+                    long[] batch = new long[AppConstants.READ_BATCH_SIZE];
+                    try {
+                        int index;
+                        while ((index = nextSplit.getAndIncrement()) < splits.size()) {
+                            if (checkpoint != null && checkpoint.isDone(index)) {
+                                continue;
+                            }
+                            SourceSplit split = splits.get(index);
+                            long splitStart = System.nanoTime();
+                            if (checkpoint != null) {
+                                checkpoint.begin(worker, index);
+                            }
+                            SplitReader reader = split.openReader();
+                            int size;
+                            long count = 0;
+                            while ((size = reader.read(batch)) > 0) {
+                                for (int i = 0; i < size; i++) {
+                                    writer.write(batch[i]);
                                 }
-                                // 每处理10000行输出一次进度
-                                if (++count % 10000000 == 0) {
-                                    logger.info("文件" + fid + "已处理" + count + "行");
+                                if (sketch != null) {
+                                    for (int i = 0; i < size; i++) {
+                                        sketch.update(batch[i]);
+                                    }
                                 }
+                                count += size;
                             }
                             reader.close();
-                            logger.info("文件" + fid + "处理完成，共" + count + "行");
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        } finally {
-                            latch.countDown();
+                            if (checkpoint != null) {
+                                checkpoint.commit(worker, index);
+                            }
+                            readBytes += split.length();
+                            readTime += System.nanoTime() - splitStart;
+                            logger.info("分片" + split + "处理完成，共" + count + "行");
                         }
+                        logger.info("线程" + Thread.currentThread().getName() + "读入" + readBytes + "字节，吞吐: "
+                                + (readTime == 0 ? 0 : readBytes * 1000000000L / readTime / 1024 / 1024) + "MB/s");
+                    } catch (Exception e) {
+                        failed.set(true);
+                        logger.error("分桶失败: " + e.getMessage());
+                        e.printStackTrace();
+                    } finally {
+                        latch.countDown();
                     }
-                });
-            }
+                }
+            });
+        }
 
-            latch.await();
-            bucketWriter.flush();
-            executor.shutdown();
+        latch.await();
+        if (failed.get()) {
+            throw new IOException("分桶失败，放弃构建索引");
+        }
+    }
 
-            logger.info("数据分桶完成，耗时: " + (System.currentTimeMillis() - startTime) + "ms");
+    /**
+     * 解析、分区、写盘分阶段流水线执行，写线程各自独占一个分段文件
+     */
+    private PartitionedBucketWriter partitionWithPipeline(List<SourceSplit> splits, QuantileSketch[] sketches)
+            throws IOException {
+        int writeThreadNum = AppConstants.WRITE_THREAD_NUM;
+        final PartitionedBucketWriter bucketWriter = new PartitionedBucketWriter(writeThreadNum);
+
+        List<Callable<BatchSource>> sources = new ArrayList<>(splits.size());
+        for (final SourceSplit split : splits) {
+            sources.add(new Callable<BatchSource>() {
+                public BatchSource call() throws Exception {
+                    return split.openReader();
+                }
+            });
+        }
 
-            // 构建全局索引
-            GlobalIndex globalIndex = new GlobalIndex();
-            long[][] counts = bucketWriter.getCounts();
-            long currentSeq = 0;
+        PipelinePartitioner[] partitioners = new PipelinePartitioner[AppConstants.PARTITION_THREAD_NUM];
+        for (int i = 0; i < partitioners.length; i++) {
+            partitioners[i] = new PipelinePartitioner(sketches == null ? null : sketches[i]);
+        }
 
-            for (int l1 = 0; l1 < LEVEL1_BUCKET_NUM; l1++) {
-                for (int l2 = 0; l2 < LEVEL2_BUCKET_NUM; l2++) {
-                    int bucketId = l1 * LEVEL2_BUCKET_NUM + l2;
-                    long count = counts[l1][l2];
-                    globalIndex.setBucketInfo(bucketId, currentSeq, count);
-                    currentSeq += count;
-                }
+        // 一级桶的页总是路由到同一个写线程，写线程只追加自己的分段文件
+        final int segmentNum = writeThreadNum;
+        IngestPipeline.PageWriter pageWriter = new IngestPipeline.PageWriter() {
+            public void write(IngestPipeline.Page page) throws IOException {
+                int l1 = page.getTarget();
+                bucketWriter.getSegment(l1 % segmentNum).appendBlock(l1, page.getBuffer());
             }
+        };
 
-            // 保存全局索引
-            ObjectOutputStream oos = new ObjectOutputStream(
-                    new FileOutputStream(globalIndexFile));
-            oos.writeObject(globalIndex);
-            oos.close();
+        logger.info("流水线构建：解析线程" + AppConstants.PARSE_THREAD_NUM + "，分区线程" + partitioners.length
+                + "，写线程" + writeThreadNum);
+        new IngestPipeline(sources, AppConstants.PARSE_THREAD_NUM, partitioners, writeThreadNum, pageWriter,
+                AppConstants.READ_BATCH_SIZE, AppConstants.PARTITION_BUFFER_SIZE,
+                AppConstants.LEVEL1_BUCKET_NUM).run();
 
-            logger.info("索引构建完成，总耗时: " + (System.currentTimeMillis() - startTime) + "ms");
+        for (PipelinePartitioner partitioner : partitioners) {
+            bucketWriter.addCounts(partitioner.getCounts());
+        }
+        return bucketWriter;
+    }
+
+    @Override
+    public void processTopKN(long k, int n) {
+        long queryStart = System.currentTimeMillis();
+        try {
+            long[] result = queryTopKN(k, n);
+
+            // 输出结果
+            writeResult(result);
+
+            logger.info("查询完成，耗时: " + (System.currentTimeMillis() - queryStart) + "ms"
+                    + (bucketCache == null ? "" : "，" + bucketCache));
 
         } catch (Exception e) {
+            logger.error("查询失败: " + e.getMessage());
             e.printStackTrace();
         }
     }
 
     @Override
-    public void processTopKN(long k, int n) {
-        long queryStart = System.currentTimeMillis();
+    public long[] queryTopKN(long k, int n) {
+        indexLock.readLock().lock();
         try {
             // 加载或使用缓存的全局索引
             GlobalIndex globalIndex = getOrLoadGlobalIndex();
 
             logger.info("开始查询 top(" + k + ", " + n + ")");
 
+            // 超出数据总量的部分截掉
+            long total = globalIndex.getTotal();
+            if (k >= total) {
+                return new long[0];
+            }
+            n = (int) Math.min(n, total - k);
+
             // 定位起始和结束桶（使用二分查找）
             int startBucket = globalIndex.locateBucket(k);
             int endBucket = globalIndex.locateBucket(k + n - 1);
 
             if (startBucket == -1 || endBucket == -1) {
                 logger.error("无法定位桶，k=" + k + ", n=" + n);
-                return;
+                return new long[0];
             }
 
             logger.info("定位到桶范围: [" + startBucket + ", " + endBucket + "]");
 
-            long[] result = new long[n];
-
-            if (startBucket == endBucket) {
+            if (globalIndex.isSorted() && globalIndex.getDeltaNum() == 0) {
+                // 构建时已排序，按名次定位后直接读取；有增量段时桶数据不再整体有序，走合并读取
+                return readSortedRange(globalIndex, k, n);
+            } else if (startBucket == endBucket) {
                 // 数据在同一个桶内 - 使用局部选择优化
-                result = readBucketWithPartialSelect(startBucket,
+                return readBucketWithPartialSelect(startBucket,
                         k - globalIndex.getStartSeq(startBucket), n);
             } else {
                 // 数据跨越多个桶 - 并行读取优化
-                result = readMultipleBucketsParallel(globalIndex, startBucket, endBucket, k, n);
+                return readMultipleBucketsParallel(globalIndex, startBucket, endBucket, k, n);
             }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("查询失败: " + e.getMessage(), e);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
 
-            // 输出结果
-            writeResult(result);
-
-            logger.info("查询完成，耗时: " + (System.currentTimeMillis() - queryStart) + "ms");
+    @Override
+    public long[][] queryTopKN(long[] ks, int[] ns) {
+        long queryStart = System.currentTimeMillis();
+        indexLock.readLock().lock();
+        try {
+            GlobalIndex globalIndex = getOrLoadGlobalIndex();
+            long total = globalIndex.getTotal();
+            final long[][] results = new long[ks.length][];
+
+            // 桶号 -> 落在该桶内的查询窗口{查询序号, 桶内起始下标, 桶内结束下标, 结果内偏移}
+            Map<Integer, List<int[]>> bucketWindows = new HashMap<>();
+            for (int q = 0; q < ks.length; q++) {
+                long k = ks[q];
+                int n = k >= total ? 0 : (int) Math.min(ns[q], total - k);
+                results[q] = new long[n];
+                if (n == 0) {
+                    continue;
+                }
+                if (globalIndex.isSorted() && globalIndex.getDeltaNum() == 0) {
+                    // 构建时已排序，每个查询只需一次定位读取
+                    results[q] = readSortedRange(globalIndex, k, n);
+                    continue;
+                }
+                int startBucket = globalIndex.locateBucket(k);
+                int endBucket = globalIndex.locateBucket(k + n - 1);
+                for (int bucketId = startBucket; bucketId <= endBucket; bucketId++) {
+                    int num = windowNum(globalIndex, bucketId, k, n);
+                    if (num == 0) {
+                        continue;
+                    }
+                    int from = (int) windowOffset(globalIndex, bucketId, k);
+                    int resultOffset = (int) (globalIndex.getStartSeq(bucketId) + from - k);
+                    List<int[]> windows = bucketWindows.get(bucketId);
+                    if (windows == null) {
+                        windows = new ArrayList<>();
+                        bucketWindows.put(bucketId, windows);
+                    }
+                    windows.add(new int[]{q, from, from + num, resultOffset});
+                }
+            }
 
+            if (!bucketWindows.isEmpty()) {
+                readBucketWindows(bucketWindows, results);
+            }
+            logger.info("批量查询" + ks.length + "个，涉及" + bucketWindows.size() + "个桶，耗时: "
+                    + (System.currentTimeMillis() - queryStart) + "ms");
+            return results;
+        } catch (RuntimeException e) {
+            throw e;
         } catch (Exception e) {
-            logger.error("查询失败: " + e.getMessage());
-            e.printStackTrace();
+            throw new IllegalStateException("批量查询失败: " + e.getMessage(), e);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long[] queryTopKNDesc(long k, int n) {
+        indexLock.readLock().lock();
+        try {
+            long total = getOrLoadGlobalIndex().getTotal();
+            if (k >= total) {
+                return new long[0];
+            }
+            // 降序下标[k, k + n)对应升序下标[total - k - n, total - k)
+            long end = total - k;
+            int num = (int) Math.min(n, end);
+            return KNLimit.reverse(queryTopKN(end - num, num));
+        } catch (IOException e) {
+            throw new IllegalStateException("查询失败: " + e.getMessage(), e);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long rankOf(long v) {
+        indexLock.readLock().lock();
+        try {
+            return rankOf(getOrLoadGlobalIndex(), v);
+        } catch (IOException e) {
+            throw new IllegalStateException("计算名次失败: " + e.getMessage(), e);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long countBetween(long a, long b) {
+        if (a > b) {
+            return 0;
+        }
+        indexLock.readLock().lock();
+        try {
+            GlobalIndex globalIndex = getOrLoadGlobalIndex();
+            long notGreater = b == Long.MAX_VALUE ? globalIndex.getTotal() : rankOf(globalIndex, b + 1);
+            return notGreater - rankOf(globalIndex, a);
+        } catch (IOException e) {
+            throw new IllegalStateException("区间计数失败: " + e.getMessage(), e);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * v所在桶的起始序号加上桶内小于v的个数；空桶不读取，缓存中有排好序的桶时二分查找
+     */
+    private long rankOf(GlobalIndex globalIndex, long v) throws IOException {
+        int bucketId = BucketRule.getBucketId(v);
+        long rank = globalIndex.getStartSeq(bucketId);
+        if (globalIndex.getCount(bucketId) == 0) {
+            return rank;
+        }
+        if (bucketCache != null) {
+            return rank + RankSearch.lowerBound(bucketCache.get(bucketId, sortedBucketLoader), v);
+        }
+        long[] values = readBucket(bucketId);
+        return rank + (globalIndex.isSorted() && globalIndex.getDeltaNum() == 0
+                ? RankSearch.lowerBound(values, v) : RankSearch.countLess(values, v));
+    }
+
+    /**
+     * 并行读取各桶，每个桶只读一次，把各查询窗口的数据直接复制到结果中各自的位置
+     */
+    private void readBucketWindows(Map<Integer, List<int[]>> bucketWindows, final long[][] results)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(bucketWindows.size(), Runtime.getRuntime().availableProcessors()));
+        final CountDownLatch latch = new CountDownLatch(bucketWindows.size());
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        for (final Map.Entry<Integer, List<int[]>> entry : bucketWindows.entrySet()) {
+            executor.submit(new Runnable() {
+                public void run() {
+                    try {
+                        int bucketId = entry.getKey();
+                        List<int[]> windows = entry.getValue();
+                        long[] bucketData;
+                        if (bucketCache != null) {
+                            bucketData = bucketCache.get(bucketId, sortedBucketLoader);
+                        } else {
+                            bucketData = readBucket(bucketId);
+                            // 只对覆盖所有窗口的最小区间做选择和排序
+                            int spanFrom = Integer.MAX_VALUE;
+                            int spanTo = 0;
+                            for (int[] window : windows) {
+                                spanFrom = Math.min(spanFrom, window[1]);
+                                spanTo = Math.max(spanTo, window[2]);
+                            }
+                            Introselect.selectRange(bucketData, 0, bucketData.length, spanFrom, spanTo);
+                        }
+                        for (int[] window : windows) {
+                            System.arraycopy(bucketData, window[1], results[window[0]], window[3],
+                                    window[2] - window[1]);
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        latch.await();
+        executor.shutdown();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * 每个桶的数据量（含增量段），供分布式模式的协调者汇总各分片的直方图
+     * 只支持按高16位分桶的索引，采样分桶时各分片的桶边界不同，桶号不能对齐
+     */
+    public long[] getBucketCounts() {
+        indexLock.readLock().lock();
+        try {
+            GlobalIndex globalIndex = getOrLoadGlobalIndex();
+            if (globalIndex.getSplitters() != null) {
+                throw new IllegalStateException("采样分桶的索引不能汇总直方图，需按高16位分桶重建");
+            }
+            return globalIndex.getCounts();
+        } catch (IOException e) {
+            throw new IllegalStateException("加载全局索引失败: " + e.getMessage(), e);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 读取一个桶的全部数据（含增量段），不保证有序
+     */
+    public long[] readBucketValues(int bucketId) {
+        indexLock.readLock().lock();
+        try {
+            return readBucket(bucketId);
+        } catch (IOException e) {
+            throw new IllegalStateException("读取桶" + bucketId + "失败: " + e.getMessage(), e);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 排序后下标k处的近似值，只读内存中的分位数草图，不读桶文件；真实名次与k的偏差一般不超过getApproxRankError()
+     * 没有可用的草图时（未启用、断点续做的构建）退化为精确查询
+     */
+    public long approxValueAt(long k) {
+        indexLock.readLock().lock();
+        try {
+            GlobalIndex globalIndex = getOrLoadGlobalIndex();
+            if (k < 0 || k >= globalIndex.getTotal()) {
+                throw new IllegalArgumentException("名次超出范围: " + k);
+            }
+            QuantileSketch sketch = cachedSketch;
+            if (sketch != null) {
+                return sketch.valueAt(k);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("加载全局索引失败: " + e.getMessage(), e);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+        return queryTopKN(k, 1)[0];
+    }
+
+    /**
+     * 分位点q（0到1，如0.5、0.99）处的近似值
+     */
+    public long approxQuantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("分位点须在[0, 1]内: " + q);
+        }
+        long total;
+        try {
+            total = getOrLoadGlobalIndex().getTotal();
+        } catch (IOException e) {
+            throw new IllegalStateException("加载全局索引失败: " + e.getMessage(), e);
+        }
+        return approxValueAt((long) Math.floor(q * (total - 1)));
+    }
+
+    /**
+     * 近似查询的名次误差上界（个数，99%置信），退化为精确查询时为0
+     */
+    public long getApproxRankError() {
+        try {
+            getOrLoadGlobalIndex();
+        } catch (IOException e) {
+            throw new IllegalStateException("加载全局索引失败: " + e.getMessage(), e);
         }
+        QuantileSketch sketch = cachedSketch;
+        return sketch == null ? 0 : sketch.getRankError();
     }
 
     /**
      * 获取或加载全局索引（带缓存）
      */
-    private GlobalIndex getOrLoadGlobalIndex() throws IOException, ClassNotFoundException {
+    private GlobalIndex getOrLoadGlobalIndex() throws IOException {
         if (cachedGlobalIndex != null) {
             return cachedGlobalIndex;
         }
 
         synchronized (cacheLock) {
             if (cachedGlobalIndex == null) {
-                ObjectInputStream ois = new ObjectInputStream(
-                        new FileInputStream(GLOBAL_INDEX_FILE));
-                cachedGlobalIndex = (GlobalIndex) ois.readObject();
-                ois.close();
-                logger.info("全局索引已加载并缓存");
+                if (DeltaCompactor.recover()) {
+                    logger.info("前滚了上次中断的增量段合并");
+                }
+                GlobalIndex globalIndex = GlobalIndex.load(new File(AppConstants.GLOBAL_INDEX_FILE));
+                BucketRule.setSplitters(globalIndex.getSplitters() == null
+                        ? null : new BucketSplitters(globalIndex.getSplitters()));
+                cachedSketch = loadSketch(globalIndex.getTotal());
+                cachedGlobalIndex = globalIndex;
+                logger.info("全局索引已映射并缓存");
             }
             return cachedGlobalIndex;
         }
     }
 
     /**
-     * 单桶局部选择读取（优化：只排序需要的部分）
+     * 从已排序的桶文件中读取名次[k, k + n)的数据
+     * 一级桶文件内的二级桶按序连续存放，每个涉及的文件只需一次定位读取
+     */
+    private long[] readSortedRange(GlobalIndex globalIndex, long k, int n) throws IOException {
+        if (globalIndex.getStorage() != BucketCodec.RAW) {
+            return readEncodedRange(globalIndex, k, n);
+        }
+        long[] result = new long[n];
+        int resultPos = 0;
+        int bucketId = globalIndex.locateBucket(k);
+
+        while (resultPos < n && bucketId != -1) {
+            int l1 = BucketRule.getLevel1(bucketId);
+            int firstBucket = l1 * AppConstants.LEVEL2_BUCKET_NUM;
+            int lastBucket = firstBucket + AppConstants.LEVEL2_BUCKET_NUM - 1;
+            long fileStartSeq = globalIndex.getStartSeq(firstBucket);
+            long fileEndSeq = globalIndex.getStartSeq(lastBucket) + globalIndex.getCount(lastBucket);
+
+            long seq = k + resultPos;
+            int readNum = (int) Math.min(n - resultPos, fileEndSeq - seq);
+            ByteBuffer buffer = ByteBuffer.allocate(readNum * AppConstants.LONG_BYTE);
+            long position = AppConstants.BUCKET_HEADER_SIZE + (seq - fileStartSeq) * AppConstants.LONG_BYTE;
+
+            FileChannel channel = new FileInputStream(AppConstants.getBucketFileName(l1)).getChannel();
+            try {
+                while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+                    // 读满为止
+                }
+            } finally {
+                channel.close();
+            }
+            buffer.flip();
+            buffer.asLongBuffer().get(result, resultPos, readNum);
+            resultPos += readNum;
+
+            if (resultPos < n) {
+                bucketId = globalIndex.locateBucket(k + resultPos);
+            }
+        }
+        return resultPos == n ? result : Arrays.copyOf(result, resultPos);
+    }
+
+    /**
+     * 从编码存储的已排序桶中读取名次[k, k + n)的数据，逐个桶只读取窗口涉及的字节
+     */
+    private long[] readEncodedRange(GlobalIndex globalIndex, long k, int n) throws IOException {
+        long[] result = new long[n];
+        int resultPos = 0;
+        int bucketId = globalIndex.locateBucket(k);
+        int openL1 = -1;
+        RandomAccessFile raf = null;
+        try {
+            while (resultPos < n && bucketId < AppConstants.TOTAL_BUCKET_NUM) {
+                long count = globalIndex.getCount(bucketId);
+                if (count > 0) {
+                    int l1 = BucketRule.getLevel1(bucketId);
+                    if (l1 != openL1) {
+                        if (raf != null) {
+                            raf.close();
+                        }
+                        raf = new RandomAccessFile(AppConstants.getBucketFileName(l1), "r");
+                        openL1 = l1;
+                    }
+                    raf.seek(BucketRule.getLevel2(bucketId) * 16);
+                    long regionOffset = raf.readLong();
+
+                    int from = (int) windowOffset(globalIndex, bucketId, k);
+                    int num = windowNum(globalIndex, bucketId, k, n);
+                    long[] part = BucketCodec.readRange(globalIndex.getStorage(), raf.getChannel(), regionOffset,
+                            (int) count, bucketId, from, num);
+                    System.arraycopy(part, 0, result, resultPos, num);
+                    resultPos += num;
+                }
+                bucketId++;
+            }
+        } finally {
+            if (raf != null) {
+                raf.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 单桶局部选择读取：只选出排序后下标[offset, offset + n)的部分并排好序，不排序整个桶；
+     * 开启桶缓存时缓存整个排好序的桶，之后的翻页查询直接截取
      */
     private long[] readBucketWithPartialSelect(int bucketId, long offset, int n)
             throws IOException {
-        long[] bucketData = readAndSortBucket(bucketId);
+        if (bucketCache != null) {
+            long[] sortedData = bucketCache.get(bucketId, sortedBucketLoader);
+            if (offset >= sortedData.length) {
+                return new long[0];
+            }
+            return Arrays.copyOfRange(sortedData, (int) offset, (int) Math.min(sortedData.length, offset + n));
+        }
+
+        long[] bucketData = readBucket(bucketId);
 
         // 边界检查
         if (offset >= bucketData.length) {
             return new long[0];
         }
 
-        int actualN = (int) Math.min(n, bucketData.length - offset);
-        long[] result = new long[actualN];
-        System.arraycopy(bucketData, (int) offset, result, 0, actualN);
-        return result;
+        int from = (int) offset;
+        int to = (int) Math.min(bucketData.length, offset + n);
+        Introselect.selectRange(bucketData, 0, bucketData.length, from, to);
+        return Arrays.copyOfRange(bucketData, from, to);
     }
 
     /**
-     * 并行读取多个桶（利用多核加速）
+     * 并行读取多个桶（利用多核加速），每个桶只选出落在名次窗口内的部分
      */
     private long[] readMultipleBucketsParallel(GlobalIndex globalIndex,
                                                int startBucket, int endBucket, long k, int n) throws Exception {
 
-        final long[] result = new long[n];
         final int bucketCount = endBucket - startBucket + 1;
 
         // 如果只有2个桶，直接串行处理（避免线程开销）
@@ -409,61 +1117,39 @@ public class TopKN implements KNLimit {
         ExecutorService executor = Executors.newFixedThreadPool(
                 Math.min(bucketCount, Runtime.getRuntime().availableProcessors()));
         final CountDownLatch latch = new CountDownLatch(bucketCount);
-        final long[][] bucketDataArray = new long[bucketCount][];
+        final long[][] bucketParts = new long[bucketCount][];
+        // 任一桶读取失败都让整个查询失败，不能返回少了一段的结果
+        final AtomicReference<IOException> failure = new AtomicReference<>();
 
-        for (int i = 0; i < bucketCount; i++) {
-            final int bucketId = startBucket + i;
-            final int index = i;
+        try {
+            for (int i = 0; i < bucketCount; i++) {
+                final int bucketId = startBucket + i;
+                final int index = i;
+                final long offset = windowOffset(globalIndex, bucketId, k);
+                final int num = windowNum(globalIndex, bucketId, k, n);
 
-            executor.submit(new Runnable() {
-                public void run() {
-                    try {
-                        bucketDataArray[index] = readAndSortBucket(bucketId);
-                    } catch (IOException e) {
-                        logger.error("读取桶" + bucketId + "失败: " + e.getMessage());
-                        bucketDataArray[index] = new long[0];
-                    } finally {
-                        latch.countDown();
+                executor.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            bucketParts[index] = readBucketWithPartialSelect(bucketId, offset, num);
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, new IOException("读取桶" + bucketId + "失败: " + e, e));
+                        } finally {
+                            latch.countDown();
+                        }
                     }
-                }
-            });
-        }
-
-        latch.await();
-        executor.shutdown();
-
-        // 组装结果
-        int resultPos = 0;
-
-        // 起始桶
-        long startOffset = k - globalIndex.getStartSeq(startBucket);
-        int startCopyNum = (int) Math.min(
-                bucketDataArray[0].length - startOffset, n - resultPos);
-        if (startCopyNum > 0) {
-            System.arraycopy(bucketDataArray[0], (int) startOffset,
-                    result, resultPos, startCopyNum);
-            resultPos += startCopyNum;
-        }
-
-        // 中间桶
-        for (int i = 1; i < bucketCount - 1 && resultPos < n; i++) {
-            int copyNum = Math.min(bucketDataArray[i].length, n - resultPos);
-            if (copyNum > 0) {
-                System.arraycopy(bucketDataArray[i], 0, result, resultPos, copyNum);
-                resultPos += copyNum;
+                });
             }
-        }
 
-        // 结束桶
-        if (resultPos < n && bucketCount > 1) {
-            int copyNum = n - resultPos;
-            if (copyNum > 0 && bucketDataArray[bucketCount - 1].length > 0) {
-                System.arraycopy(bucketDataArray[bucketCount - 1], 0,
-                        result, resultPos, Math.min(copyNum, bucketDataArray[bucketCount - 1].length));
-            }
+            latch.await();
+        } finally {
+            executor.shutdown();
         }
 
-        return result;
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return concat(bucketParts);
     }
 
     /**
@@ -472,89 +1158,79 @@ public class TopKN implements KNLimit {
     private long[] readTwoBucketsSequential(GlobalIndex globalIndex,
                                             int startBucket, int endBucket, long k, int n) throws IOException {
 
-        long[] result = new long[n];
-        int resultPos = 0;
+        long[][] bucketParts = new long[2][];
+        bucketParts[0] = readBucketWithPartialSelect(startBucket,
+                windowOffset(globalIndex, startBucket, k), windowNum(globalIndex, startBucket, k, n));
+        bucketParts[1] = readBucketWithPartialSelect(endBucket,
+                windowOffset(globalIndex, endBucket, k), windowNum(globalIndex, endBucket, k, n));
+        return concat(bucketParts);
+    }
 
-        // 读取起始桶
-        long[] startBucketData = readAndSortBucket(startBucket);
-        long startOffset = k - globalIndex.getStartSeq(startBucket);
-        int startCopyNum = (int) Math.min(
-                startBucketData.length - startOffset, n);
-        if (startCopyNum > 0) {
-            System.arraycopy(startBucketData, (int) startOffset,
-                    result, resultPos, startCopyNum);
-            resultPos += startCopyNum;
-        }
+    /**
+     * 名次窗口[k, k + n)在桶内的起始下标
+     */
+    private static long windowOffset(GlobalIndex globalIndex, int bucketId, long k) {
+        return Math.max(k, globalIndex.getStartSeq(bucketId)) - globalIndex.getStartSeq(bucketId);
+    }
 
-        // 读取结束桶
-        if (resultPos < n) {
-            long[] endBucketData = readAndSortBucket(endBucket);
-            int copyNum = n - resultPos;
-            if (copyNum > 0 && endBucketData.length > 0) {
-                System.arraycopy(endBucketData, 0, result, resultPos,
-                        Math.min(copyNum, endBucketData.length));
-            }
-        }
+    /**
+     * 名次窗口[k, k + n)落在桶内的数据量
+     */
+    private static int windowNum(GlobalIndex globalIndex, int bucketId, long k, int n) {
+        long start = globalIndex.getStartSeq(bucketId);
+        long end = Math.min(k + n, start + globalIndex.getCount(bucketId));
+        return (int) Math.max(0, end - Math.max(k, start));
+    }
 
+    /**
+     * 按顺序拼接各桶选出的部分
+     */
+    private static long[] concat(long[][] parts) {
+        int total = 0;
+        for (long[] part : parts) {
+            total += part.length;
+        }
+        long[] result = new long[total];
+        int resultPos = 0;
+        for (long[] part : parts) {
+            System.arraycopy(part, 0, result, resultPos, part.length);
+            resultPos += part.length;
+        }
         return result;
     }
 
     /**
-     * 读取并排序指定桶的数据
+     * 读取指定桶的数据（未排序）；有增量段时在基础桶数据之后依次接上各增量段中该桶的数据
      */
-    private long[] readAndSortBucket(int bucketId) throws IOException {
-        int l1 = bucketId / LEVEL2_BUCKET_NUM;
-        int l2 = bucketId % LEVEL2_BUCKET_NUM;
-
-        String fileName = DATA_DIR_PATH + "bucket_" + l1 + ".dat";
-        RandomAccessFile raf = new RandomAccessFile(fileName, "r");
-
-        // 读取索引头，获取该二级桶的偏移量和数量
-        raf.seek(l2 * 16);
-        long offset = raf.readLong();
-        long count = raf.readLong();
-
-        if (count == 0) {
-            raf.close();
-            return new long[0];
+    private long[] readBucket(int bucketId) throws IOException {
+        GlobalIndex globalIndex = getOrLoadGlobalIndex();
+        int l1 = BucketRule.getLevel1(bucketId);
+        long[] values = BucketCodec.readBucket(AppConstants.getBucketFileName(l1), bucketId,
+                globalIndex.getStorage());
+        long deltaCount = globalIndex.getDeltaCount(bucketId);
+        if (deltaCount == 0) {
+            return values;
         }
 
-        // 读取该桶的数据
-        raf.seek(offset);
-        int byteCount = (int) (count * 8);
-        byte[] data = new byte[byteCount];
-        raf.readFully(data);
-        raf.close();
-
-        // 字节转long数组
-        long[] values = new long[(int) count];
-        for (int i = 0; i < count; i++) {
-            int idx = i * 8;
-            values[i] = ((long) (data[idx] & 0xFF) << 56)
-                    | ((long) (data[idx + 1] & 0xFF) << 48)
-                    | ((long) (data[idx + 2] & 0xFF) << 40)
-                    | ((long) (data[idx + 3] & 0xFF) << 32)
-                    | ((long) (data[idx + 4] & 0xFF) << 24)
-                    | ((long) (data[idx + 5] & 0xFF) << 16)
-                    | ((long) (data[idx + 6] & 0xFF) << 8)
-                    | ((long) (data[idx + 7] & 0xFF));
+        long[] merged = Arrays.copyOf(values, (int) (values.length + deltaCount));
+        int pos = values.length;
+        for (int d = 1; d <= globalIndex.getDeltaNum(); d++) {
+            if (globalIndex.getDelta(d).getCount(bucketId) == 0) {
+                continue;
+            }
+            long[] part = BucketCodec.readBucket(AppConstants.getBucketFileName(AppConstants.getDeltaDir(d), l1),
+                    bucketId, BucketCodec.RAW);
+            System.arraycopy(part, 0, merged, pos, part.length);
+            pos += part.length;
         }
-
-        // 排序
-        Arrays.sort(values);
-        return values;
+        return merged;
     }
 
     /**
      * 写入结果文件
      */
     private void writeResult(long[] result) throws IOException {
-        FileWriter writer = new FileWriter(RESULT_DIR + RESULT_NAME);
-        for (long value : result) {
-            writer.write(String.valueOf(value) + "\n");
-        }
-        writer.flush();
-        writer.close();
+        ResultWriter.writeResult(RESULT_DIR + RESULT_NAME, result);
     }
 
     public static void main(String[] args) {
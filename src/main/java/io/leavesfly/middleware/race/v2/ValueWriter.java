@@ -0,0 +1,11 @@
+package io.leavesfly.middleware.race.v2;
+
+import java.io.IOException;
+
+/**
+ * 分桶线程独占的写入器，每个解析出的值调用一次
+ */
+public interface ValueWriter {
+
+    void write(long value) throws IOException;
+}